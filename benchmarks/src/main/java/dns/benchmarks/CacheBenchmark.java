@@ -0,0 +1,105 @@
+package dns.benchmarks;
+
+import dns.Answer;
+import dns.Cache;
+import dns.CacheKey;
+import dns.Question;
+import dns.RecordData;
+import dns.RecordType;
+import dns.Resolution;
+import dns.WireReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache lookups under contention: many threads reading hot names, by question and by the allocation-free
+ * probe key, and a mix of readers with a writer that keeps replacing entries and triggering eviction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        @Param({"10000"})
+        public int names;
+
+        Cache cache;
+        Question[] questions;
+        ByteBuffer[] queries;
+        Resolution resolution;
+
+        @Setup
+        public void setUp() throws Exception {
+            cache = new Cache(names);
+            questions = new Question[names];
+            queries = new ByteBuffer[names];
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < names; i++) {
+                questions[i] = new Question("host" + i + ".example.com", RecordType.A, RecordType.CLASS_IN);
+                queries[i] = ByteBuffer.wrap(Packets.query(List.of(questions[i])));
+                Answer answer = new Answer(questions[i].getDomain(), RecordType.A, RecordType.CLASS_IN, 3600,
+                        new RecordData.Address(InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i})));
+                resolution = new Resolution(Resolution.NOERROR, List.of(answer), now, now + 3_600_000);
+                cache.put(questions[i], resolution);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Probe {
+        final WireReader reader = new WireReader();
+        final CacheKey key = CacheKey.probe();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Resolution getByQuestion(Shared shared) {
+        Question question = shared.questions[ThreadLocalRandom.current().nextInt(shared.names)];
+        return shared.cache.get(question, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Resolution getByProbe(Shared shared, Probe probe) {
+        ByteBuffer query = shared.queries[ThreadLocalRandom.current().nextInt(shared.names)];
+        probe.reader.read(query, query.limit());
+        return shared.cache.get(probe.key.set(probe.reader, 0), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Resolution mixedRead(Shared shared) {
+        return getByQuestion(shared);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedWrite(Shared shared) {
+        shared.cache.put(shared.questions[ThreadLocalRandom.current().nextInt(shared.names)], shared.resolution);
+    }
+}
@@ -0,0 +1,48 @@
+package dns.benchmarks;
+
+import dns.Answer;
+import dns.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of responses on the Parser/Message path: a whole message with name compression, and a
+ * single record on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+
+    private Message response;
+    private Answer answer;
+
+    @Setup
+    public void setUp() {
+        response = Packets.response();
+        answer = response.getAnswers().getFirst();
+    }
+
+    @Benchmark
+    public byte[] getMessage() {
+        return response.getMessage();
+    }
+
+    @Benchmark
+    public byte[] getAnswer() {
+        return answer.getAnswer();
+    }
+}
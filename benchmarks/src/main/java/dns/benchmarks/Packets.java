@@ -0,0 +1,83 @@
+package dns.benchmarks;
+
+import dns.Answer;
+import dns.Edns;
+import dns.Header;
+import dns.Message;
+import dns.Question;
+import dns.RecordData;
+import dns.RecordType;
+import dns.Resolution;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * Realistic messages shared by the benchmarks: queries as stub resolvers send them, and a response
+ * with a CNAME chain, an SOA and an MX whose names compress against each other.
+ */
+final class Packets {
+
+    private static final short QUERY_FLAGS = 0x0100;
+    private static final short RESPONSE_FLAGS = (short) 0x8180;
+    private static final int TTL = 300;
+
+    private Packets() {
+    }
+
+    // A single A question with an EDNS(0) OPT record, the most common query on the wire.
+    static byte[] singleQuestion() {
+        return query(List.of(new Question("www.example.com", RecordType.A, RecordType.CLASS_IN)));
+    }
+
+    // Three questions in one request, as some internal clients batch them.
+    static byte[] multiQuestion() {
+        return query(List.of(new Question("www.example.com", RecordType.A, RecordType.CLASS_IN),
+                new Question("www.example.com", RecordType.AAAA, RecordType.CLASS_IN),
+                new Question("example.com", RecordType.MX, RecordType.CLASS_IN)));
+    }
+
+    // A response whose names are compressed: the CNAME target, the SOA names and the MX exchange all
+    // point back into earlier names.
+    static byte[] compressedResponse() {
+        return response().getMessage();
+    }
+
+    static Message response() {
+        List<Answer> answers = List.of(
+                new Answer("www.example.com", RecordType.CNAME, RecordType.CLASS_IN, TTL,
+                        new RecordData.Name(RecordType.CNAME, "web.cdn.example.com")),
+                new Answer("web.cdn.example.com", RecordType.A, RecordType.CLASS_IN, TTL,
+                        new RecordData.Address(address("192.0.2.10"))),
+                new Answer("web.cdn.example.com", RecordType.A, RecordType.CLASS_IN, TTL,
+                        new RecordData.Address(address("192.0.2.11"))));
+        List<Answer> authorities = List.of(
+                new Answer("example.com", RecordType.SOA, RecordType.CLASS_IN, TTL,
+                        new RecordData.Soa("ns1.example.com", "hostmaster.example.com", 2024010101, 3600, 600,
+                                86400, 300)));
+        List<Answer> additionals = List.of(
+                new Answer("example.com", RecordType.MX, RecordType.CLASS_IN, TTL,
+                        new RecordData.Mx(10, "mail.example.com")),
+                Edns.record(1232, Resolution.NOERROR, false));
+        Header header = new Header((short) 0x1234, RESPONSE_FLAGS, (short) 1, (short) answers.size(),
+                (short) authorities.size(), (short) additionals.size());
+        return new Message(header, List.of(new Question("www.example.com", RecordType.A, RecordType.CLASS_IN)),
+                answers, authorities, additionals);
+    }
+
+    static byte[] query(List<Question> questions) {
+        Header header = new Header((short) 0x1234, QUERY_FLAGS, (short) questions.size(), (short) 0, (short) 0,
+                (short) 1);
+        return new Message(header, questions, List.of(), List.of(),
+                List.of(Edns.record(1232, Resolution.NOERROR, false))).getMessage();
+    }
+
+    private static InetAddress address(String literal) {
+        try {
+            return InetAddress.getByName(literal);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package dns.benchmarks;
+
+import dns.Message;
+import dns.Parser;
+import dns.WireReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of requests and replies: the object-building {@link Parser} on a single-question query, a
+ * multi-question query and a response with compressed names, and the allocation-free {@link WireReader}
+ * the cache-hit path uses instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    private final Parser parser = new Parser();
+    private final WireReader reader = new WireReader();
+    private byte[] singleQuestion;
+    private byte[] multiQuestion;
+    private byte[] compressedResponse;
+    private ByteBuffer singleQuestionBuffer;
+
+    @Setup
+    public void setUp() {
+        singleQuestion = Packets.singleQuestion();
+        multiQuestion = Packets.multiQuestion();
+        compressedResponse = Packets.compressedResponse();
+        singleQuestionBuffer = ByteBuffer.wrap(singleQuestion);
+    }
+
+    @Benchmark
+    public Message parseSingleQuestion() {
+        return parser.parse(singleQuestion);
+    }
+
+    @Benchmark
+    public Message parseMultiQuestion() {
+        return parser.parse(multiQuestion);
+    }
+
+    @Benchmark
+    public Message parseCompressedResponse() {
+        return parser.parse(compressedResponse);
+    }
+
+    @Benchmark
+    public boolean readSingleQuestion() {
+        return reader.read(singleQuestionBuffer, singleQuestion.length);
+    }
+}
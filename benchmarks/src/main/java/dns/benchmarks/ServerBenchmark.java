@@ -0,0 +1,128 @@
+package dns.benchmarks;
+
+import dns.Question;
+import dns.RecordType;
+import dns.Server;
+import dns.StubResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end round trips over loopback UDP against a running {@link Server} that forwards to a
+ * {@link StubResolver}: a cache hit on one hot name, and a cache miss on a name never asked before,
+ * which goes through the Parser path and the upstream client. The server is a singleton that cannot
+ * be stopped, so it lives for the whole forked JVM.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ServerBenchmark {
+
+    private static final InetSocketAddress SERVER = new InetSocketAddress("127.0.0.1", 2053);
+    private static final int TIMEOUT_MS = 2000;
+
+    @State(Scope.Benchmark)
+    public static class Running {
+
+        StubResolver upstream;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            upstream = new StubResolver();
+            InetSocketAddress address = (InetSocketAddress) upstream.getAddress();
+            String[] args = {"--resolver", "127.0.0.1:" + address.getPort(), "--cache-size", "1000000"};
+            Thread.ofPlatform().daemon().name("dns-server").start(() -> Server.getInstance().start(args));
+            Client client = new Client();
+            client.open();
+            try {
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (true) {
+                    try {
+                        client.exchange(client.hit);
+                        return;
+                    } catch (SocketTimeoutException | PortUnreachableException e) {
+                        if (System.currentTimeMillis() > deadline)
+                            throw new IllegalStateException("Server did not start", e);
+                        Thread.sleep(100);
+                    }
+                }
+            } finally {
+                client.close();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            upstream.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private final DatagramPacket request = new DatagramPacket(new byte[0], 0);
+        private final DatagramPacket reply = new DatagramPacket(new byte[4096], 4096);
+        private final byte[] hit = Packets.singleQuestion();
+        private DatagramSocket socket;
+        private long misses;
+
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            socket = new DatagramSocket();
+            socket.connect(SERVER);
+            socket.setSoTimeout(TIMEOUT_MS);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            socket.close();
+        }
+
+        // Sends a query and waits for its reply; UDP loss on loopback shows up as a timeout.
+        int exchange(byte[] query) throws IOException {
+            request.setData(query);
+            socket.send(request);
+            reply.setLength(reply.getData().length);
+            socket.receive(reply);
+            return reply.getLength();
+        }
+
+        byte[] nextMiss() {
+            String name = "miss" + Thread.currentThread().threadId() + "-" + misses++ + ".example.com";
+            return Packets.query(List.of(new Question(name, RecordType.A, RecordType.CLASS_IN)));
+        }
+    }
+
+    @Benchmark
+    public int cacheHit(Running server, Client client) throws IOException {
+        return client.exchange(client.hit);
+    }
+
+    @Benchmark
+    public int forwardedMiss(Running server, Client client) throws IOException {
+        return client.exchange(client.nextMiss());
+    }
+}
@@ -1,8 +1,53 @@
+import dns.Cluster;
+import dns.Config;
+import dns.LoadGenerator;
+import dns.QueryLog;
+import dns.Question;
+import dns.RecordType;
 import dns.Server;
+import dns.StubResolver;
+import dns.Zone;
+import dns.ZoneFile;
+import dns.ZoneSnapshot;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.util.List;
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 3 && args[0].equals("compile-zone")) {
+            ZoneSnapshot.compile(new Zone(ZoneFile.read(Path.of(args[1]), null)), Path.of(args[2]));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("load")) {
+            LoadGenerator.run(Config.parse(args));
+            return;
+        }
+        if (args.length == 2 && args[0].equals("query-log")) {
+            QueryLog.print(Path.of(args[1]), System.out);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("invalidate")) {
+            Config config = Config.parse(args);
+            String name = config.getString("--name", ".");
+            String type = config.getString("--type", "A");
+            Question question = new Question(name, RecordType.parse(type), RecordType.CLASS_IN);
+            for (SocketAddress node : config.getAddresses("--cluster"))
+                System.out.println(name + " " + type + (Cluster.invalidate(node, question, 1000)
+                        ? " invalidated through " : " not confirmed by ") + node);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("stub-resolver")) {
+            List<SocketAddress> listen = Config.parse(args).getAddresses("--listen");
+            try (StubResolver stub = listen.isEmpty() ? new StubResolver() : new StubResolver(listen.getFirst())) {
+                System.out.println("Stub resolver listening on " + stub.getAddress());
+                stub.await();
+            }
+            return;
+        }
         Server.getInstance().start(args);
     }
-}
\ No newline at end of file
+}
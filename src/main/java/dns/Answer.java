@@ -1,69 +1,172 @@
 package dns;
 
-import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Map;
 
 // Represents a DNS answer record with the necessary fields and methods to encode the data
 public class Answer {
 
-    private static final int BUFFER_SIZE = 512;
-    private static final String SEPARATOR = "\\.";
+    private static final int DEFAULT_TTL = 60;
+    private static final short TYPE_SOA = 6;
 
     private final short qType;
     private final short qClass;
     private final int ttl;
-    private final short rdLength;
     private final String question;
-    private final String answer;
+    private final byte[] rdata;
+    private RecordData data;
     private int length;
 
     // Constructor to initialize the fields of the DNS answer record
     public Answer(String question, short qType, short qClass, short rdLength, String answer) {
+        this(question, qType, qClass, DEFAULT_TTL, Arrays.copyOf(encodeIpAddress(answer), rdLength));
+    }
+
+    // Constructor for a record with typed rdata
+    public Answer(String question, short qType, short qClass, int ttl, RecordData data) {
+        this(question, qType, qClass, ttl, data.toBytes());
+        this.data = data;
+    }
+
+    // Constructor for a record whose rdata is already in wire format
+    public Answer(String question, short qType, short qClass, int ttl, byte[] rdata) {
         this.question = question;
         this.qType = qType;
         this.qClass = qClass;
-        this.ttl = 60;
-        this.rdLength = rdLength;
-        this.answer = answer;
+        this.ttl = ttl;
+        this.rdata = rdata;
     }
 
     // Method to get the byte array representation of the DNS answer
     public byte[] getAnswer() {
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        buffer.put(encodeDomainName(question));
+        ByteBuffer buffer = ByteBuffer.allocate(Wire.MAX_NAME_LENGTH + 10 + rdata.length);
+        writeTo(buffer);
+        this.length = buffer.position();
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // Writes the record into a buffer
+    public void writeTo(ByteBuffer buffer) {
+        writeTo(buffer, ttl);
+    }
+
+    // Writes the record into a buffer with a different time to live, e.g. one aged by the cache
+    public void writeTo(ByteBuffer buffer, int ttl) {
+        Wire.putName(buffer, question);
         buffer.putShort(qType);
         buffer.putShort(qClass);
         buffer.putInt(ttl);
-        buffer.putShort(rdLength);
-        buffer.put(encodeIpAddress(answer));
-        this.length = buffer.position();
-        return Arrays.copyOf(buffer.array(), buffer.position());
+        buffer.putShort((short) rdata.length);
+        buffer.put(rdata);
+    }
+
+    // Writes the record into a message, compressing its owner name and, for the types that allow it, the
+    // names in its rdata against the message's compression table; returns the offset of the TTL field
+    public int writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+        Wire.putName(buffer, question, compression);
+        buffer.putShort(qType);
+        buffer.putShort(qClass);
+        int ttlOffset = buffer.position();
+        buffer.putInt(ttl);
+        if (!isCompressible()) {
+            buffer.putShort((short) rdata.length);
+            buffer.put(rdata);
+            return ttlOffset;
+        }
+        int lengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+        getData().writeTo(buffer, compression);
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+        return ttlOffset;
+    }
+
+    // Returns the typed rdata, decoding it on first use
+    public RecordData getData() {
+        RecordData decoded = data;
+        if (decoded == null)
+            data = decoded = RecordData.of(qType, rdata);
+        return decoded;
+    }
+
+    // Returns the owner name of the record
+    public String getDomain() {
+        return question;
+    }
+
+    // Returns the record data in wire format
+    public byte[] getRdata() {
+        return rdata;
+    }
+
+    // Returns the record type
+    public short getQType() {
+        return qType;
+    }
+
+    // Returns the record class
+    public short getQClass() {
+        return qClass;
+    }
+
+    // Returns the length of the record data
+    public int getRdLength() {
+        return rdata.length;
+    }
+
+    // Returns the time to live of the record in seconds
+    public int getTtl() {
+        return ttl;
+    }
+
+    // Returns a copy of this record with a different owner name, e.g. one synthesised from a wildcard
+    public Answer withName(String name) {
+        return new Answer(name, qType, qClass, ttl, rdata);
+    }
+
+    // Returns a copy of this record with a different time to live
+    public Answer withTtl(int ttl) {
+        return new Answer(question, qType, qClass, ttl, rdata);
+    }
+
+    // Returns the MINIMUM field of an SOA record, the last 4 bytes of its rdata, or -1 for other records
+    public long getSoaMinimum() {
+        if (qType != TYPE_SOA || rdata.length < 4)
+            return -1;
+        return ByteBuffer.wrap(rdata, rdata.length - 4, 4).getInt() & 0xFFFFFFFFL;
     }
 
     // Method to return a string representation of the DNS answer
     public String toString() {
-        return "Answer: " + question + ", " + qType + ", " + qClass + ", " + answer;
+        return "Answer: " + question + ", " + qType + ", " + qClass + ", " + ttl + ", " + getRdataStr();
+    }
+
+    // Formats the rdata in master file presentation
+    private String getRdataStr() {
+        return qType == RecordType.OPT ? rdata.length + " bytes" : getData().toString();
     }
 
-    // Private method to encode an IP address into a byte array
-    private byte[] encodeIpAddress(String s) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        if (s.isEmpty()) return out.toByteArray();
-        for (String octet : s.split(SEPARATOR))
-            out.write(Integer.parseInt(octet));
-        return out.toByteArray();
+    // RFC 3597 only allows names in the rdata of the original RFC 1035 types to be compressed
+    private boolean isCompressible() {
+        return switch (qType) {
+            case RecordType.NS, RecordType.CNAME, RecordType.PTR, RecordType.MX, RecordType.SOA -> true;
+            default -> false;
+        };
     }
 
-    // Private method to encode a domain name into a byte array
-    private byte[] encodeDomainName(String s) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        for (String label : s.split(SEPARATOR)) {
-            int len = label.length();
-            out.write(len);
-            out.writeBytes(label.getBytes());
+    // Private method to encode an IPv4 or IPv6 address literal into a byte array
+    private static byte[] encodeIpAddress(String s) {
+        if (s.isEmpty())
+            return new byte[0];
+        // Only literals are accepted so that InetAddress never performs a lookup.
+        if (!s.matches("[0-9a-fA-F:.]+"))
+            throw new IllegalArgumentException("Invalid address " + s);
+        try {
+            return InetAddress.getByName(s).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address " + s, e);
         }
-        out.write(0);
-        return out.toByteArray();
     }
 }
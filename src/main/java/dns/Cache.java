@@ -0,0 +1,132 @@
+package dns;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded in-memory cache of resolutions keyed on (name, qType, qClass).
+ * Lookups are lock-free reads of a concurrent map, so hot names can be read by any number of threads
+ * at once. When the cache grows past its capacity a single thread sweeps it CLOCK-style: expired entries
+ * and entries not read since the previous sweep are evicted, the others lose their reference bit.
+ * This approximates LRU without reordering anything on the read path.
+ */
+public class Cache {
+
+    private static final double LOW_WATERMARK = 0.9;
+
+    private final int capacity;
+    private final Map<CacheKey, Slot> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Constructs a cache.
+     * @param capacity The maximum number of entries; 0 disables caching.
+     */
+    public Cache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached resolution of a question, or null when it is absent or expired.
+     * @param question The question to look up.
+     * @param now The current time in milliseconds.
+     */
+    public Resolution get(Question question, long now) {
+        return get(CacheKey.of(question), now);
+    }
+
+    /**
+     * Returns the cached resolution for a key, or null when it is absent or expired.
+     * Lookups with a probe key allocate nothing.
+     * @param key The key to look up.
+     * @param now The current time in milliseconds.
+     */
+    public Resolution get(CacheKey key, long now) {
+        Slot slot = entries.get(key);
+        if (slot == null)
+            return null;
+        if (slot.resolution.isExpired(now)) {
+            entries.remove(key, slot);
+            return null;
+        }
+        if (!slot.referenced)
+            slot.referenced = true;
+        return slot.resolution;
+    }
+
+    /**
+     * Stores a resolution if it is cacheable.
+     * @param question The question that was resolved.
+     * @param resolution The resolution to store.
+     */
+    public void put(Question question, Resolution resolution) {
+        if (capacity <= 0 || !resolution.isCacheable())
+            return;
+        entries.put(CacheKey.of(question), new Slot(resolution));
+        if (entries.size() > capacity)
+            evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Drops the entry of a question, if any.
+     * @param question The question.
+     */
+    public void remove(Question question) {
+        entries.remove(CacheKey.of(question));
+    }
+
+    /**
+     * Drops every authoritative entry, so that answers from replaced zone data are not served again.
+     */
+    public void removeAuthoritative() {
+        entries.values().removeIf(slot -> slot.resolution.isAuthoritative());
+    }
+
+    /**
+     * Calls an action for every entry, without blocking readers or writers; entries added or removed
+     * meanwhile may or may not be seen.
+     * @param action The action to call with the key and resolution of each entry.
+     */
+    public void forEach(BiConsumer<CacheKey, Resolution> action) {
+        entries.forEach((key, slot) -> action.accept(key, slot.resolution));
+    }
+
+    /**
+     * Returns the number of entries currently held, including expired ones not yet evicted.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void evict(long now) {
+        if (!evictionLock.tryLock())
+            return;
+        try {
+            int target = (int) (capacity * LOW_WATERMARK);
+            while (entries.size() > target) {
+                Iterator<Slot> it = entries.values().iterator();
+                while (it.hasNext() && entries.size() > target) {
+                    Slot slot = it.next();
+                    if (slot.referenced && !slot.resolution.isExpired(now))
+                        slot.referenced = false;
+                    else
+                        it.remove();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static final class Slot {
+        private final Resolution resolution;
+        private volatile boolean referenced;
+
+        private Slot(Resolution resolution) {
+            this.resolution = resolution;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cache key of a question: its lower-cased wire-format name plus qType and qClass.
+ * Keys stored in the cache are immutable. A probe is a reusable key filled straight from a
+ * received packet, so that cache lookups on the hot path do not allocate; probes are only
+ * ever used for lookups and never stored.
+ */
+public final class CacheKey {
+
+    private final byte[] name;
+    private int nameLength;
+    private short qType;
+    private short qClass;
+    private int hash;
+
+    private CacheKey(byte[] name, int nameLength, short qType, short qClass) {
+        this.name = name;
+        set(nameLength, qType, qClass);
+    }
+
+    /**
+     * Builds the key of a question.
+     * @param question The question.
+     */
+    public static CacheKey of(Question question) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Wire.MAX_NAME_LENGTH);
+        Wire.putName(buffer, question.getDomain());
+        byte[] name = Arrays.copyOf(buffer.array(), buffer.position());
+        for (int i = 0; i < name.length; i++)
+            name[i] = toLowerCase(name[i]);
+        return new CacheKey(name, name.length, question.getQType(), question.getQClass());
+    }
+
+    /**
+     * Creates an empty, reusable probe key.
+     */
+    public static CacheKey probe() {
+        return new CacheKey(new byte[Wire.MAX_NAME_LENGTH], 0, (short) 0, (short) 0);
+    }
+
+    /**
+     * Fills this probe with a question decoded by a reader.
+     * @param reader The reader holding the decoded message.
+     * @param question The index of the question.
+     * @return This probe.
+     */
+    public CacheKey set(WireReader reader, int question) {
+        ByteBuffer data = reader.getData();
+        int offset = reader.getNameOffset(question);
+        int length = reader.getNameLength(question);
+        for (int i = 0; i < length; i++)
+            name[i] = toLowerCase(data.get(offset + i));
+        set(length, reader.getQType(question), reader.getQClass(question));
+        return this;
+    }
+
+    /**
+     * Returns the question this key stands for, with its name lower-cased.
+     */
+    public Question toQuestion() {
+        String domain = Wire.getName(name, 0);
+        return new Question(domain.isEmpty() ? "." : domain, qType, qClass);
+    }
+
+    private void set(int nameLength, short qType, short qClass) {
+        this.nameLength = nameLength;
+        this.qType = qType;
+        this.qClass = qClass;
+        int h = 1;
+        for (int i = 0; i < nameLength; i++)
+            h = 31 * h + name[i];
+        this.hash = 31 * (31 * h + qType) + qClass;
+    }
+
+    // Label length bytes never fall in 'A'..'Z' because labels are at most 63 bytes long.
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CacheKey other)) return false;
+        return hash == other.hash && qType == other.qType && qClass == other.qClass
+                && Arrays.equals(name, 0, nameLength, other.name, 0, other.nameLength);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
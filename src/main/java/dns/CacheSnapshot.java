@@ -0,0 +1,119 @@
+package dns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The answer cache saved to disk, so that a restarted server starts warm instead of sending a burst of
+ * misses upstream. The file is a header followed by self-contained entries appended one after another;
+ * nothing is ever updated in place, a later entry for the same question simply replaces an earlier one
+ * when loading, and an entry cut short at the end, as after a crash, ends the load without failing it.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ *   header   "DNSC", u16 version
+ *   entries  i64 stored-at and i64 expires-at in milliseconds since the epoch, u16 rcode (12 bits), u16 length,
+ *            then a wire-format DNS message of that length holding the question and the records,
+ *            with the TTLs they had when they were stored
+ * </pre>
+ * Expiry times are absolute, so an entry keeps aging while the server is down and expired entries are
+ * dropped on load. Authoritative entries are not saved; they come from the zones loaded at startup.
+ */
+public final class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final short VERSION = 2;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Writes every live, non-authoritative cache entry to a file. The file is written next to the target
+     * and moved into place atomically, so a crash never leaves a half-written snapshot behind.
+     * @param cache The cache to save.
+     * @param path The snapshot file.
+     * @param now The current time in milliseconds.
+     * @return The number of entries written.
+     */
+    public static int write(Cache cache, Path path, long now) throws IOException {
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        int[] count = {0};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            cache.forEach((key, resolution) -> {
+                if (resolution.isAuthoritative() || resolution.isExpired(now))
+                    return;
+                try {
+                    writeEntry(out, key.toQuestion(), resolution);
+                    count[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            Files.deleteIfExists(temp);
+            throw e instanceof UncheckedIOException unchecked ? unchecked.getCause() : (IOException) e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * Streams a snapshot into a cache, dropping the entries that expired meanwhile.
+     * @param cache The cache to fill.
+     * @param path The snapshot file; a missing file loads nothing.
+     * @param now The current time in milliseconds.
+     * @return The number of entries loaded.
+     */
+    public static int load(Cache cache, Path path, long now) throws IOException {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION)
+                throw new IllegalArgumentException("Not a cache snapshot: " + path);
+            while (true) {
+                long storedAt;
+                long expiresAt;
+                int rcode;
+                byte[] message;
+                try {
+                    storedAt = in.readLong();
+                    expiresAt = in.readLong();
+                    rcode = in.readUnsignedShort();
+                    message = new byte[in.readUnsignedShort()];
+                    in.readFully(message);
+                } catch (EOFException e) {
+                    return count;
+                }
+                if (expiresAt <= now)
+                    continue;
+                Message entry = new Parser().parse(message);
+                if (entry.getQuestions().size() != 1)
+                    throw new IllegalArgumentException("Corrupt cache snapshot entry in " + path);
+                cache.put(entry.getQuestions().getFirst(), Resolution.restore(entry, rcode, storedAt, expiresAt, null));
+                count++;
+            }
+        } catch (NoSuchFileException e) {
+            return count;
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Question question, Resolution resolution)
+            throws IOException {
+        byte[] message = resolution.toMessage(question);
+        out.writeLong(resolution.getStoredAt());
+        out.writeLong(resolution.getExpiresAt());
+        out.writeShort(resolution.getRcode());
+        out.writeShort(message.length);
+        out.write(message);
+    }
+}
@@ -0,0 +1,89 @@
+package dns;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+
+/**
+ * A UDP server socket over a non-blocking {@link DatagramChannel}, which takes one system call per datagram.
+ * Used wherever {@link LinuxUdpSocket} is not available.
+ */
+final class ChannelUdpSocket implements UdpSocket {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+
+    /**
+     * Wraps a bound channel.
+     * @param channel The channel, which is switched to non-blocking mode.
+     */
+    ChannelUdpSocket(DatagramChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void await(boolean writable) throws IOException {
+        key.interestOps(writable ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        selector.select();
+        selector.selectedKeys().clear();
+    }
+
+    @Override
+    public int receive(Exchange[] batch) throws IOException {
+        int count = 0;
+        while (count < batch.length) {
+            Exchange exchange = batch[count];
+            SocketAddress client = channel.receive(exchange.request);
+            if (client == null)
+                break;
+            exchange.client = client;
+            exchange.receivedAt = System.nanoTime();
+            exchange.length = exchange.request.position();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int send(ArrayDeque<Exchange> replies) throws IOException {
+        int count = 0;
+        for (Exchange exchange : replies) {
+            try {
+                if (channel.send(exchange.response, exchange.client) == 0)
+                    break;
+            } catch (IOException e) {
+                if (count == 0)
+                    throw e;
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean send(Exchange exchange) throws IOException {
+        return channel.send(exchange.response, exchange.client) != 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            selector.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
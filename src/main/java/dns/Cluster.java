@@ -0,0 +1,455 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * A cache tier shared by several servers. Every node knows all members, itself included, and places each
+ * of them at many points of a consistent-hash ring, so every question has one owner that all nodes agree on
+ * and a node joining or leaving moves only the questions next to its points. On a local miss a node first
+ * asks the owner; when the owner has no answer either, the node resolves the question upstream and hands the
+ * result to the owner, so the next node that misses finds it there. Upstream load therefore stays about the
+ * same as nodes are added, instead of growing with them.
+ * <p>
+ * Nodes exchange one UDP datagram per message, big-endian:
+ * <pre>
+ *   u8 version, u8 type, u32 request ID, then by type
+ *   GET, INVALIDATE, FORGET  a DNS query holding the question
+ *   HIT, PUT, WARM           u16 rcode, u32 age and u32 remaining lifetime in milliseconds, and a DNS response
+ *                            holding the question and the records with the TTLs they were received with
+ *   MISS                     nothing
+ * </pre>
+ * Times are relative to the sender's clock, so nodes need not agree on the time. An owner counts the GETs
+ * it answers per question; once a question was asked for {@code hotThreshold} times, the next fresh answer
+ * the owner gets for it, whether from a prefetch, its own lookup or a PUT, is pushed to every peer with
+ * WARM, so that the peers do not all miss at once when their copies expire. INVALIDATE, sent to any node,
+ * e.g. by "Main invalidate", drops a question there and is passed on to every peer as FORGET.
+ * <p>
+ * A peer that lets several GETs in a row time out is marked down, and the questions it owns go to the next
+ * member along the ring that is up, possibly this node, so that a dead peer does not cost every miss a
+ * timeout. A peer that is down is probed with a GET until it answers, and any message from it marks it up
+ * again. Nodes may briefly disagree on who is down; that only costs a few misses.
+ * <p>
+ * Messages are only accepted from the configured peers, and INVALIDATE from any port of a cluster host or
+ * loopback; the cluster port is meant for a private network.
+ */
+public final class Cluster implements Closeable {
+
+    /**
+     * The cache of the local node, as peers read and fill it.
+     */
+    public interface Store {
+
+        /**
+         * Returns the resolution of a question a peer asks for, or null when there is none.
+         * @param question The question.
+         */
+        Resolution get(Question question);
+
+        /**
+         * Stores a resolution sent by a peer.
+         * @param question The question.
+         * @param resolution The resolution.
+         */
+        void put(Question question, Resolution resolution);
+
+        /**
+         * Drops the resolution of a question.
+         * @param question The question.
+         */
+        void remove(Question question);
+    }
+
+    private static final Logger log = Logger.getLogger(Cluster.class.getName());
+
+    private static final byte VERSION = 2;
+    private static final byte GET = 1;
+    private static final byte HIT = 2;
+    private static final byte MISS = 3;
+    private static final byte PUT = 4;
+    private static final byte WARM = 5;
+    private static final byte INVALIDATE = 6;
+    private static final byte FORGET = 7;
+    private static final int HEADER_SIZE = 6;
+    private static final int ENTRY_HEADER_SIZE = 10;
+    private static final int MAX_DATAGRAM_SIZE = 65_507;
+    private static final int VIRTUAL_NODES = 128;
+    private static final int MAX_COUNTED_QUESTIONS = 65_536;
+    private static final int FAILURES_BEFORE_DOWN = 3;
+    private static final long PROBE_INTERVAL_MS = 1000;
+    private static final int PROBE_ID = 0;
+    private static final Question PROBE = new Question(".", RecordType.NS, RecordType.CLASS_IN);
+
+    private final InetSocketAddress self;
+    private final Set<InetSocketAddress> peers;
+    // Consecutive GETs each peer let time out; at FAILURES_BEFORE_DOWN it is down.
+    private final Map<InetSocketAddress, AtomicInteger> failures;
+    // Sorted ring positions, and the member at each of them, or null where it is this node.
+    private final int[] positions;
+    private final InetSocketAddress[] owners;
+    private final long timeoutMs;
+    private final int hotThreshold;
+    private final Store store;
+    private final Metrics metrics;
+    private final DatagramChannel channel;
+    private final ScheduledExecutorService timer;
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<CacheKey, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+    private record Pending(InetSocketAddress peer, Question question, CompletableFuture<Resolution> result) {
+    }
+
+    private record Entry(Question question, Resolution resolution) {
+    }
+
+    private record Point(int position, String name, InetSocketAddress member) {
+    }
+
+    /**
+     * Binds the cluster port and starts the thread that serves peers.
+     * @param self The address of this node, as its peers know it.
+     * @param peers The addresses of the other nodes; this node's own address is ignored, so that every node
+     *              can be given the same list.
+     * @param timeoutMs How long to wait for the owner of a question before going upstream.
+     * @param hotThreshold How many times peers must ask for a question before its refreshes are pushed to them.
+     * @param store The local cache.
+     * @param metrics Counts lookups, warmups and invalidations.
+     */
+    public Cluster(SocketAddress self, List<SocketAddress> peers, long timeoutMs, int hotThreshold, Store store,
+                   Metrics metrics) throws IOException {
+        this.self = (InetSocketAddress) self;
+        this.peers = Set.copyOf(peers.stream().map(InetSocketAddress.class::cast)
+                .filter(peer -> !peer.equals(self)).toList());
+        this.failures = this.peers.stream()
+                .collect(Collectors.toUnmodifiableMap(peer -> peer, peer -> new AtomicInteger()));
+        this.timeoutMs = timeoutMs;
+        this.hotThreshold = Math.max(1, hotThreshold);
+        this.store = store;
+        this.metrics = metrics;
+        List<Point> points = new ArrayList<>();
+        for (InetSocketAddress member : this.peers)
+            addPoints(points, member, member);
+        addPoints(points, this.self, null);
+        points.sort(Comparator.comparingInt(Point::position).thenComparing(Point::name));
+        this.positions = new int[points.size()];
+        this.owners = new InetSocketAddress[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            positions[i] = points.get(i).position();
+            owners[i] = points.get(i).member();
+        }
+        this.channel = DatagramChannel.open().bind(self);
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                runnable -> Thread.ofPlatform().daemon().name("dns-cluster-timer").unstarted(runnable));
+        timer.scheduleWithFixedDelay(this::probe, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Thread.ofPlatform().daemon().name("dns-cluster").start(this::receiveLoop);
+    }
+
+    // Every member is placed by the name its address has on every node, so that all nodes build the same ring.
+    private static void addPoints(List<Point> points, InetSocketAddress address, InetSocketAddress member) {
+        String name = address.getAddress().getHostAddress() + ":" + address.getPort();
+        for (int i = 0; i < VIRTUAL_NODES; i++)
+            points.add(new Point(mix(31 * name.hashCode() + i), name, member));
+    }
+
+    /**
+     * Asks the owner of a question for its resolution.
+     * @param question The question.
+     * @return A future completed with the owner's resolution, or with null when this node owns the question,
+     *         or the owner has none or does not reply in time.
+     */
+    public CompletableFuture<Resolution> get(Question question) {
+        InetSocketAddress owner = owner(CacheKey.of(question));
+        if (owner == null)
+            return CompletableFuture.completedFuture(null);
+        int id = ids.incrementAndGet();
+        if (id == PROBE_ID)
+            id = ids.incrementAndGet();
+        Pending request = new Pending(owner, question, new CompletableFuture<>());
+        pending.put(id, request);
+        send(owner, message(GET, id, question, null));
+        int requestId = id;
+        timer.schedule(() -> {
+            if (pending.remove(requestId, request)) {
+                metrics.countPeerLookup(false, true);
+                onTimeout(owner);
+                request.result().complete(null);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        return request.result();
+    }
+
+    /**
+     * Shares a resolution this node obtained upstream: it goes to the owner of the question, or, when this
+     * node is the owner and peers often ask for the question, to every peer.
+     * @param question The question.
+     * @param resolution The resolution.
+     */
+    public void stored(Question question, Resolution resolution) {
+        if (!resolution.isCacheable() || resolution.isAuthoritative())
+            return;
+        CacheKey key = CacheKey.of(question);
+        InetSocketAddress owner = owner(key);
+        if (owner != null)
+            send(owner, message(PUT, 0, question, resolution));
+        else
+            warmIfHot(key, question, resolution);
+    }
+
+    /**
+     * Drops a question from this node and every peer.
+     * @param question The question.
+     */
+    public void invalidate(Question question) {
+        store.remove(question);
+        ByteBuffer forget = message(FORGET, 0, question, null);
+        for (InetSocketAddress peer : peers)
+            send(peer, forget.duplicate());
+        metrics.countPeerInvalidation();
+    }
+
+    /**
+     * Asks a node to drop a question from the whole cluster, as an operator would after changing a record.
+     * @param node The cluster address of any node.
+     * @param question The question to drop.
+     * @param timeoutMs How long to wait for the node to confirm.
+     * @return Whether the node confirmed.
+     */
+    public static boolean invalidate(SocketAddress node, Question question, long timeoutMs) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout((int) timeoutMs);
+            int id = ThreadLocalRandom.current().nextInt();
+            ByteBuffer request = message(INVALIDATE, id, question, null);
+            socket.send(new DatagramPacket(request.array(), request.limit(), node));
+            DatagramPacket reply = new DatagramPacket(new byte[HEADER_SIZE], HEADER_SIZE);
+            try {
+                socket.receive(reply);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            ByteBuffer data = ByteBuffer.wrap(reply.getData(), 0, reply.getLength());
+            return data.remaining() == HEADER_SIZE && data.get(1) == MISS && data.getInt(2) == id;
+        }
+    }
+
+    // Returns the member owning a key, or null when it is this node: the first member at or after the key's
+    // position on the ring that is up.
+    private InetSocketAddress owner(CacheKey key) {
+        int index = Arrays.binarySearch(positions, mix(key.hashCode()));
+        if (index < 0)
+            index = -index - 1;
+        for (int i = 0; i < owners.length; i++) {
+            InetSocketAddress owner = owners[(index + i) % owners.length];
+            if (owner == null || failures.get(owner).get() < FAILURES_BEFORE_DOWN)
+                return owner;
+        }
+        return null;
+    }
+
+    private void onTimeout(InetSocketAddress peer) {
+        if (failures.get(peer).incrementAndGet() == FAILURES_BEFORE_DOWN)
+            log.log(Level.WARNING, "Cluster peer {0} is down after {1} timeouts, its questions go to the next node",
+                    new Object[]{peer, FAILURES_BEFORE_DOWN});
+    }
+
+    // Any message from a peer shows that it is up.
+    private void onMessage(InetSocketAddress peer) {
+        AtomicInteger count = failures.get(peer);
+        if (count.get() != 0 && count.getAndSet(0) >= FAILURES_BEFORE_DOWN)
+            log.log(Level.INFO, "Cluster peer {0} is up again", peer);
+    }
+
+    // Sends a GET to every peer that is down; its HIT or MISS marks it up again.
+    private void probe() {
+        ByteBuffer get = message(GET, PROBE_ID, PROBE, null);
+        for (InetSocketAddress peer : peers)
+            if (failures.get(peer).get() >= FAILURES_BEFORE_DOWN)
+                send(peer, get.duplicate());
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        while (channel.isOpen()) {
+            InetSocketAddress sender = null;
+            try {
+                buffer.clear();
+                sender = (InetSocketAddress) channel.receive(buffer);
+                handle(sender, buffer.flip());
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Error reading from cluster port: {0}", e.getMessage());
+            } catch (RuntimeException e) {
+                log.log(Level.FINE, "Dropping malformed cluster message from {0}: {1}",
+                        new Object[]{sender, e.getMessage()});
+            }
+        }
+    }
+
+    private void handle(InetSocketAddress sender, ByteBuffer message) {
+        if (message.remaining() < HEADER_SIZE || message.get() != VERSION)
+            return;
+        byte type = message.get();
+        int id = message.getInt();
+        if (peers.contains(sender))
+            onMessage(sender);
+        else if (!(type == INVALIDATE && isClusterHost(sender.getAddress())))
+            return;
+        switch (type) {
+            case GET -> answer(sender, id, question(message));
+            case HIT -> complete(sender, id, entry(message, sender));
+            case MISS -> complete(sender, id, null);
+            case PUT -> {
+                Entry entry = entry(message, sender);
+                store.put(entry.question(), entry.resolution());
+                CacheKey key = CacheKey.of(entry.question());
+                if (owner(key) == null)
+                    warmIfHot(key, entry.question(), entry.resolution());
+            }
+            case WARM -> {
+                Entry entry = entry(message, sender);
+                store.put(entry.question(), entry.resolution());
+            }
+            case INVALIDATE -> {
+                invalidate(question(message));
+                send(sender, message(MISS, id, null, null));
+            }
+            case FORGET -> store.remove(question(message));
+            default -> {
+            }
+        }
+    }
+
+    // Returns whether an address is this host or the host of a peer, from where operators may invalidate.
+    private boolean isClusterHost(InetAddress address) {
+        if (address.isLoopbackAddress() || address.equals(self.getAddress()))
+            return true;
+        for (InetSocketAddress peer : peers)
+            if (peer.getAddress().equals(address))
+                return true;
+        return false;
+    }
+
+    // Answers a GET from the local cache and counts the question towards pushing its refreshes to peers.
+    private void answer(InetSocketAddress peer, int id, Question question) {
+        if (requests.size() >= MAX_COUNTED_QUESTIONS)
+            requests.clear();
+        requests.computeIfAbsent(CacheKey.of(question), key -> new AtomicInteger()).incrementAndGet();
+        Resolution resolution = store.get(question);
+        boolean hit = resolution != null && resolution.isCacheable() && !resolution.isAuthoritative();
+        send(peer, hit ? message(HIT, id, question, resolution) : message(MISS, id, null, null));
+    }
+
+    private void complete(InetSocketAddress peer, int id, Entry entry) {
+        Pending request = pending.get(id);
+        if (request == null || !request.peer().equals(peer)
+                || entry != null && !entry.question().equals(request.question())
+                || !pending.remove(id, request))
+            return;
+        metrics.countPeerLookup(entry != null, false);
+        request.result().complete(entry == null ? null : entry.resolution());
+    }
+
+    // Pushes a fresh resolution to every peer when peers asked for it often enough since the last push.
+    private void warmIfHot(CacheKey key, Question question, Resolution resolution) {
+        AtomicInteger count = requests.get(key);
+        if (count == null || count.get() < hotThreshold || !requests.remove(key, count))
+            return;
+        ByteBuffer warm = message(WARM, 0, question, resolution);
+        for (InetSocketAddress peer : peers)
+            send(peer, warm.duplicate());
+        metrics.countPeerWarmup();
+    }
+
+    private void send(InetSocketAddress peer, ByteBuffer message) {
+        if (message.remaining() > MAX_DATAGRAM_SIZE)
+            return;
+        try {
+            channel.send(message, peer);
+        } catch (IOException e) {
+            if (channel.isOpen())
+                log.log(Level.FINE, "Cannot send to cluster peer {0}: {1}", new Object[]{peer, e.getMessage()});
+        }
+    }
+
+    // Encodes a message with a question, a question and its resolution, or neither.
+    private static ByteBuffer message(byte type, int id, Question question, Resolution resolution) {
+        byte[] body = question == null ? new byte[0]
+                : resolution != null ? resolution.toMessage(question)
+                : new Message(new Header((short) 0, (short) 0, (short) 1, (short) 0, (short) 0, (short) 0),
+                List.of(question), List.of()).getMessage();
+        int size = HEADER_SIZE + (resolution != null ? ENTRY_HEADER_SIZE : 0) + body.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size).put(VERSION).put(type).putInt(id);
+        if (resolution != null) {
+            long now = System.currentTimeMillis();
+            buffer.putShort((short) resolution.getRcode())
+                    .putInt(Math.clamp(now - resolution.getStoredAt(), 0, Integer.MAX_VALUE))
+                    .putInt(Math.clamp(resolution.getExpiresAt() - now, 0, Integer.MAX_VALUE));
+        }
+        return buffer.put(body).flip();
+    }
+
+    private static Question question(ByteBuffer message) {
+        Message query = parse(message);
+        if (query.getQuestions().size() != 1)
+            throw new IllegalArgumentException("Expected one question but got " + query.getQuestions().size());
+        return query.getQuestions().getFirst();
+    }
+
+    private static Entry entry(ByteBuffer message, InetSocketAddress peer) {
+        int rcode = message.getShort() & 0xFFFF;
+        long age = message.getInt();
+        long remaining = message.getInt();
+        long now = System.currentTimeMillis();
+        Message response = parse(message);
+        if (response.getQuestions().size() != 1)
+            throw new IllegalArgumentException("Expected one question but got " + response.getQuestions().size());
+        return new Entry(response.getQuestions().getFirst(),
+                Resolution.restore(response, rcode, now - age, now + remaining, peer));
+    }
+
+    private static Message parse(ByteBuffer message) {
+        byte[] data = new byte[message.remaining()];
+        message.get(data);
+        return new Parser().parse(data);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public void close() throws IOException {
+        timer.shutdownNow();
+        channel.close();
+    }
+}
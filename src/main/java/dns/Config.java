@@ -0,0 +1,186 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Command-line options of the DNS server.
+ * Options are given as "--name value" pairs, e.g. "--resolver 8.8.8.8:53 --max-inflight 1024", on the
+ * command line or in an options file named by "--config", which holds the same pairs separated by
+ * whitespace or newlines, with '#' starting a comment.
+ */
+public class Config {
+
+    private static final String OPTION_PREFIX = "--";
+    private static final String ADDRESS_SEPARATOR = ":";
+    private static final String LIST_SEPARATOR = ",";
+    private static final String COMMENT = "#";
+
+    private final Map<String, String> options;
+
+    private Config(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Parses the command-line arguments into a configuration.
+     * @param args The arguments passed to the program.
+     * @return The parsed configuration.
+     */
+    public static Config parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith(OPTION_PREFIX))
+                continue;
+            String value = "";
+            if (i + 1 < args.length && !args[i + 1].startsWith(OPTION_PREFIX))
+                value = args[++i];
+            options.put(name, value);
+        }
+        return new Config(options);
+    }
+
+    /**
+     * Parses the command-line arguments and then the options file they name with "--config", if any.
+     * Options in the file override those on the command line, so that editing the file and loading it
+     * again changes them.
+     * @param args The arguments passed to the program.
+     * @return The merged configuration.
+     */
+    public static Config load(String[] args) throws IOException {
+        Config config = parse(args);
+        String file = config.options.get("--config");
+        if (file == null || file.isEmpty())
+            return config;
+        List<String> tokens = new ArrayList<>();
+        for (String line : Files.readAllLines(Path.of(file))) {
+            int comment = line.indexOf(COMMENT);
+            String content = (comment < 0 ? line : line.substring(0, comment)).strip();
+            if (!content.isEmpty())
+                tokens.addAll(List.of(content.split("\\s+")));
+        }
+        config.options.putAll(parse(tokens.toArray(String[]::new)).options);
+        return config;
+    }
+
+    /**
+     * Returns whether some options have the same values in this configuration and another one.
+     * @param other The configuration to compare with.
+     * @param names The option names, including the leading dashes.
+     */
+    public boolean sameOptions(Config other, List<String> names) {
+        for (String name : names)
+            if (!Objects.equals(options.get(name), other.options.get(name)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the upstream resolvers given by "--resolver ip:port[,ip:port...]", or an empty list when none is configured.
+     */
+    public List<SocketAddress> getResolvers() {
+        return getAddresses("--resolver");
+    }
+
+    /**
+     * Returns the addresses given by an option as "ip:port[,ip:port...]", or an empty list when it is absent.
+     * @param name The option name, including the leading dashes.
+     */
+    public List<SocketAddress> getAddresses(String name) {
+        List<SocketAddress> addresses = new ArrayList<>();
+        for (String address : getList(name)) {
+            try {
+                addresses.add(parseAddress(address));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Option " + name + ": " + e.getMessage(), e);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns whether an option is present, with or without a value.
+     * @param name The option name, including the leading dashes.
+     */
+    public boolean has(String name) {
+        return options.containsKey(name);
+    }
+
+    /**
+     * Returns the integer value of an option.
+     * @param name The option name, including the leading dashes.
+     * @param defaultValue The value used when the option is absent.
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " expects a number but was: " + value, e);
+        }
+    }
+
+    /**
+     * Returns the decimal value of an option.
+     * @param name The option name, including the leading dashes.
+     * @param defaultValue The value used when the option is absent.
+     */
+    public double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " expects a number but was: " + value, e);
+        }
+    }
+
+    /**
+     * Returns the value of an option.
+     * @param name The option name, including the leading dashes.
+     * @param defaultValue The value used when the option is absent or has no value.
+     */
+    public String getString(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    /**
+     * Returns the comma-separated values of an option, or an empty list when it is absent.
+     * @param name The option name, including the leading dashes.
+     */
+    public List<String> getList(String name) {
+        String value = options.get(name);
+        if (value == null || value.isEmpty())
+            return List.of();
+        return List.of(value.split(LIST_SEPARATOR));
+    }
+
+    /**
+     * Parses an "ip:port" pair into a socket address.
+     * @param address The address to parse.
+     */
+    static SocketAddress parseAddress(String address) {
+        int separator = address.lastIndexOf(ADDRESS_SEPARATOR);
+        if (separator < 0)
+            throw new IllegalArgumentException("Address must be given as ip:port but was: " + address);
+        String ip = address.substring(0, separator);
+        try {
+            return new InetSocketAddress(ip, Integer.parseInt(address.substring(separator + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Address must be given as ip:port but was: " + address, e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The EDNS(0) parameters a message carries in its OPT pseudo-record (RFC 6891).
+ * The OPT record is owned by the root name; its class holds the largest UDP payload the sender can
+ * receive, and its TTL holds the upper 8 bits of the 12-bit extended RCODE, the EDNS version and
+ * the flags, of which only DO (DNSSEC OK, RFC 3225) is defined.
+ */
+public final class Edns {
+
+    public static final int MIN_PAYLOAD_SIZE = 512;
+    public static final int MAX_PAYLOAD_SIZE = 4096;
+    public static final int VERSION = 0;
+    public static final int BADVERS = 16;
+
+    /**
+     * The length of an OPT record without options.
+     */
+    public static final int RECORD_SIZE = 11;
+
+    private static final int DNSSEC_OK_FLAG = 0x8000;
+    private static final byte[] NO_OPTIONS = new byte[0];
+
+    private final int payloadSize;
+    private final int extendedRcode;
+    private final int version;
+    private final boolean dnssecOk;
+
+    private Edns(int payloadSize, int extendedRcode, int version, boolean dnssecOk) {
+        this.payloadSize = payloadSize;
+        this.extendedRcode = extendedRcode;
+        this.version = version;
+        this.dnssecOk = dnssecOk;
+    }
+
+    /**
+     * Returns the EDNS parameters of a message.
+     * @param message The message.
+     * @return The parameters, or null when the message has no OPT record.
+     * @throws IllegalArgumentException When the message has more than one OPT record.
+     */
+    public static Edns of(Message message) {
+        Edns edns = null;
+        for (Answer record : message.getAdditionals()) {
+            if (record.getQType() != RecordType.OPT)
+                continue;
+            if (edns != null)
+                throw new IllegalArgumentException("Message has more than one OPT record");
+            int ttl = record.getTtl();
+            edns = new Edns(record.getQClass() & 0xFFFF, ttl >>> 24, (ttl >>> 16) & 0xFF,
+                    (ttl & DNSSEC_OK_FLAG) != 0);
+        }
+        return edns;
+    }
+
+    /**
+     * Builds an OPT record.
+     * @param payloadSize The largest UDP payload this side can receive.
+     * @param rcode The full 12-bit response code; its lower 4 bits belong in the header.
+     * @param dnssecOk Whether the DO flag is set.
+     */
+    public static Answer record(int payloadSize, int rcode, boolean dnssecOk) {
+        return new Answer("", RecordType.OPT, (short) payloadSize, ttl(rcode, dnssecOk), NO_OPTIONS);
+    }
+
+    /**
+     * Writes an OPT record into a buffer without creating any objects.
+     * @param buffer The buffer to write to.
+     * @param payloadSize The largest UDP payload this side can receive.
+     * @param rcode The full 12-bit response code; its lower 4 bits belong in the header.
+     * @param dnssecOk Whether the DO flag is set.
+     */
+    public static void write(ByteBuffer buffer, int payloadSize, int rcode, boolean dnssecOk) {
+        buffer.put((byte) 0);
+        buffer.putShort(RecordType.OPT);
+        buffer.putShort((short) payloadSize);
+        buffer.putInt(ttl(rcode, dnssecOk));
+        buffer.putShort((short) 0);
+    }
+
+    /**
+     * Returns the largest response to send over UDP for a requester's advertised payload size.
+     * @param requested The payload size of the request's OPT record.
+     * @param limit The largest payload this server sends.
+     */
+    public static int negotiate(int requested, int limit) {
+        return Math.max(MIN_PAYLOAD_SIZE, Math.min(requested, limit));
+    }
+
+    /**
+     * Returns the largest UDP payload the sender can receive.
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Returns the full response code of a message carrying these parameters.
+     * @param header The header of the message, holding the lower 4 bits.
+     */
+    public int getRcode(Header header) {
+        return extendedRcode << 4 | (header.getRcode() & 15);
+    }
+
+    /**
+     * Returns the EDNS version.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns whether the sender understands DNSSEC records (the DO flag).
+     */
+    public boolean isDnssecOk() {
+        return dnssecOk;
+    }
+
+    private static int ttl(int rcode, boolean dnssecOk) {
+        return (rcode >>> 4 & 0xFF) << 24 | VERSION << 16 | (dnssecOk ? DNSSEC_OK_FLAG : 0);
+    }
+}
@@ -0,0 +1,100 @@
+package dns;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A complete single-question response encoded once and replayed for every later hit.
+ * Serving it is a copy of the bytes followed by a few patches: the transaction ID, the RD bit,
+ * the question name (to echo the client's exact casing) and the TTL fields, aged by the time
+ * elapsed since the records were received unless they are authoritative.
+ */
+public final class EncodedResponse {
+
+    private static final int BUFFER_SIZE = Edns.MAX_PAYLOAD_SIZE;
+    private static final int RECURSION_DESIRED_FLAG = 0x0100;
+
+    // Stands in for responses too large to pre-encode, so they are not re-encoded on every hit.
+    private static final EncodedResponse UNENCODABLE = new EncodedResponse(null, new byte[0], -1, new int[0], new int[0]);
+
+    private final Resolution resolution;
+    private final byte[] bytes;
+    private final int questionEnd;
+    private final int[] ttlOffsets;
+    private final int[] ttls;
+
+    private EncodedResponse(Resolution resolution, byte[] bytes, int questionEnd, int[] ttlOffsets, int[] ttls) {
+        this.resolution = resolution;
+        this.bytes = bytes;
+        this.questionEnd = questionEnd;
+        this.ttlOffsets = ttlOffsets;
+        this.ttls = ttls;
+    }
+
+    /**
+     * Encodes the response to the single question of a request.
+     * @param resolution The resolution of the question.
+     * @param request The reader holding the request.
+     * @param flags The response flags, without the RD bit.
+     * @return The encoded response; one that never writes when it does not fit in the largest UDP payload.
+     */
+    static EncodedResponse of(Resolution resolution, WireReader request, short flags) {
+        List<Answer> answers = resolution.getAnswers();
+        List<Answer> authorities = resolution.getAuthorities();
+        List<Answer> additionals = resolution.getAdditionals();
+        int recordCount = answers.size() + authorities.size() + additionals.size();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int[] ttlOffsets = new int[recordCount];
+        int[] ttls = new int[recordCount];
+        // Names in the records may point into the question, which every hit overwrites with a name that
+        // differs at most in case.
+        Map<String, Integer> compression = new HashMap<>();
+        Wire.addName(compression, request.getQuestion(0).getDomain(), Wire.HEADER_SIZE);
+        try {
+            Wire.putHeader(buffer, (short) 0, flags, 1, answers.size(), authorities.size(), additionals.size());
+            Wire.putRegion(buffer, request.getData(), Wire.HEADER_SIZE, request.getQuestionsEnd() - Wire.HEADER_SIZE);
+            int questionEnd = buffer.position();
+            int record = 0;
+            for (List<Answer> section : List.of(answers, authorities, additionals)) {
+                for (Answer answer : section) {
+                    ttlOffsets[record] = answer.writeTo(buffer, compression);
+                    ttls[record++] = answer.getTtl();
+                }
+            }
+            return new EncodedResponse(resolution, Arrays.copyOf(buffer.array(), buffer.position()), questionEnd,
+                    ttlOffsets, ttls);
+        } catch (BufferOverflowException e) {
+            return UNENCODABLE;
+        }
+    }
+
+    /**
+     * Copies the response for a request into a buffer and patches it for that request.
+     * @param buffer The buffer to write to, positioned at the start of the message.
+     * @param request The reader holding the request, whose question must match this response.
+     * @param now The current time in milliseconds.
+     * @return Whether the response was written; false when the request's question section differs in length.
+     */
+    boolean writeTo(ByteBuffer buffer, WireReader request, long now) {
+        int questionLength = request.getQuestionsEnd() - Wire.HEADER_SIZE;
+        if (this == UNENCODABLE || questionLength != questionEnd - Wire.HEADER_SIZE || buffer.remaining() < bytes.length)
+            return false;
+        int start = buffer.position();
+        buffer.put(bytes);
+        buffer.putShort(start, request.getId());
+        int flags = bytes[2] << 8 | (bytes[3] & 0xFF);
+        if (request.isRd())
+            flags |= RECURSION_DESIRED_FLAG;
+        buffer.putShort(start + 2, (short) flags);
+        buffer.put(start + Wire.HEADER_SIZE, request.getData(), Wire.HEADER_SIZE, questionLength);
+        int elapsed = resolution.getElapsedSeconds(now);
+        if (elapsed > 0)
+            for (int i = 0; i < ttlOffsets.length; i++)
+                buffer.putInt(start + ttlOffsets[i], Math.max(0, ttls[i] - elapsed));
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+package dns;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Scratch state of one UDP request: direct receive and response buffers, the client address and receive
+ * time, the wire decoder and a cache probe. The server pools exchanges, so a request answered entirely from the
+ * cache is decoded, looked up and encoded without allocating anything, and the kernel reads and writes
+ * the direct buffers without an intermediate copy. A {@link LinuxUdpSocket} also keeps the client's address
+ * here in kernel format, reaches the buffers through their native addresses and captures the errno of a
+ * single send into {@link #callState}; the address is only decoded into a {@link SocketAddress} when a
+ * request leaves the cache-hit path.
+ */
+final class Exchange {
+
+    private static final int BUFFER_SIZE = Edns.MAX_PAYLOAD_SIZE;
+
+    final ByteBuffer request = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    final ByteBuffer response = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    final ByteBuffer peer = ByteBuffer.allocateDirect(LinuxUdpSocket.ADDRESS_SIZE).order(ByteOrder.nativeOrder());
+    final long requestAddress = MemorySegment.ofBuffer(request).address();
+    final long responseAddress = MemorySegment.ofBuffer(response).address();
+    final long peerAddress = MemorySegment.ofBuffer(peer).address();
+    final MemorySegment callState = Arena.ofAuto().allocate(Linker.Option.captureStateLayout());
+    final WireReader reader = new WireReader();
+    final CacheKey probe = CacheKey.probe();
+    final Resolution[] hits = new Resolution[WireReader.MAX_QUESTIONS];
+    SocketAddress client;
+    int peerLength;
+    int length;
+    long receivedAt;
+
+    // Returns the client's address, decoding it from kernel format on first use.
+    SocketAddress getClient() {
+        if (client == null && peerLength > 0)
+            client = LinuxUdpSocket.getAddress(peer);
+        return client;
+    }
+
+    // Copies the received request out of the direct buffer for the Parser.
+    byte[] getRequestBytes() {
+        byte[] data = new byte[length];
+        request.get(0, data);
+        return data;
+    }
+
+    // Prepares the exchange for the next receive.
+    void reset() {
+        request.clear();
+        response.clear();
+        client = null;
+        peerLength = 0;
+        Arrays.fill(hits, null);
+    }
+}
@@ -21,8 +21,8 @@ public class Header {
     private final short flags;
     private final short qdCount;
     private short anCount;
-    private final short nsCount;
-    private final short arCount;
+    private short nsCount;
+    private short arCount;
 
     /**
      * Returns the ID of the DNS message.
@@ -88,8 +88,9 @@ public class Header {
         this.qr = (byte) (firstHalf & (1 << 7));
         this.opcode = (byte) ((firstHalf >> 3) & 15);
         this.aa = false;
-        this.tc = false;
+        this.tc = (firstHalf & 2) != 0;
         this.rd = (firstHalf & 1) != 0;
+        this.rcode = (byte) (flagBytes[1] & 15);
     }
 
     /**
@@ -103,7 +104,7 @@ public class Header {
                 | ((tc ? 1 : 0) << 1)
                 | (rd ? 1 : 0));
 
-        byte flagsSecondHalf = (byte) (((ra ? 1 : 0) << 7) | ((opcode == 0) ? 0 : 4));
+        byte flagsSecondHalf = (byte) (((ra ? 1 : 0) << 7) | ((opcode == 0) ? (rcode & 15) : 4));
         return new byte[]{flagsFirstHalf, flagsSecondHalf};
     }
 
@@ -129,6 +130,28 @@ public class Header {
         return qdCount;
     }
 
+    /**
+     * Returns whether recursion is desired (RD flag).
+     */
+    public boolean isRd() {
+        return rd;
+    }
+
+    /**
+     * Returns the response code of the DNS message.
+     */
+    public byte getRcode() {
+        return rcode;
+    }
+
+    /**
+     * Sets the response code of the DNS message.
+     * @param rcode The new response code.
+     */
+    public void setRcode(byte rcode) {
+        this.rcode = rcode;
+    }
+
     /**
      * Sets the QR flag of the DNS message.
      * @param i The new value for the QR flag.
@@ -145,6 +168,45 @@ public class Header {
         this.anCount = anCount;
     }
 
+    /**
+     * Sets the count of authority records in the DNS message.
+     * @param nsCount The new count of authority records.
+     */
+    public void setNsCount(short nsCount) {
+        this.nsCount = nsCount;
+    }
+
+    /**
+     * Sets the count of additional records in the DNS message.
+     * @param arCount The new count of additional records.
+     */
+    public void setArCount(short arCount) {
+        this.arCount = arCount;
+    }
+
+    /**
+     * Sets the AA flag, marking the answer as authoritative.
+     * @param aa The new value for the AA flag.
+     */
+    public void setAa(boolean aa) {
+        this.aa = aa;
+    }
+
+    /**
+     * Returns whether the message was truncated (TC flag).
+     */
+    public boolean isTc() {
+        return tc;
+    }
+
+    /**
+     * Sets the TC flag, telling the client that the message was truncated and should be retried over TCP.
+     * @param tc The new value for the TC flag.
+     */
+    public void setTc(boolean tc) {
+        this.tc = tc;
+    }
+
     /**
      * Provides a string representation of the DNS message header.
      * @return A string representation of the DNS message header.
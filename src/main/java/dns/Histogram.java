@@ -0,0 +1,80 @@
+package dns;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A durations histogram with fixed bucket bounds, as Prometheus exposes them, that many threads record into
+ * at once. Every thread counts into one of several stripes picked by its thread ID, so recording is two
+ * uncontended atomic increments and an add without locks or allocation; the stripes are only summed when the
+ * histogram is read. Unlike {@link LatencyHistogram}, which keeps every value to 1% for offline reports, the
+ * buckets here are coarse and cumulative, which is what a scraper aggregates across servers.
+ */
+public final class Histogram {
+
+    private static final long[] BOUNDS_NANOS = {
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000, 100_000_000, 250_000_000,
+            500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L};
+    private static final int SUM = BOUNDS_NANOS.length + 1;
+    // Each stripe is padded to its own cache lines so that threads on different stripes do not share one.
+    private static final int STRIDE = (SUM + 1 + 7) & ~7;
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2);
+    private static final String[] BOUND_LABELS = new String[BOUNDS_NANOS.length + 1];
+
+    static {
+        for (int i = 0; i < BOUNDS_NANOS.length; i++)
+            BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS_NANOS[i], 9).stripTrailingZeros().toPlainString();
+        BOUND_LABELS[BOUNDS_NANOS.length] = "+Inf";
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIDE);
+
+    /**
+     * Records one duration.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket])
+            bucket++;
+        int stripe = (int) (Thread.currentThread().threadId() & (STRIPES - 1)) * STRIDE;
+        counts.getAndIncrement(stripe + bucket);
+        counts.getAndAdd(stripe + SUM, nanos);
+    }
+
+    /**
+     * Records the time elapsed since a start time taken from {@link System#nanoTime()}.
+     * @param startNanos The start time.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format: a cumulative count per bucket bound in seconds,
+     * then the sum of all durations in seconds and their count.
+     * @param out The text to append to.
+     * @param name The metric name.
+     * @param labels Labels of the series, such as {@code resolver="1.1.1.1:53"}, or an empty string.
+     */
+    public void writeTo(StringBuilder out, String name, String labels) {
+        long[] buckets = new long[BOUNDS_NANOS.length + 1];
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES * STRIDE; stripe += STRIDE) {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] += counts.get(stripe + i);
+            sum += counts.get(stripe + SUM);
+        }
+        String separator = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i];
+            out.append(name).append("_bucket{").append(separator).append("le=\"").append(BOUND_LABELS[i])
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(sum / 1e9).append('\n');
+        out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,100 @@
+package dns;
+
+/**
+ * A latency histogram in the style of HdrHistogram: values are counted in buckets whose width doubles
+ * with every power of two, each split into a fixed number of linear sub-buckets, so every recorded value
+ * keeps a relative precision of 1 / {@value #SUB_BUCKETS} whatever its magnitude while the whole range
+ * of a long fits in a few thousand counters. Recording is a single array increment; a histogram is meant
+ * to be written by one thread at a time.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long total;
+    private long max;
+    private double sum;
+
+    /**
+     * Counts one value.
+     * @param value The value, e.g. a latency in microseconds; negative values count as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts[index(v)]++;
+        total++;
+        sum += v;
+        max = Math.max(max, v);
+    }
+
+    /**
+     * Adds every value recorded by another histogram to this one.
+     * @param other The histogram to add; it must not be written to concurrently.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of the recorded values, or 0 when there are none.
+     */
+    public double getMean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * Returns the value below or at which the given share of the recorded values lie, rounded up to the
+     * top of its bucket.
+     * @param percentile The share in percent, e.g. 99.9.
+     */
+    public long getPercentile(double percentile) {
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(max, highestValue(i));
+        }
+        return max;
+    }
+
+    // Values below SUB_BUCKETS are counted exactly; above, the bucket is chosen by the highest set bit and the
+    // sub-bucket by the SUB_BUCKET_BITS bits right below it, so value >>> shift lies in [SUB_BUCKETS, 2 * SUB_BUCKETS).
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // The inverse of index(): the largest value counted in a bucket.
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,410 @@
+package dns;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * A UDP server socket that receives and sends a whole batch of datagrams with a single recvmmsg or sendmmsg
+ * call, made through the foreign function API, where a {@link java.nio.channels.DatagramChannel} makes one
+ * call per datagram. Datagrams move straight between the kernel and the exchanges' direct buffers, and each
+ * client's socket address stays in its exchange in kernel format, so neither receiving nor replying
+ * allocates: the address is only decoded when a request needs it as a {@link java.net.SocketAddress}, and
+ * rate limiting and the query log read its bytes where they are.
+ * <p>
+ * The structure layouts and constants below are those of 64-bit Linux on x86-64 and AArch64, so
+ * {@link #isSupported} only holds there, and only when the C library provides the calls and native access
+ * is allowed. Like a DatagramChannel, the socket is an IPv6 socket that accepts IPv4 as well, or an IPv4
+ * one where the kernel has no IPv6.
+ */
+final class LinuxUdpSocket implements UdpSocket {
+
+    /**
+     * The room an exchange keeps for a client's socket address, the size of a sockaddr_in6.
+     */
+    static final int ADDRESS_SIZE = 28;
+
+    private static final Logger log = Logger.getLogger(LinuxUdpSocket.class.getName());
+
+    private static final int AF_INET = 2;
+    private static final int AF_INET6 = 10;
+    private static final int SOCKADDR_IN_SIZE = 16;
+    private static final int SIN_ADDR = 4;
+    private static final int SIN6_ADDR = 8;
+    private static final int MAPPED_IPV4_ADDR = 20;
+    private static final int SOCK_DGRAM = 2;
+    private static final int SOCK_NONBLOCK = 0x800;
+    private static final int SOCK_CLOEXEC = 0x80000;
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_REUSEPORT = 15;
+    private static final int IPPROTO_IPV6 = 41;
+    private static final int IPV6_V6ONLY = 26;
+    private static final int MSG_DONTWAIT = 0x40;
+    private static final int SHUT_RDWR = 2;
+    private static final short POLLIN = 0x1;
+    private static final short POLLOUT = 0x4;
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+    private static final int EAFNOSUPPORT = 97;
+    private static final int POLL_TIMEOUT_MS = 1000;
+
+    // struct mmsghdr is a struct msghdr (name, namelen, iov, iovlen, control, controllen, flags) followed
+    // by msg_len; struct iovec is a base address and a length.
+    private static final int MMSGHDR_SIZE = 64;
+    private static final int MSG_NAME = 0;
+    private static final int MSG_NAMELEN = 8;
+    private static final int MSG_IOV = 16;
+    private static final int MSG_IOVLEN = 24;
+    private static final int MSG_LEN = 56;
+    private static final int IOVEC_SIZE = 16;
+    private static final int POLLFD_SIZE = 8;
+
+    private static final Natives NATIVES = loadNatives();
+
+    // Downcall handles of the C library functions. Each takes a segment for the captured errno first.
+    private record Natives(MethodHandle socket, MethodHandle setsockopt, MethodHandle bind, MethodHandle poll,
+                           MethodHandle recvmmsg, MethodHandle sendmmsg, MethodHandle sendto,
+                           MethodHandle shutdown, MethodHandle close, long errnoOffset) {
+    }
+
+    private final int fd;
+    private final int batchSize;
+    // Used by the I/O thread only; sockets are few, so the memory is left to the garbage collector.
+    private final MemorySegment state;
+    private final MemorySegment pollFd;
+    private final MemorySegment receiveHeaders;
+    private final MemorySegment receiveVectors;
+    private final MemorySegment sendHeaders;
+    private final MemorySegment sendVectors;
+    private volatile boolean open = true;
+
+    private LinuxUdpSocket(int fd, int batchSize, Arena arena) {
+        this.fd = fd;
+        this.batchSize = batchSize;
+        state = arena.allocate(Linker.Option.captureStateLayout());
+        pollFd = arena.allocate(POLLFD_SIZE, 8);
+        receiveHeaders = arena.allocate((long) MMSGHDR_SIZE * batchSize, 8);
+        receiveVectors = arena.allocate((long) IOVEC_SIZE * batchSize, 8);
+        sendHeaders = arena.allocate((long) MMSGHDR_SIZE * batchSize, 8);
+        sendVectors = arena.allocate((long) IOVEC_SIZE * batchSize, 8);
+        receiveHeaders.fill((byte) 0);
+        sendHeaders.fill((byte) 0);
+        for (int i = 0; i < batchSize; i++) {
+            long header = (long) i * MMSGHDR_SIZE;
+            receiveHeaders.set(JAVA_LONG, header + MSG_IOV, receiveVectors.address() + (long) i * IOVEC_SIZE);
+            receiveHeaders.set(JAVA_LONG, header + MSG_IOVLEN, 1);
+            sendHeaders.set(JAVA_LONG, header + MSG_IOV, sendVectors.address() + (long) i * IOVEC_SIZE);
+            sendHeaders.set(JAVA_LONG, header + MSG_IOVLEN, 1);
+        }
+        pollFd.set(JAVA_INT, 0, fd);
+    }
+
+    /**
+     * Returns whether batched UDP system calls are available on this platform.
+     */
+    static boolean isSupported() {
+        return NATIVES != null;
+    }
+
+    /**
+     * Opens a socket bound to the wildcard address.
+     * @param port The port to bind.
+     * @param reusePort Whether to set SO_REUSEPORT, so that several sockets share the port.
+     * @param batchSize The most datagrams moved by one call.
+     * @throws IOException When the socket cannot be opened or bound, or the platform is not supported.
+     */
+    static LinuxUdpSocket open(int port, boolean reusePort, int batchSize) throws IOException {
+        if (NATIVES == null)
+            throw new IOException("Batched UDP system calls are not supported on this platform");
+        Arena arena = Arena.ofAuto();
+        MemorySegment state = arena.allocate(Linker.Option.captureStateLayout());
+        int family = AF_INET6;
+        int fd = call(NATIVES.socket(), state, family, SOCK_DGRAM | SOCK_NONBLOCK | SOCK_CLOEXEC, 0);
+        if (fd < 0 && errno(state) == EAFNOSUPPORT) {
+            family = AF_INET;
+            fd = call(NATIVES.socket(), state, family, SOCK_DGRAM | SOCK_NONBLOCK | SOCK_CLOEXEC, 0);
+        }
+        if (fd < 0)
+            throw new IOException("Cannot open UDP socket: errno " + errno(state));
+        try {
+            MemorySegment value = arena.allocate(JAVA_INT);
+            value.set(JAVA_INT, 0, 0);
+            if (family == AF_INET6 && call(NATIVES.setsockopt(), state, fd, IPPROTO_IPV6, IPV6_V6ONLY, value, 4) < 0)
+                throw new IOException("Cannot accept IPv4 on an IPv6 socket: errno " + errno(state));
+            value.set(JAVA_INT, 0, 1);
+            if (reusePort && call(NATIVES.setsockopt(), state, fd, SOL_SOCKET, SO_REUSEPORT, value, 4) < 0)
+                throw new IOException("Cannot set SO_REUSEPORT: errno " + errno(state));
+            // sockaddr_in and sockaddr_in6 both start with the family in host order and the port in network
+            // order; the wildcard address is all zeros.
+            int length = family == AF_INET6 ? ADDRESS_SIZE : SOCKADDR_IN_SIZE;
+            MemorySegment address = arena.allocate(length, 8).fill((byte) 0);
+            address.set(JAVA_SHORT, 0, (short) family);
+            address.set(JAVA_SHORT.withOrder(ByteOrder.BIG_ENDIAN), 2, (short) port);
+            if (call(NATIVES.bind(), state, fd, address, length) < 0)
+                throw new IOException("Cannot bind UDP port " + port + ": errno " + errno(state));
+        } catch (IOException | RuntimeException e) {
+            call(NATIVES.close(), state, fd);
+            throw e;
+        }
+        return new LinuxUdpSocket(fd, batchSize, arena);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Polls with a timeout, so that the I/O thread notices a closed socket even if nothing wakes it.
+    @Override
+    public void await(boolean writable) throws IOException {
+        pollFd.set(JAVA_SHORT, 4, writable ? POLLOUT : POLLIN);
+        while (open) {
+            int result;
+            try {
+                result = (int) NATIVES.poll().invokeExact(state, pollFd, 1L, POLL_TIMEOUT_MS);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+            if (result > 0)
+                return;
+            if (result < 0 && errno(state) != EINTR)
+                throw new IOException("poll failed: errno " + errno(state));
+        }
+    }
+
+    @Override
+    public int receive(Exchange[] batch) throws IOException {
+        int count = Math.min(batch.length, batchSize);
+        for (int i = 0; i < count; i++) {
+            Exchange exchange = batch[i];
+            long header = (long) i * MMSGHDR_SIZE;
+            receiveHeaders.set(JAVA_LONG, header + MSG_NAME, exchange.peerAddress);
+            receiveHeaders.set(JAVA_INT, header + MSG_NAMELEN, ADDRESS_SIZE);
+            receiveVectors.set(JAVA_LONG, (long) i * IOVEC_SIZE, exchange.requestAddress);
+            receiveVectors.set(JAVA_LONG, (long) i * IOVEC_SIZE + 8, exchange.request.capacity());
+        }
+        int received;
+        try {
+            received = (int) NATIVES.recvmmsg().invokeExact(state, fd, receiveHeaders, count, MSG_DONTWAIT,
+                    MemorySegment.NULL);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        if (received < 0) {
+            int errno = errno(state);
+            if (errno == EAGAIN || errno == EINTR)
+                return 0;
+            throw new IOException("recvmmsg failed: errno " + errno);
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < received; i++) {
+            Exchange exchange = batch[i];
+            long header = (long) i * MMSGHDR_SIZE;
+            exchange.length = receiveHeaders.get(JAVA_INT, header + MSG_LEN);
+            exchange.request.position(exchange.length);
+            exchange.peerLength = receiveHeaders.get(JAVA_INT, header + MSG_NAMELEN);
+            exchange.receivedAt = now;
+        }
+        return received;
+    }
+
+    @Override
+    public int send(ArrayDeque<Exchange> replies) throws IOException {
+        int count = 0;
+        for (Exchange exchange : replies) {
+            if (count == batchSize)
+                break;
+            long header = (long) count * MMSGHDR_SIZE;
+            sendHeaders.set(JAVA_LONG, header + MSG_NAME, exchange.peerAddress);
+            sendHeaders.set(JAVA_INT, header + MSG_NAMELEN, exchange.peerLength);
+            sendVectors.set(JAVA_LONG, (long) count * IOVEC_SIZE,
+                    exchange.responseAddress + exchange.response.position());
+            sendVectors.set(JAVA_LONG, (long) count * IOVEC_SIZE + 8, exchange.response.remaining());
+            count++;
+        }
+        if (count == 0)
+            return 0;
+        int sent;
+        try {
+            sent = (int) NATIVES.sendmmsg().invokeExact(state, fd, sendHeaders, count, MSG_DONTWAIT);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        if (sent >= 0)
+            return sent;
+        int errno = errno(state);
+        if (errno == EAGAIN || errno == EINTR)
+            return 0;
+        throw new IOException("sendmmsg failed: errno " + errno);
+    }
+
+    // Called from any thread, so errno is captured into the exchange's own memory.
+    @Override
+    public boolean send(Exchange exchange) throws IOException {
+        long sent;
+        try {
+            sent = (long) NATIVES.sendto().invokeExact(exchange.callState, fd,
+                    exchange.responseAddress + exchange.response.position(), (long) exchange.response.remaining(),
+                    MSG_DONTWAIT, exchange.peerAddress, exchange.peerLength);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        if (sent >= 0)
+            return true;
+        int errno = errno(exchange.callState);
+        if (errno == EAGAIN || errno == EINTR)
+            return false;
+        throw new IOException("sendto failed: errno " + errno);
+    }
+
+    // Shutting the socket down first wakes the I/O thread if it is polling.
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment state = arena.allocate(Linker.Option.captureStateLayout());
+            call(NATIVES.shutdown(), state, fd, SHUT_RDWR);
+            if (call(NATIVES.close(), state, fd) < 0)
+                throw new IOException("Cannot close UDP socket: errno " + errno(state));
+        }
+    }
+
+    /**
+     * Decodes a client's sockaddr_in or sockaddr_in6; IPv4 clients of an IPv6 socket arrive as IPv4-mapped
+     * addresses and are returned as plain IPv4 ones, as a DatagramChannel does.
+     * @param address The socket address in kernel format.
+     */
+    static InetSocketAddress getAddress(ByteBuffer address) {
+        int port = getPort(address);
+        int offset = getAddressOffset(address);
+        try {
+            if (getAddressLength(address) == 4)
+                return new InetSocketAddress(InetAddress.getByAddress(copy(address, offset, 4)), port);
+            int scope = address.getInt(24);
+            return new InetSocketAddress(scope == 0 ? InetAddress.getByAddress(copy(address, offset, 16))
+                    : Inet6Address.getByAddress(null, copy(address, offset, 16), scope), port);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns where the IP address inside a socket address in kernel format starts; for an IPv4-mapped
+     * address, where its IPv4 part starts.
+     * @param address The socket address in kernel format.
+     */
+    static int getAddressOffset(ByteBuffer address) {
+        if (address.getShort(0) == AF_INET)
+            return SIN_ADDR;
+        return isMappedIpv4(address) ? MAPPED_IPV4_ADDR : SIN6_ADDR;
+    }
+
+    /**
+     * Returns the length of the IP address inside a socket address in kernel format: 4 for IPv4 and
+     * IPv4-mapped addresses, 16 for IPv6.
+     * @param address The socket address in kernel format.
+     */
+    static int getAddressLength(ByteBuffer address) {
+        return address.getShort(0) == AF_INET || isMappedIpv4(address) ? 4 : 16;
+    }
+
+    /**
+     * Returns the port of a socket address in kernel format.
+     * @param address The socket address in kernel format.
+     */
+    static int getPort(ByteBuffer address) {
+        return (address.get(2) & 0xFF) << 8 | address.get(3) & 0xFF;
+    }
+
+    private static boolean isMappedIpv4(ByteBuffer address) {
+        return address.getLong(SIN6_ADDR) == 0 && address.getShort(SIN6_ADDR + 8) == 0
+                && address.getShort(SIN6_ADDR + 10) == -1;
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+
+    private static int errno(MemorySegment state) {
+        return state.get(JAVA_INT, NATIVES.errnoOffset());
+    }
+
+    // For the calls made while opening and closing, where the cost of a generic invocation does not matter.
+    private static int call(MethodHandle function, Object... arguments) {
+        try {
+            return (int) function.invokeWithArguments(arguments);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException runtime)
+            throw runtime;
+        if (e instanceof Error error)
+            throw error;
+        throw new IllegalStateException(e);
+    }
+
+    private static Natives loadNatives() {
+        String arch = System.getProperty("os.arch");
+        if (!"Linux".equals(System.getProperty("os.name")) || !"amd64".equals(arch) && !"aarch64".equals(arch))
+            return null;
+        try {
+            Linker linker = Linker.nativeLinker();
+            SymbolLookup libc = linker.defaultLookup();
+            return new Natives(
+                    function(linker, libc, "socket", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT)),
+                    function(linker, libc, "setsockopt",
+                            FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT)),
+                    function(linker, libc, "bind", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT)),
+                    function(linker, libc, "poll", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT)),
+                    function(linker, libc, "recvmmsg",
+                            FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS)),
+                    function(linker, libc, "sendmmsg",
+                            FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT)),
+                    // The buffer and address pointers are passed as plain 64-bit integers, which both ABIs pass
+                    // the same way, so a send from a worker thread wraps nothing in a segment.
+                    function(linker, libc, "sendto",
+                            FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_INT, JAVA_LONG,
+                                    JAVA_INT)),
+                    function(linker, libc, "shutdown", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT)),
+                    function(linker, libc, "close", FunctionDescriptor.of(JAVA_INT, JAVA_INT)),
+                    Linker.Option.captureStateLayout().byteOffset(MemoryLayout.PathElement.groupElement("errno")));
+        } catch (RuntimeException e) {
+            // e.g. IllegalCallerException when native access is denied
+            log.log(Level.FINE, "Batched UDP system calls are not available: {0}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static MethodHandle function(Linker linker, SymbolLookup libc, String name,
+                                         FunctionDescriptor descriptor) {
+        MemorySegment symbol = libc.find(name)
+                .orElseThrow(() -> new IllegalStateException("The C library has no " + name));
+        return linker.downcallHandle(symbol, descriptor, Linker.Option.captureCallState("errno"));
+    }
+}
@@ -0,0 +1,275 @@
+package dns;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A dnsperf-style load generator. Queries are sent open-loop: the i-th query is due at start + i / qps
+ * whatever happened to the earlier ones, so a slow server faces a growing number of outstanding queries
+ * instead of a client that politely waits for it. Every latency is measured from the time its query was
+ * due rather than the time it was actually sent, which corrects for coordinated omission: when the sender
+ * falls behind, the delay shows up in the percentiles instead of silently thinning out the load.
+ * <p>
+ * Queries are either replayed from a file, one "name [type]" per line and cycling when the file runs out,
+ * or drawn from synthetic names whose popularity follows a Zipf distribution, as real resolver traffic
+ * roughly does. Every distinct query is encoded once through {@link Message} before the run starts; sending
+ * only patches the ID. A reply that arrives later than the timeout counts as lost.
+ * <p>
+ * Options: "--server ip:port", "--qps n", "--duration seconds", "--timeout ms", "--queries file", or
+ * "--names n", "--zipf-exponent s", "--zone suffix", "--type mnemonic" and "--seed n" for synthetic names.
+ */
+public final class LoadGenerator {
+
+    private static final String DEFAULT_SERVER = "127.0.0.1:2053";
+    private static final int DEFAULT_QPS = 1000;
+    private static final int DEFAULT_DURATION_S = 10;
+    private static final int DEFAULT_TIMEOUT_MS = 2000;
+    private static final int DEFAULT_NAMES = 10_000;
+    private static final double DEFAULT_ZIPF_EXPONENT = 1.0;
+    private static final String DEFAULT_ZONE = "example.com";
+    private static final short RECURSION_DESIRED = 0x0100;
+    private static final int IDS = 1 << 16;
+    private static final int MAX_PACKET_SIZE = 65_535;
+    private static final int HEADER_SIZE = 12;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p99", "p99.9", "p99.99"};
+
+    private final SocketAddress server;
+    private final long qps;
+    private final long durationNanos;
+    private final long timeoutNanos;
+    private final byte[][] queries;
+    private final int[] schedule;
+    private final List<Lane> lanes = new ArrayList<>();
+
+    private LoadGenerator(SocketAddress server, long qps, long durationNanos, long timeoutNanos, byte[][] queries,
+                          int[] schedule) {
+        this.server = server;
+        this.qps = qps;
+        this.durationNanos = durationNanos;
+        this.timeoutNanos = timeoutNanos;
+        this.queries = queries;
+        this.schedule = schedule;
+    }
+
+    /**
+     * Runs a load test as configured on the command line and prints its report to standard output.
+     * @param config The parsed options.
+     */
+    public static void run(Config config) throws IOException, InterruptedException {
+        SocketAddress server = Config.parseAddress(config.getString("--server", DEFAULT_SERVER));
+        long qps = Math.max(1, config.getInt("--qps", DEFAULT_QPS));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Math.max(1, config.getInt("--duration", DEFAULT_DURATION_S)));
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getInt("--timeout", DEFAULT_TIMEOUT_MS)));
+        List<Question> questions;
+        int[] schedule;
+        String file = config.getString("--queries", null);
+        if (file != null) {
+            questions = readQueries(Path.of(file));
+            schedule = null;
+        } else {
+            questions = syntheticNames(Math.max(1, config.getInt("--names", DEFAULT_NAMES)),
+                    config.getString("--zone", DEFAULT_ZONE), RecordType.parse(config.getString("--type", "A")));
+            schedule = zipfSchedule(questions.size(), config.getDouble("--zipf-exponent", DEFAULT_ZIPF_EXPONENT),
+                    (int) Math.min(qps * TimeUnit.NANOSECONDS.toSeconds(durationNanos), Integer.MAX_VALUE),
+                    config.getInt("--seed", 1));
+        }
+        byte[][] queries = new byte[questions.size()][];
+        for (int i = 0; i < queries.length; i++) {
+            Header header = new Header((short) 0, RECURSION_DESIRED, (short) 1, (short) 0, (short) 0, (short) 0);
+            queries[i] = new Message(header, List.of(questions.get(i)), List.of()).getMessage();
+        }
+        new LoadGenerator(server, qps, durationNanos, timeoutNanos, queries, schedule).run();
+    }
+
+    private void run() throws IOException, InterruptedException {
+        // Each socket has 65536 IDs; enough sockets are opened that an ID is not reused within twice the timeout.
+        long outstanding = qps * 2 * TimeUnit.NANOSECONDS.toMillis(timeoutNanos) / 1000;
+        int laneCount = (int) Math.max(1, (outstanding + IDS - 1) / IDS);
+        long total = qps * TimeUnit.NANOSECONDS.toSeconds(durationNanos);
+        try {
+            for (int i = 0; i < laneCount; i++)
+                lanes.add(new Lane(DatagramChannel.open().connect(server)));
+            long start = System.nanoTime();
+            for (Lane lane : lanes)
+                lane.start(start);
+            long sent = send(start, total);
+            long sendNanos = System.nanoTime() - start;
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            for (Lane lane : lanes)
+                lane.channel.close();
+            for (Lane lane : lanes)
+                lane.receiver.join();
+            report(sent, sendNanos);
+        } finally {
+            for (Lane lane : lanes)
+                lane.channel.close();
+        }
+    }
+
+    // Sends query i once start + i / qps has passed. Parking overshoots by a few tens of microseconds, after
+    // which the queries that fell due meanwhile go out back to back.
+    private long send(long start, long total) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        long sent = 0;
+        for (long i = 0; i < total; i++) {
+            long due = i * 1_000_000_000L / qps;
+            long wait = start + due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            Lane lane = lanes.get((int) (i % lanes.size()));
+            int id = (int) (i / lanes.size()) & (IDS - 1);
+            int index = schedule == null ? (int) (i % queries.length) : schedule[(int) (i % schedule.length)];
+            byte[] query = queries[index];
+            buffer.clear();
+            buffer.put(query).putShort(0, (short) id).flip();
+            lane.due.set(id, due + 1);
+            sent++;
+            try {
+                lane.channel.write(buffer);
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                // Typically a port unreachable reported for an earlier query; this query counts as lost.
+                lane.due.set(id, 0);
+            }
+        }
+        return sent;
+    }
+
+    private void report(long sent, long sendNanos) {
+        LatencyHistogram latencies = new LatencyHistogram();
+        long[] rcodes = new long[16];
+        long truncated = 0;
+        for (Lane lane : lanes) {
+            latencies.add(lane.latencies);
+            for (int i = 0; i < rcodes.length; i++)
+                rcodes[i] += lane.rcodes[i];
+            truncated += lane.truncated;
+        }
+        long answered = latencies.getCount();
+        long lost = sent - answered;
+        System.out.printf("Queries sent:      %d%n", sent);
+        System.out.printf("Queries answered:  %d (%.2f%%)%n", answered, sent == 0 ? 0 : 100.0 * answered / sent);
+        System.out.printf("Queries lost:      %d (%.2f%%)%n", lost, sent == 0 ? 0 : 100.0 * lost / sent);
+        System.out.printf("Truncated replies: %d%n", truncated);
+        StringBuilder codes = new StringBuilder();
+        for (int i = 0; i < rcodes.length; i++)
+            if (rcodes[i] > 0)
+                codes.append(codes.isEmpty() ? "" : ", ").append(Resolution.toString(i)).append(' ').append(rcodes[i]);
+        System.out.printf("Response codes:    %s%n", codes.isEmpty() ? "none" : codes);
+        System.out.printf("Sending rate:      %.1f qps (target %d)%n", sent * 1e9 / sendNanos, qps);
+        System.out.printf("Answer rate:       %.1f qps%n", answered * 1e9 / sendNanos);
+        System.out.printf("Latency (ms):      mean %.3f", latencies.getMean() / 1000);
+        for (int i = 0; i < PERCENTILES.length; i++)
+            System.out.printf(", %s %.3f", PERCENTILE_LABELS[i], latencies.getPercentile(PERCENTILES[i]) / 1000.0);
+        System.out.printf(", max %.3f%n", latencies.getMax() / 1000.0);
+    }
+
+    // Reads "name [type]" lines; empty lines and lines starting with ';' or '#' are skipped.
+    private static List<Question> readQueries(Path file) throws IOException {
+        List<Question> questions = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            String trimmed = line.strip();
+            if (trimmed.isEmpty() || trimmed.startsWith(";") || trimmed.startsWith("#"))
+                continue;
+            String[] fields = trimmed.split("\\s+");
+            short type = fields.length > 1 ? RecordType.parse(fields[1]) : RecordType.A;
+            questions.add(new Question(fields[0], type, RecordType.CLASS_IN));
+        }
+        if (questions.isEmpty())
+            throw new IllegalArgumentException("No queries in " + file);
+        return questions;
+    }
+
+    private static List<Question> syntheticNames(int count, String zone, short type) {
+        List<Question> questions = new ArrayList<>(count);
+        for (int rank = 0; rank < count; rank++)
+            questions.add(new Question("n" + rank + "." + zone, type, RecordType.CLASS_IN));
+        return questions;
+    }
+
+    // Draws which name each query asks for: the name of rank k (from 1) is picked with a probability
+    // proportional to 1 / k^exponent. The draws are made up front so that sampling stays off the send loop.
+    private static int[] zipfSchedule(int names, double exponent, int length, long seed) {
+        double[] cumulative = new double[names];
+        double sum = 0;
+        for (int k = 0; k < names; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] schedule = new int[Math.max(1, length)];
+        for (int i = 0; i < schedule.length; i++) {
+            double point = random.nextDouble(sum);
+            int low = 0;
+            int high = names - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cumulative[middle] <= point)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            schedule[i] = low;
+        }
+        return schedule;
+    }
+
+    // One socket with its own IDs, receiver thread and statistics, so that nothing is shared between receivers.
+    private final class Lane {
+        private final DatagramChannel channel;
+        // Per ID, the time its query was due relative to the start, plus 1; 0 when nothing is outstanding.
+        private final AtomicLongArray due = new AtomicLongArray(IDS);
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final long[] rcodes = new long[16];
+        private long truncated;
+        private Thread receiver;
+
+        private Lane(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        private void start(long start) {
+            receiver = Thread.ofPlatform().daemon().name("dns-load-receiver").start(() -> receive(start));
+        }
+
+        private void receive(long start) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+            while (true) {
+                try {
+                    buffer.clear();
+                    channel.read(buffer);
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (buffer.position() < HEADER_SIZE)
+                    continue;
+                long dueAt = due.getAndSet(buffer.getShort(0) & 0xFFFF, 0);
+                if (dueAt == 0)
+                    continue;
+                long latency = now - start - (dueAt - 1);
+                if (latency > timeoutNanos)
+                    continue;
+                latencies.record(TimeUnit.NANOSECONDS.toMicros(latency));
+                rcodes[buffer.get(3) & 0xF]++;
+                if ((buffer.get(2) & 0x02) != 0)
+                    truncated++;
+            }
+        }
+    }
+}
@@ -1,25 +1,45 @@
 package dns;
 
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 // Represents a DNS message, which includes a header, questions, and answers.
 public class Message {
 
     private static final String SEPARATOR = " - ";
-    private static final int BUFFER_SIZE = 512;
+    private static final int MAX_SIZE = 65_535;
 
     private final Header header;
     private final List<Question> questions;
     private final List<Answer> answers;
+    private final List<Answer> authorities;
+    private final List<Answer> additionals;
+    private SocketAddress source;
 
     // Constructs a new DNS message with the specified header, questions, and answers.
     public Message(Header header, List<Question> questions, List<Answer> answers) {
+        this(header, questions, answers, List.of());
+    }
+
+    // Constructs a new DNS message that also carries records of the authority section.
+    public Message(Header header, List<Question> questions, List<Answer> answers, List<Answer> authorities) {
+        this(header, questions, answers, authorities, List.of());
+    }
+
+    // Constructs a new DNS message with records in all sections.
+    public Message(Header header, List<Question> questions, List<Answer> answers, List<Answer> authorities,
+                   List<Answer> additionals) {
         this.header = new Header(header.getId(), header.getFlags(), header.getQdCount(), header.getAnCount(),
                 header.getNsCount(), header.getArCount());
         this.questions = new ArrayList<>(questions);
         this.answers = new ArrayList<>(answers);
+        this.authorities = new ArrayList<>(authorities);
+        this.additionals = new ArrayList<>(additionals);
     }
 
     // Returns the number of questions in the DNS message.
@@ -42,20 +62,91 @@ public class Message {
         return answers;
     }
 
+    // Retrieves the list of authority records in the DNS message.
+    public List<Answer> getAuthorities() {
+        return authorities;
+    }
+
+    // Retrieves the list of additional records in the DNS message.
+    public List<Answer> getAdditionals() {
+        return additionals;
+    }
+
+    // Returns the server this message was received from, or null when it did not come from the network.
+    public SocketAddress getSource() {
+        return source;
+    }
+
+    // Records the server this message was received from.
+    public void setSource(SocketAddress source) {
+        this.source = source;
+    }
+
     // Constructs a byte array representation of the DNS message.
     public byte[] getMessage() {
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE)
+        return getMessage(MAX_SIZE);
+    }
+
+    // Constructs a byte array representation of the DNS message that is at most maxSize bytes long. A message
+    // that does not fit is cut back to its header, questions and OPT record with the TC flag set, so the client
+    // retries over TCP; the header of this message is updated to match.
+    public byte[] getMessage(int maxSize) {
+        byte[] message = encode();
+        if (message.length <= maxSize)
+            return message;
+        header.setTc(true);
+        header.setAnCount((short) 0);
+        header.setNsCount((short) 0);
+        answers.clear();
+        authorities.clear();
+        additionals.removeIf(additional -> additional.getQType() != RecordType.OPT);
+        header.setArCount((short) additionals.size());
+        return encode();
+    }
+
+    // Encodes the message with every name compressed against the names written before it, into a buffer sized
+    // by maxLength so that small messages do not pay for the largest one possible.
+    private byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(maxLength())
                 .put(header.getHeader());
+        Map<String, Integer> compression = new HashMap<>();
         for (Question question : questions)
-            buffer.put(question.getName());
+            question.writeTo(buffer, compression);
         for (Answer answer : answers)
-            buffer.put(answer.getAnswer());
-        return buffer.array();
+            answer.writeTo(buffer, compression);
+        for (Answer authority : authorities)
+            authority.writeTo(buffer, compression);
+        for (Answer additional : additionals)
+            additional.writeTo(buffer, compression);
+        if (buffer.position() == buffer.capacity())
+            return buffer.array();
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // An upper bound of the encoded length: every name written out in full, and every rdata as long as it is
+    // uncompressed. Compression only makes either shorter.
+    private int maxLength() {
+        long length = Wire.HEADER_SIZE;
+        for (Question question : questions)
+            length += maxLength(question.getDomain()) + 4;
+        for (List<Answer> section : List.of(answers, authorities, additionals))
+            for (Answer record : section)
+                length += maxLength(record.getDomain()) + 10 + record.getRdLength();
+        return (int) Math.min(length, MAX_SIZE);
+    }
+
+    // A dotted name takes a byte per ASCII character and at most 3 per other character in UTF-8, plus the first
+    // length byte and the root label.
+    private static int maxLength(String name) {
+        int length = 2;
+        for (int i = 0; i < name.length(); i++)
+            length += name.charAt(i) < 0x80 ? 1 : 3;
+        return length;
     }
 
-    // Provides a string representation of the DNS message, including the header, questions, and answers.
+    // Provides a string representation of the DNS message, including the header, questions and all record sections.
     public String toString() {
-        return header + SEPARATOR + questions + SEPARATOR + answers;
+        return header + SEPARATOR + questions + SEPARATOR + answers + SEPARATOR + authorities + SEPARATOR + additionals;
     }
 
 }
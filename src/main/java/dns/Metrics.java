@@ -0,0 +1,296 @@
+package dns;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and histograms of the request path, exposed in the Prometheus text format.
+ * Everything recorded per query is preallocated: counters are {@link LongAdder}s, which spread concurrent
+ * increments over per-thread cells, histograms are striped the same way, and labels such as the query type
+ * or response code index fixed arrays, so recording neither locks nor allocates. Cells and stripes are
+ * summed only when the endpoint is scraped. Gauges such as queue depths are read from their owners at
+ * scrape time and cost nothing in between.
+ */
+public final class Metrics {
+
+    private static final short[] TYPES = {RecordType.A, RecordType.NS, RecordType.CNAME, RecordType.SOA,
+            RecordType.PTR, RecordType.MX, RecordType.TXT, RecordType.AAAA, RecordType.SRV, RecordType.ANY};
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final LongAdder[] queries = adders(TYPES.length + 1);
+    private final LongAdder[] responses = adders(16);
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder upstreamFailures = new LongAdder();
+    private final LongAdder droppedResponses = new LongAdder();
+    private final LongAdder requestErrors = new LongAdder();
+    private final LongAdder rateLimitDrops = new LongAdder();
+    private final LongAdder rateLimitSlips = new LongAdder();
+    private final LongAdder queryLogDrops = new LongAdder();
+    private final LongAdder peerHits = new LongAdder();
+    private final LongAdder peerMisses = new LongAdder();
+    private final LongAdder peerTimeouts = new LongAdder();
+    private final LongAdder peerWarmups = new LongAdder();
+    private final LongAdder peerInvalidations = new LongAdder();
+    private final Histogram parseTime = new Histogram();
+    private final Histogram encodeTime = new Histogram();
+    private final List<Upstream> upstreams = new CopyOnWriteArrayList<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * The metrics of one upstream resolver.
+     * @param name The resolver as shown in the {@code resolver} label.
+     * @param rtt The round-trip times of its replies.
+     * @param timeouts The number of queries it did not answer in time.
+     */
+    public record Upstream(String name, Histogram rtt, LongAdder timeouts) {
+    }
+
+    private record Gauge(String name, String help, LongSupplier value) {
+    }
+
+    /**
+     * Counts a question of an answered request by its type.
+     * @param qType The type of the question.
+     */
+    public void countQuery(short qType) {
+        queries[typeIndex(qType)].increment();
+    }
+
+    /**
+     * Counts a response by its code.
+     * @param rcode The response code in the header.
+     */
+    public void countResponse(int rcode) {
+        responses[rcode & 0xF].increment();
+    }
+
+    /**
+     * Counts a question answered from the cache.
+     */
+    public void countCacheHit() {
+        cacheHits.increment();
+    }
+
+    /**
+     * Counts a question that was not in the cache.
+     */
+    public void countCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /**
+     * Counts a question that could not be resolved upstream.
+     */
+    public void countUpstreamFailure() {
+        upstreamFailures.increment();
+    }
+
+    /**
+     * Counts a response that could not be sent.
+     */
+    public void countDroppedResponse() {
+        droppedResponses.increment();
+    }
+
+    /**
+     * Counts a request that could not be parsed, or failed with an error and got no response.
+     */
+    public void countRequestError() {
+        requestErrors.increment();
+    }
+
+    /**
+     * Counts a request over the rate limit.
+     * @param slipped Whether it was answered with a truncated response rather than dropped.
+     */
+    public void countRateLimited(boolean slipped) {
+        (slipped ? rateLimitSlips : rateLimitDrops).increment();
+    }
+
+    /**
+     * Counts a query log record dropped because the log's buffer was full.
+     */
+    public void countQueryLogDropped() {
+        queryLogDrops.increment();
+    }
+
+    /**
+     * Counts a question asked of the cluster peer that owns it.
+     * @param hit Whether the peer had an answer.
+     * @param timedOut Whether the peer did not reply in time.
+     */
+    public void countPeerLookup(boolean hit, boolean timedOut) {
+        (hit ? peerHits : timedOut ? peerTimeouts : peerMisses).increment();
+    }
+
+    /**
+     * Counts a refreshed answer pushed to every cluster peer.
+     */
+    public void countPeerWarmup() {
+        peerWarmups.increment();
+    }
+
+    /**
+     * Counts a question dropped from the whole cluster.
+     */
+    public void countPeerInvalidation() {
+        peerInvalidations.increment();
+    }
+
+    /**
+     * Returns the histogram of the time spent parsing requests.
+     */
+    public Histogram getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * Returns the histogram of the time spent encoding responses.
+     */
+    public Histogram getEncodeTime() {
+        return encodeTime;
+    }
+
+    /**
+     * Registers an upstream resolver, whose metrics are labelled with its address. A resolver registered
+     * again, as happens when the configuration is reloaded, keeps its metrics.
+     * @param name The resolver as shown in the label.
+     */
+    public synchronized Upstream addUpstream(String name) {
+        for (Upstream upstream : upstreams)
+            if (upstream.name().equals(name))
+                return upstream;
+        Upstream upstream = new Upstream(name, new Histogram(), new LongAdder());
+        upstreams.add(upstream);
+        return upstream;
+    }
+
+    /**
+     * Registers a value that is read whenever the metrics are scraped.
+     * @param name The metric name.
+     * @param help The description of the metric.
+     * @param value Supplies the current value.
+     */
+    public void addGauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    /**
+     * Serves the metrics over HTTP at "/metrics" from a daemon thread.
+     * @param address The address to listen on.
+     */
+    public void serve(InetSocketAddress address) throws IOException {
+        HttpServer http = HttpServer.create(address, 0);
+        http.setExecutor(Executors.newSingleThreadExecutor(
+                runnable -> Thread.ofPlatform().daemon().name("dns-metrics").unstarted(runnable)));
+        http.createContext("/metrics", this::scrape);
+        http.start();
+    }
+
+    private void scrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Returns every metric in the Prometheus text format.
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        header(out, "dns_queries_total", "counter", "Answered questions by query type.");
+        for (int i = 0; i < queries.length; i++) {
+            String type = i < TYPES.length ? RecordType.toString(TYPES[i]) : "other";
+            sample(out, "dns_queries_total", "type=\"" + type + "\"", queries[i].sum());
+        }
+        header(out, "dns_responses_total", "counter", "Responses by response code.");
+        for (int i = 0; i < responses.length; i++)
+            if (responses[i].sum() > 0 || i <= Resolution.REFUSED)
+                sample(out, "dns_responses_total", "rcode=\"" + Resolution.toString(i) + "\"", responses[i].sum());
+        counter(out, "dns_cache_hits_total", "Questions answered from the cache.", cacheHits);
+        counter(out, "dns_cache_misses_total", "Questions not found in the cache.", cacheMisses);
+        counter(out, "dns_upstream_failures_total", "Questions that could not be resolved upstream.",
+                upstreamFailures);
+        counter(out, "dns_responses_dropped_total", "Responses that could not be sent.", droppedResponses);
+        counter(out, "dns_request_errors_total",
+                "Requests that could not be parsed or failed without a response.", requestErrors);
+        header(out, "dns_rate_limited_total", "counter", "Requests over the rate limit by the action taken.");
+        sample(out, "dns_rate_limited_total", "action=\"drop\"", rateLimitDrops.sum());
+        sample(out, "dns_rate_limited_total", "action=\"slip\"", rateLimitSlips.sum());
+        counter(out, "dns_query_log_dropped_total", "Query log records dropped because the buffer was full.",
+                queryLogDrops);
+        header(out, "dns_cluster_lookups_total", "counter", "Questions asked of the owning cluster peer by result.");
+        sample(out, "dns_cluster_lookups_total", "result=\"hit\"", peerHits.sum());
+        sample(out, "dns_cluster_lookups_total", "result=\"miss\"", peerMisses.sum());
+        sample(out, "dns_cluster_lookups_total", "result=\"timeout\"", peerTimeouts.sum());
+        counter(out, "dns_cluster_warmups_total", "Refreshed answers pushed to every cluster peer.", peerWarmups);
+        counter(out, "dns_cluster_invalidations_total", "Questions dropped from the whole cluster.",
+                peerInvalidations);
+        header(out, "dns_parse_duration_seconds", "histogram", "Time spent parsing requests.");
+        parseTime.writeTo(out, "dns_parse_duration_seconds", "");
+        header(out, "dns_encode_duration_seconds", "histogram", "Time spent encoding responses.");
+        encodeTime.writeTo(out, "dns_encode_duration_seconds", "");
+        if (!upstreams.isEmpty()) {
+            header(out, "dns_upstream_rtt_seconds", "histogram", "Round-trip times of upstream replies.");
+            for (Upstream upstream : upstreams)
+                upstream.rtt().writeTo(out, "dns_upstream_rtt_seconds", "resolver=\"" + upstream.name() + "\"");
+            header(out, "dns_upstream_timeouts_total", "counter", "Upstream queries that timed out.");
+            for (Upstream upstream : upstreams)
+                sample(out, "dns_upstream_timeouts_total", "resolver=\"" + upstream.name() + "\"",
+                        upstream.timeouts().sum());
+        }
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name(), "gauge", gauge.help());
+            sample(out, gauge.name(), "", gauge.value().getAsLong());
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+        header(out, name, "counter", help);
+        sample(out, name, "", value.sum());
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty())
+            out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static int typeIndex(short qType) {
+        for (int i = 0; i < TYPES.length; i++)
+            if (TYPES[i] == qType)
+                return i;
+        return TYPES.length;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+}
@@ -2,32 +2,38 @@ package dns;
 
 import java.net.DatagramPacket;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class Parser {
 
-    private static final String SEPARATOR = ".";
-
-    private int currPosition = 0;
-
     public Message parse(DatagramPacket packet) {
-        byte[] data = packet.getData();
-        Header header = parseHeader(data);
+        return parse(packet.getData());
+    }
+
+    public Message parse(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        Header header = parseHeader(buffer);
         int qdCount = header.getQdCount();
-        currPosition = 12;
-        List<Question> questions = new ArrayList<>();
-        List<Answer> answers = new ArrayList<>();
+        int anCount = header.getAnCount();
+        int nsCount = header.getNsCount();
+        int arCount = header.getArCount();
+        List<Question> questions = new ArrayList<>(qdCount);
+        List<Answer> answers = new ArrayList<>(anCount);
+        List<Answer> authorities = new ArrayList<>(nsCount);
+        List<Answer> additionals = new ArrayList<>(arCount);
         for (int i = 0; i < qdCount; i++)
-            questions.add(parseQuestion(data));
-        for (int i = 0; i < qdCount; i++)
-            answers.add(parseAnswer(data));
-        return new Message(header, questions, answers);
+            questions.add(parseQuestion(buffer));
+        for (int i = 0; i < anCount; i++)
+            answers.add(parseAnswer(buffer));
+        for (int i = 0; i < nsCount; i++)
+            authorities.add(parseAnswer(buffer));
+        for (int i = 0; i < arCount; i++)
+            additionals.add(parseAnswer(buffer));
+        return new Message(header, questions, answers, authorities, additionals);
     }
 
-    private Header parseHeader(byte[] data) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
+    private Header parseHeader(ByteBuffer buffer) {
         short id = buffer.getShort();
         short flags = buffer.getShort();
         short qdCount = buffer.getShort();
@@ -37,67 +43,38 @@ public class Parser {
         return new Header(id, flags, qdCount, anCount, nsCount, arCount);
     }
 
-    private Question parseQuestion(byte[] data) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        buffer.position(currPosition);
-        byte labelLength = buffer.get();
-        StringBuilder labelBuilder = getLabelBuilder(labelLength, buffer);
+    private Question parseQuestion(ByteBuffer buffer) {
+        String domainName = parseDomainName(buffer);
         short qType = buffer.getShort();
         short qClass = buffer.getShort();
-
-        Question question = new Question(labelBuilder.toString(), qType, qClass);
-
-        currPosition = buffer.position();
-        return question;
+        return new Question(domainName, qType, qClass);
     }
 
-    private Answer parseAnswer(byte[] data) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        buffer.position(currPosition);
+    private Answer parseAnswer(ByteBuffer buffer) {
         String domainName = parseDomainName(buffer);
         short qType = buffer.getShort();
         short qClass = buffer.getShort();
-        buffer.getInt(); //ttl
-        short rdLength = buffer.getShort();
+        int ttl = buffer.getInt();
+        int rdLength = buffer.getShort() & 0xFFFF;
+
+        // Names in the rdata may point back into the message, so they are decoded to stand on their own.
+        if (hasNames(qType))
+            return new Answer(domainName, qType, qClass, ttl, RecordData.read(qType, buffer, rdLength));
 
         byte[] rdata = new byte[rdLength];
         buffer.get(rdata);
 
-        String rdataStr = getRdataStr(qType, rdLength, rdata);
-        Answer answer = new Answer(domainName, qType, qClass, rdLength, rdataStr);
-        currPosition = buffer.position(); // Update position
-        return answer;
+        return new Answer(domainName, qType, qClass, ttl, rdata);
     }
 
-    private String parseDomainName(ByteBuffer buffer) {
-        int labelLength = buffer.get();
-        StringBuilder labelBuilder = new StringBuilder();
-        while (labelLength > 0) {
-            labelBuilder.append(new String(buffer.array(), buffer.position(), labelLength, StandardCharsets.UTF_8));
-            buffer.position(buffer.position() + labelLength);
-            labelLength = buffer.get();
-            if (labelLength > 0) labelBuilder.append(SEPARATOR);
-        }
-        return labelBuilder.toString();
-    }
-
-    private StringBuilder getLabelBuilder(byte labelLength, ByteBuffer buffer) {
-        StringBuilder labelBuilder = new StringBuilder();
-        while (labelLength > 0) {
-            labelBuilder.append(new String(buffer.array(), buffer.position(), labelLength, StandardCharsets.UTF_8));
-            buffer.position(buffer.position() + labelLength);
-            labelLength = buffer.get();
-            if (labelLength > 0) labelBuilder.append(SEPARATOR);
-        }
-        return labelBuilder;
+    private static boolean hasNames(short qType) {
+        return switch (qType) {
+            case RecordType.NS, RecordType.CNAME, RecordType.PTR, RecordType.MX, RecordType.SOA, RecordType.SRV -> true;
+            default -> false;
+        };
     }
 
-    private String getRdataStr(short qType, short rdLength, byte[] rdata) {
-        String rdataStr;
-        if (qType == 1 && rdLength == 4)  // A Record (IPv4)
-            rdataStr = String.format("%d.%d.%d.%d", rdata[0] & 0xFF, rdata[1] & 0xFF, rdata[2] & 0xFF, rdata[3] & 0xFF);
-        else
-            rdataStr = new String(rdata, StandardCharsets.UTF_8); // Keep this for other record types
-        return rdataStr;
+    private String parseDomainName(ByteBuffer buffer) {
+        return Wire.readName(buffer);
     }
-}
\ No newline at end of file
+}
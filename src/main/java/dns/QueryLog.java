@@ -0,0 +1,399 @@
+package dns;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A binary log of every response the server sends, in the spirit of dnstap: one compact record per
+ * response with the client, the first question, the response flags and code, the answer count, where the
+ * answer came from and how long it took, written to rotating files by a background thread.
+ * <p>
+ * Query threads never format, allocate a record or touch the file. Each claims the next slot of a
+ * preallocated ring with one compare-and-set, encodes the record into it and publishes it by storing the
+ * slot's sequence number. A client address given where it lies, as the batched UDP path keeps it in kernel
+ * format, is copied straight into the slot; one given as a {@link SocketAddress}, on the paths that built
+ * one anyway, costs a copy of its bytes. The writer thread copies published slots in order into a buffer
+ * that it writes out whenever it fills up or the ring runs dry. When the writer falls a whole ring behind,
+ * records are dropped and counted instead of making the query threads wait.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ *   header   "DNSL", u16 version
+ *   records  u16 length of the rest of the record,
+ *            i64 time sent in milliseconds since the epoch, u32 latency in microseconds,
+ *            u8 flags: 1 answered from the cache, 2 from a local zone, 4 from upstream, 8 over TCP,
+ *            u16 response header flags (QR, opcode, AA, TC, RD, RA, RCODE), u16 answer count,
+ *            client as u8 address length (4 or 16), address, u16 port,
+ *            upstream that answered in the same form, or a single u8 0,
+ *            u16 type of the first question, u8 name length, name in wire format
+ * </pre>
+ * A file that reaches its size limit is renamed with the suffix ".1", older files move up one number and
+ * the oldest beyond the file limit is deleted.
+ */
+public final class QueryLog implements Closeable {
+
+    /**
+     * Flag of a response with a question answered from the cache.
+     */
+    public static final int FROM_CACHE = 1;
+    /**
+     * Flag of a response with a question answered from a local zone.
+     */
+    public static final int FROM_ZONE = 2;
+    /**
+     * Flag of a response with a question resolved upstream.
+     */
+    public static final int FROM_UPSTREAM = 4;
+    private static final int OVER_TCP = 8;
+
+    private static final Logger log = Logger.getLogger(QueryLog.class.getName());
+
+    private static final int MAGIC = 0x444E534C; // "DNSL"
+    private static final short VERSION = 1;
+    // Large enough for the fixed fields, two IPv6 addresses and a 255-byte name.
+    private static final int SLOT_SIZE = 320;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path path;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final Metrics metrics;
+    private final int mask;
+    private final ByteBuffer ring;
+    // Slot i may be read once it holds the sequence number of the record written into it, plus one.
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final Thread writer;
+    private volatile long drained;
+    private volatile boolean closed;
+    private FileChannel file;
+    private long fileBytes;
+    private boolean failing;
+
+    /**
+     * Opens the log, moving an existing file at the path aside first, and starts the writer thread.
+     * @param path The file written to.
+     * @param capacity The number of records the ring holds, rounded up to a power of two.
+     * @param maxFileBytes The size at which the file is rotated.
+     * @param maxFiles The number of files kept, including the one being written.
+     * @param metrics Counts the records dropped.
+     */
+    public QueryLog(Path path, int capacity, long maxFileBytes, int maxFiles, Metrics metrics) throws IOException {
+        if (maxFileBytes < 1 || maxFiles < 1)
+            throw new IllegalArgumentException("Query log needs a positive file size and file count");
+        this.path = path;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.metrics = metrics;
+        int size = Integer.highestOneBit(Math.clamp(capacity, 2, 1 << 24) - 1) << 1;
+        this.mask = size - 1;
+        this.ring = ByteBuffer.allocate(size * SLOT_SIZE);
+        this.published = new AtomicLongArray(size);
+        if (Files.exists(path))
+            rotate();
+        open();
+        this.writer = Thread.ofPlatform().daemon().name("dns-query-log").start(this::drain);
+    }
+
+    /**
+     * Records a response. Never blocks: when the ring is full the record is dropped and counted.
+     * @param client The client the response is sent to.
+     * @param tcp Whether the request came over TCP.
+     * @param sources Where the answers came from, as a combination of the {@code FROM_*} flags.
+     * @param upstream The upstream server that answered, or null.
+     * @param startNanos When the request was received, from {@link System#nanoTime()}.
+     * @param response The encoded response, from index 0 to its limit.
+     */
+    public void log(SocketAddress client, boolean tcp, int sources, SocketAddress upstream, long startNanos,
+                    ByteBuffer response) {
+        long latency = System.nanoTime() - startNanos;
+        long sequence = claim();
+        if (sequence < 0)
+            return;
+        int start = ((int) sequence & mask) * SLOT_SIZE;
+        int end = start + 2;
+        try {
+            int at = putResponse(start + 2, tcp ? sources | OVER_TCP : sources, latency, response);
+            at = putAddress(at, client);
+            at = putAddress(at, upstream);
+            end = putQuestion(at, response);
+        } finally {
+            publish(sequence, end - start - 2);
+        }
+    }
+
+    /**
+     * Records a response to a UDP request answered without an upstream, reading the client's IP address
+     * where it is, e.g. inside a socket address in kernel format. Never blocks or allocates.
+     * @param client The buffer holding the client's IP address.
+     * @param offset Where the address starts in the buffer.
+     * @param length The length of the address, 4 or 16.
+     * @param port The client's port.
+     * @param sources Where the answers came from, as a combination of the {@code FROM_*} flags.
+     * @param startNanos When the request was received, from {@link System#nanoTime()}.
+     * @param response The encoded response, from index 0 to its limit.
+     */
+    public void log(ByteBuffer client, int offset, int length, int port, int sources, long startNanos,
+                    ByteBuffer response) {
+        long latency = System.nanoTime() - startNanos;
+        long sequence = claim();
+        if (sequence < 0)
+            return;
+        int start = ((int) sequence & mask) * SLOT_SIZE;
+        int end = start + 2;
+        try {
+            int at = putResponse(start + 2, sources, latency, response);
+            ring.put(at, (byte) length);
+            ring.put(at + 1, client, offset, length);
+            ring.putShort(at + 1 + length, (short) port);
+            ring.put(at + 3 + length, (byte) 0);
+            end = putQuestion(at + 4 + length, response);
+        } finally {
+            publish(sequence, end - start - 2);
+        }
+    }
+
+    // Claims the next slot of the ring and returns its sequence number, or -1 when the ring is full.
+    private long claim() {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - drained > mask) {
+                metrics.countQueryLogDropped();
+                return -1;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        return sequence;
+    }
+
+    // A slot is always published, if only empty, so that the writer never waits on it forever.
+    private void publish(long sequence, int length) {
+        int slot = (int) sequence & mask;
+        ring.putShort(slot * SLOT_SIZE, (short) length);
+        published.set(slot, sequence + 1);
+    }
+
+    // Encodes the fixed fields of a record after its length field and returns the index after them.
+    private int putResponse(int at, int flags, long latency, ByteBuffer response) {
+        boolean complete = response.limit() >= Wire.HEADER_SIZE;
+        ring.putLong(at, System.currentTimeMillis());
+        ring.putInt(at + 8, (int) Math.min(TimeUnit.NANOSECONDS.toMicros(latency), 0xFFFFFFFFL));
+        ring.put(at + 12, (byte) flags);
+        ring.putShort(at + 13, complete ? response.getShort(2) : 0);
+        ring.putShort(at + 15, complete ? response.getShort(6) : 0);
+        return at + 17;
+    }
+
+    // Encodes the type and name of the first question and returns the index after them.
+    private int putQuestion(int at, ByteBuffer response) {
+        boolean complete = response.limit() >= Wire.HEADER_SIZE;
+        int nameLength = complete && response.getShort(4) != 0 ? nameLength(response) : 0;
+        ring.putShort(at, nameLength > 0 ? response.getShort(Wire.HEADER_SIZE + nameLength) : 0);
+        ring.put(at + 2, (byte) nameLength);
+        ring.put(at + 3, response, Wire.HEADER_SIZE, nameLength);
+        return at + 3 + nameLength;
+    }
+
+    private int putAddress(int at, SocketAddress address) {
+        if (!(address instanceof InetSocketAddress socketAddress) || socketAddress.getAddress() == null) {
+            ring.put(at, (byte) 0);
+            return at + 1;
+        }
+        byte[] bytes = socketAddress.getAddress().getAddress();
+        ring.put(at, (byte) bytes.length);
+        ring.put(at + 1, bytes);
+        ring.putShort(at + 1 + bytes.length, (short) socketAddress.getPort());
+        return at + 3 + bytes.length;
+    }
+
+    // Returns the length of the uncompressed name of the first question, with its terminating zero, or 0 when
+    // the name or the type after it does not fit in the response.
+    private static int nameLength(ByteBuffer response) {
+        int length = 0;
+        while (length < MAX_NAME_LENGTH && Wire.HEADER_SIZE + length < response.limit()) {
+            int label = response.get(Wire.HEADER_SIZE + length) & 0xFF;
+            if (label == 0)
+                return Wire.HEADER_SIZE + length + 3 <= response.limit() ? length + 1 : 0;
+            if (label > 63)
+                return 0;
+            length += label + 1;
+        }
+        return 0;
+    }
+
+    // Copies published records to the file in order, writing whenever the buffer is full or the ring is empty.
+    private void drain() {
+        long next = 0;
+        while (true) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next + 1) {
+                if (closed && claimed.get() == next)
+                    break;
+                if (out.position() > 0)
+                    flush();
+                else
+                    LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            int at = slot * SLOT_SIZE;
+            int length = ring.getShort(at) & 0xFFFF;
+            if (length > 0) {
+                if (out.remaining() < length + 2)
+                    flush();
+                out.put(out.position(), ring, at, length + 2);
+                out.position(out.position() + length + 2);
+            }
+            drained = ++next;
+        }
+        flush();
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Cannot close query log {0}: {1}", new Object[]{path, e.getMessage()});
+        }
+    }
+
+    // Writes the buffered records and rotates the file once it is full. Records that cannot be written are
+    // lost; the error is logged once until writing works again.
+    private void flush() {
+        try {
+            for (out.flip(); out.hasRemaining(); )
+                fileBytes += file.write(out);
+            if (fileBytes >= maxFileBytes) {
+                file.close();
+                rotate();
+                open();
+            }
+            failing = false;
+        } catch (IOException e) {
+            if (!failing)
+                log.log(Level.WARNING, "Cannot write query log {0}: {1}", new Object[]{path, e.getMessage()});
+            failing = true;
+        } finally {
+            out.clear();
+        }
+    }
+
+    private void rotate() throws IOException {
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path older = i == 1 ? path : rotated(i - 1);
+            if (Files.exists(older))
+                Files.move(older, rotated(i), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private Path rotated(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    private void open() throws IOException {
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(6).putInt(MAGIC).putShort(VERSION).flip();
+        while (header.hasRemaining())
+            file.write(header);
+        fileBytes = header.capacity();
+    }
+
+    /**
+     * Writes the records still in the ring and closes the file.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prints the records of a log file as text, one line per response.
+     * @param path The log file.
+     * @param out Where the lines are printed.
+     */
+    public static void print(Path path, PrintStream out) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION)
+                throw new IllegalArgumentException("Not a query log: " + path);
+            while (true) {
+                byte[] record;
+                try {
+                    record = new byte[in.readUnsignedShort()];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    return;
+                }
+                out.println(format(ByteBuffer.wrap(record)));
+            }
+        }
+    }
+
+    private static String format(ByteBuffer record) throws IOException {
+        Instant time = Instant.ofEpochMilli(record.getLong());
+        long latency = record.getInt() & 0xFFFFFFFFL;
+        int flags = record.get();
+        int header = record.getShort() & 0xFFFF;
+        int answers = record.getShort() & 0xFFFF;
+        String client = readAddress(record);
+        String upstream = readAddress(record);
+        short type = record.getShort();
+        StringBuilder name = new StringBuilder();
+        int nameLength = record.get() & 0xFF;
+        for (int label = nameLength > 0 ? record.get() & 0xFF : 0; label > 0; label = record.get() & 0xFF) {
+            for (int i = 0; i < label; i++)
+                name.append((char) (record.get() & 0xFF));
+            name.append('.');
+        }
+        StringBuilder line = new StringBuilder()
+                .append(time).append(' ').append(client).append((flags & OVER_TCP) != 0 ? " tcp " : " udp ")
+                .append(name.isEmpty() ? "." : name).append(' ').append(RecordType.toString(type)).append(' ')
+                .append(Resolution.toString(header & 0xF)).append(" answers=").append(answers)
+                .append(" latency=").append(latency).append("us");
+        if ((header & 0x0200) != 0)
+            line.append(" truncated");
+        if ((flags & FROM_CACHE) != 0)
+            line.append(" cache");
+        if ((flags & FROM_ZONE) != 0)
+            line.append(" zone");
+        if ((flags & FROM_UPSTREAM) != 0)
+            line.append(" upstream");
+        if (upstream != null)
+            line.append(' ').append(upstream);
+        return line.toString();
+    }
+
+    private static String readAddress(ByteBuffer record) throws IOException {
+        int length = record.get() & 0xFF;
+        if (length == 0)
+            return null;
+        byte[] address = new byte[length];
+        record.get(address);
+        return InetAddress.getByAddress(address).getHostAddress() + ":" + (record.getShort() & 0xFFFF);
+    }
+}
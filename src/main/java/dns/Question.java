@@ -1,20 +1,20 @@
 package dns;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Represents a DNS question section.
  */
 public class Question {
 
-    private static final String SEPARATOR = "\\.";
-
     private final short qType;
     private final short qClass;
     private final String name;
+    private int hash;
 
     /**
      * Constructs a new Question with the specified domain name, query type, and query class.
@@ -37,42 +37,78 @@ public class Question {
      * @return the byte array representation of the question
      */
     public byte[] getName() {
-        byte[] encodedDomainName = encodeDomainName(name);
-        ByteBuffer buffer = ByteBuffer.allocate(encodedDomainName.length + 4); // 4 bytes for qType and qClass
-        buffer.put(encodedDomainName);
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Wire.MAX_NAME_LENGTH + 4); // 4 bytes for qType and qClass
+        writeTo(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Writes the encoded domain name, query type and class into a buffer.
+     *
+     * @param buffer the buffer to write to
+     */
+    public void writeTo(ByteBuffer buffer) {
+        writeTo(buffer, null);
+    }
+
+    /**
+     * Writes the question into a message, adding its name to the message's compression table.
+     *
+     * @param buffer      the buffer to write to
+     * @param compression the compression table of the message, or null to write the name uncompressed
+     */
+    public void writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+        Wire.putName(buffer, name, compression);
         buffer.putShort(qType);
         buffer.putShort(qClass);
-        return buffer.array(); // No need for Arrays.copyOf as buffer.array() returns the full array
     }
 
     /**
-     * Returns a string representation of the question, including the domain name, query type, and query class.
-     *
-     * @return the string representation of the question
+     * Returns the domain name being queried.
      */
-    public String toString() {
-        return "Question: " + name + ", Type: " + qType + ", Class: " + qClass;
+    public String getDomain() {
+        return name;
+    }
+
+    /**
+     * Returns the query type.
+     */
+    public short getQType() {
+        return qType;
     }
 
     /**
-     * Encodes the domain name into a byte array suitable for DNS queries.
+     * Returns the query class.
+     */
+    public short getQClass() {
+        return qClass;
+    }
+
+    /**
+     * Two questions are equal when they ask for the same type and class of the same name.
+     * Domain names are compared case-insensitively.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Question other)) return false;
+        return qType == other.qType && qClass == other.qClass && name.equalsIgnoreCase(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0)
+            hash = h = Objects.hash(name.toLowerCase(Locale.ROOT), qType, qClass);
+        return h;
+    }
+
+    /**
+     * Returns a string representation of the question, including the domain name, query type, and query class.
      *
-     * @param s the domain name to encode
-     * @return the encoded byte array of the domain name
+     * @return the string representation of the question
      */
-    private byte[] encodeDomainName(String s) {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            for (String label : s.split(SEPARATOR)) {
-                int len = label.length();
-                if (len > 63)
-                    throw new IllegalArgumentException("Label in domain name cannot be more than 63 characters");
-                out.write((byte) len);
-                out.write(label.getBytes(StandardCharsets.UTF_8)); // Avoid platform dependency
-            }
-            out.write(0); // End of domain name
-            return out.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException("Error encoding domain name", e);
-        }
+    public String toString() {
+        return "Question: " + name + ", Type: " + qType + ", Class: " + qClass;
     }
 }
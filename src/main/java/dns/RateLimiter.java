@@ -0,0 +1,220 @@
+package dns;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Response rate limiting (RRL) for UDP. Responses are limited per client subnet and response identity,
+ * the lowercased name and type of the first question, so a flood of identical queries from one network,
+ * which is what a reflection attack through this server looks like, is cut down while other names and
+ * other networks are unaffected. Each rule limits one prefix length, e.g. 10 responses per second per
+ * IPv4 /24, and a response must pass every rule for its address family.
+ * <p>
+ * Every subnet and identity owns a token bucket, kept as a single theoretical arrival time (the GCRA form
+ * of a token bucket): a response is allowed while that time is less than one second's worth of responses
+ * ahead of now, and each allowed response moves it one interval forward. Buckets live in a fixed-size
+ * open-addressing table updated with compare-and-set only, so the check takes no lock and allocates no
+ * entry. When all slots a key may use are taken, the bucket closest to full is overwritten, which at
+ * worst lets one more burst through. A limited response is dropped, except that one in {@code slip} is
+ * answered with an empty truncated response instead, so a legitimate client whose address is being
+ * spoofed can still get its answer over TCP.
+ */
+public final class RateLimiter {
+
+    /**
+     * What to do with a response.
+     */
+    public enum Action {
+        ALLOW, DROP, SLIP
+    }
+
+    /**
+     * A limit for one prefix length.
+     * @param ipv6 Whether the rule applies to IPv6 clients rather than IPv4 clients.
+     * @param prefixLength The length of the prefix clients are grouped by.
+     * @param responsesPerSecond The responses allowed per second for each prefix and identity.
+     */
+    public record Rule(boolean ipv6, int prefixLength, int responsesPerSecond) {
+        public Rule {
+            if (prefixLength < 0 || prefixLength > (ipv6 ? 128 : 32))
+                throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+            if (responsesPerSecond < 1)
+                throw new IllegalArgumentException("Rate must be at least 1 response per second");
+        }
+
+        /**
+         * Parses a rule given as "prefix-length:responses-per-second", e.g. "24:10".
+         * @param rule The rule to parse.
+         * @param ipv6 Whether the rule applies to IPv6 clients.
+         */
+        public static Rule parse(String rule, boolean ipv6) {
+            int separator = rule.indexOf(':');
+            if (separator < 0)
+                throw new IllegalArgumentException("Rate limit must be given as prefix:rate but was: " + rule);
+            try {
+                return new Rule(ipv6, Integer.parseInt(rule.substring(0, separator).strip()),
+                        Integer.parseInt(rule.substring(separator + 1).strip()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Rate limit must be given as prefix:rate but was: " + rule, e);
+            }
+        }
+    }
+
+    private static final int PROBES = 4;
+    private static final long SECOND_NANOS = 1_000_000_000L;
+
+    private final List<Rule> rules;
+    private final int slip;
+    private final int mask;
+    // Slot i holds its key at index 2i and its theoretical arrival time, relative to the epoch, at 2i + 1.
+    private final AtomicLongArray slots;
+    private final long epoch = System.nanoTime();
+
+    /**
+     * Creates a limiter.
+     * @param rules The limits, each for one address family and prefix length.
+     * @param slip Every how many limited responses one is answered truncated instead of dropped; 0 to always drop.
+     * @param tableSize The number of buckets kept, rounded up to a power of two.
+     */
+    public RateLimiter(List<Rule> rules, int slip, int tableSize) {
+        this.rules = List.copyOf(rules);
+        this.slip = Math.max(0, slip);
+        int size = Integer.highestOneBit(Math.clamp(tableSize, PROBES, 1 << 28) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(2 * size);
+    }
+
+    /**
+     * Decides whether a response to a UDP request may be sent.
+     * @param client The client address.
+     * @param reader The decoded request, or null when it could not be decoded; all such requests from a
+     *               subnet share one identity.
+     * @param now The current time from {@link System#nanoTime()}.
+     */
+    public Action check(SocketAddress client, WireReader reader, long now) {
+        if (!(client instanceof InetSocketAddress socketAddress) || socketAddress.getAddress() == null)
+            return Action.ALLOW;
+        byte[] bytes = socketAddress.getAddress().getAddress();
+        return check(ByteBuffer.wrap(bytes), 0, bytes.length, reader, now);
+    }
+
+    /**
+     * Decides whether a response to a UDP request may be sent, reading the client's IP address where it is,
+     * e.g. inside a socket address in kernel format.
+     * @param address The buffer holding the address.
+     * @param offset Where the address starts in the buffer.
+     * @param length The length of the address, 4 for IPv4 and 16 for IPv6.
+     * @param reader The decoded request, or null when it could not be decoded; all such requests from a
+     *               subnet share one identity.
+     * @param now The current time from {@link System#nanoTime()}.
+     */
+    public Action check(ByteBuffer address, int offset, int length, WireReader reader, long now) {
+        boolean ipv6 = length == 16;
+        long identity = reader != null && reader.getQdCount() > 0 ? identity(reader) : 0;
+        long time = now - epoch;
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            if (rule.ipv6() != ipv6
+                    || take(key(i, rule.prefixLength(), address, offset, length, identity),
+                    rule.responsesPerSecond(), time))
+                continue;
+            // A refused response costs nothing, so a client over one limit does not drain its other buckets.
+            for (int j = 0; j < i; j++) {
+                Rule taken = rules.get(j);
+                if (taken.ipv6() == ipv6)
+                    refund(key(j, taken.prefixLength(), address, offset, length, identity),
+                            taken.responsesPerSecond());
+            }
+            return slip > 0 && ThreadLocalRandom.current().nextInt(slip) == 0 ? Action.SLIP : Action.DROP;
+        }
+        return Action.ALLOW;
+    }
+
+    // Takes one token from the bucket of a key, creating or reclaiming a slot for it as needed.
+    private boolean take(long key, int rate, long now) {
+        long interval = SECOND_NANOS / rate;
+        long tolerance = SECOND_NANOS - interval;
+        int slot = slot(key, now);
+        int at = 2 * slot + 1;
+        while (true) {
+            long tat = slots.get(at);
+            long next = Math.max(tat, now);
+            if (next - now > tolerance)
+                return false;
+            if (slots.compareAndSet(at, tat, next + interval))
+                return true;
+        }
+    }
+
+    // Gives back the token just taken from the bucket of a key, unless the key has lost its slot since.
+    private void refund(long key, int rate) {
+        long interval = SECOND_NANOS / rate;
+        int first = (int) key & mask;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (first + probe) & mask;
+            if (slots.get(2 * slot) == key) {
+                slots.getAndAdd(2 * slot + 1, -interval);
+                return;
+            }
+        }
+    }
+
+    // Finds the slot of a key among its probes. A key that has none takes an empty slot, or else the one
+    // whose bucket refills first.
+    private int slot(long key, long now) {
+        int first = (int) key & mask;
+        int victim = first;
+        long victimTat = Long.MAX_VALUE;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (first + probe) & mask;
+            long current = slots.get(2 * slot);
+            if (current == key)
+                return slot;
+            if (current == 0 && slots.compareAndSet(2 * slot, 0, key))
+                return slot;
+            long tat = slots.get(2 * slot + 1);
+            if (tat < victimTat) {
+                victim = slot;
+                victimTat = tat;
+            }
+        }
+        long previous = slots.get(2 * victim);
+        if (previous != key && slots.compareAndSet(2 * victim, previous, key))
+            slots.set(2 * victim + 1, Math.min(victimTat, now));
+        return victim;
+    }
+
+    // Hashes the lowercased wire-format name and the type of the first question.
+    private static long identity(WireReader reader) {
+        ByteBuffer data = reader.getData();
+        int offset = reader.getNameOffset(0);
+        long hash = reader.getQType(0);
+        for (int i = 0; i < reader.getNameLength(0); i++) {
+            int b = data.get(offset + i);
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            hash = mix(hash, b);
+        }
+        return hash;
+    }
+
+    // Hashes a rule, the client's prefix of the rule's length and the identity into a non-zero key.
+    private static long key(int rule, int prefixLength, ByteBuffer address, int offset, int length, long identity) {
+        long hash = mix(rule, prefixLength);
+        for (int i = 0; i < length; i++) {
+            int bits = Math.clamp(prefixLength - 8L * i, 0, 8);
+            hash = mix(hash, address.get(offset + i) & (0xFF << (8 - bits)) & 0xFF);
+        }
+        hash = mix(hash, identity);
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long hash, long value) {
+        long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+}
@@ -0,0 +1,252 @@
+package dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The typed rdata of a resource record. Records keep their rdata in uncompressed wire format;
+ * this model decodes it into its fields, possibly straight from a received message whose names are
+ * compressed, and encodes it again, compressing names where RFC 3597 allows it (NS, CNAME, PTR, MX
+ * and SOA). Types without a model, and rdata that does not decode, are kept as opaque bytes.
+ * The {@code toString} of every type is its master file presentation.
+ */
+public sealed interface RecordData {
+
+    /**
+     * Writes the rdata, without its length.
+     * @param buffer The buffer to write to.
+     * @param compression The compression table of the message, or null to write names uncompressed.
+     */
+    void writeTo(ByteBuffer buffer, Map<String, Integer> compression);
+
+    /**
+     * Returns the rdata in uncompressed wire format.
+     */
+    default byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * (Wire.MAX_NAME_LENGTH + 1) + 20);
+        writeTo(buffer, null);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Decodes rdata in uncompressed wire format.
+     * @param type The record type.
+     * @param rdata The rdata.
+     */
+    static RecordData of(short type, byte[] rdata) {
+        return read(type, ByteBuffer.wrap(rdata), rdata.length);
+    }
+
+    /**
+     * Decodes the rdata at the buffer's position, following compression pointers into the message, and
+     * moves the position past it. Rdata that does not decode as its type is returned as opaque bytes.
+     * @param type The record type.
+     * @param message The buffer holding the whole message, starting at index 0.
+     * @param length The rdata length.
+     */
+    static RecordData read(short type, ByteBuffer message, int length) {
+        int start = message.position();
+        int end = start + length;
+        try {
+            RecordData data = switch (type) {
+                case RecordType.A, RecordType.AAAA -> {
+                    if (length != (type == RecordType.A ? 4 : 16))
+                        yield null;
+                    byte[] address = new byte[length];
+                    message.get(address);
+                    yield new Address(InetAddress.getByAddress(address));
+                }
+                case RecordType.CNAME, RecordType.NS, RecordType.PTR -> new Name(type, Wire.readName(message));
+                case RecordType.MX -> new Mx(message.getShort() & 0xFFFF, Wire.readName(message));
+                case RecordType.SOA -> new Soa(Wire.readName(message), Wire.readName(message),
+                        message.getInt() & 0xFFFFFFFFL, message.getInt(), message.getInt(), message.getInt(),
+                        message.getInt() & 0xFFFFFFFFL);
+                case RecordType.SRV -> new Srv(message.getShort() & 0xFFFF, message.getShort() & 0xFFFF,
+                        message.getShort() & 0xFFFF, Wire.readName(message));
+                case RecordType.TXT -> {
+                    List<String> strings = new ArrayList<>();
+                    while (message.position() < end) {
+                        byte[] string = new byte[message.get() & 0xFF];
+                        message.get(string);
+                        strings.add(new String(string, StandardCharsets.UTF_8));
+                    }
+                    yield strings.isEmpty() ? null : new Txt(strings);
+                }
+                default -> null;
+            };
+            if (data != null && message.position() == end)
+                return data;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | BufferUnderflowException
+                 | UnknownHostException e) {
+            // Falls through to the opaque bytes below.
+        }
+        byte[] rdata = new byte[length];
+        message.get(start, rdata);
+        message.position(end);
+        return new Opaque(rdata);
+    }
+
+    /**
+     * An IPv4 (A) or IPv6 (AAAA) address.
+     */
+    record Address(InetAddress address) implements RecordData {
+        @Override
+        public void writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+            buffer.put(address.getAddress());
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress();
+        }
+    }
+
+    /**
+     * The single domain name of a CNAME, NS or PTR record.
+     */
+    record Name(short type, String name) implements RecordData {
+        @Override
+        public void writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+            Wire.putName(buffer, name, compression);
+        }
+
+        @Override
+        public String toString() {
+            return absolute(name);
+        }
+    }
+
+    /**
+     * A mail exchange and its preference.
+     */
+    record Mx(int preference, String exchange) implements RecordData {
+        @Override
+        public void writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+            buffer.putShort((short) preference);
+            Wire.putName(buffer, exchange, compression);
+        }
+
+        @Override
+        public String toString() {
+            return preference + " " + absolute(exchange);
+        }
+    }
+
+    /**
+     * The start of authority of a zone.
+     */
+    record Soa(String mname, String rname, long serial, int refresh, int retry, int expire, long minimum)
+            implements RecordData {
+        @Override
+        public void writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+            Wire.putName(buffer, mname, compression);
+            Wire.putName(buffer, rname, compression);
+            buffer.putInt((int) serial).putInt(refresh).putInt(retry).putInt(expire).putInt((int) minimum);
+        }
+
+        @Override
+        public String toString() {
+            return absolute(mname) + " " + absolute(rname) + " " + serial + " " + refresh + " " + retry + " "
+                    + expire + " " + minimum;
+        }
+    }
+
+    /**
+     * A service location. Its target is never compressed, as RFC 2782 requires.
+     */
+    record Srv(int priority, int weight, int port, String target) implements RecordData {
+        @Override
+        public void writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+            buffer.putShort((short) priority).putShort((short) weight).putShort((short) port);
+            Wire.putName(buffer, target);
+        }
+
+        @Override
+        public String toString() {
+            return priority + " " + weight + " " + port + " " + absolute(target);
+        }
+    }
+
+    /**
+     * One or more character strings.
+     */
+    record Txt(List<String> strings) implements RecordData {
+        public Txt {
+            strings = List.copyOf(strings);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            int size = 0;
+            for (String string : strings)
+                size += 1 + string.getBytes(StandardCharsets.UTF_8).length;
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            writeTo(buffer, null);
+            return buffer.array();
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > 255)
+                    throw new IllegalArgumentException("TXT string longer than 255 bytes");
+                buffer.put((byte) bytes.length).put(bytes);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return strings.stream()
+                    .map(string -> '"' + string.replace("\\", "\\\\").replace("\"", "\\\"") + '"')
+                    .collect(Collectors.joining(" "));
+        }
+    }
+
+    /**
+     * Rdata of a type without a model, shown in the RFC 3597 generic format.
+     */
+    record Opaque(byte[] rdata) implements RecordData {
+        @Override
+        public byte[] toBytes() {
+            return rdata.clone();
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, Map<String, Integer> compression) {
+            buffer.put(rdata);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Opaque other && Arrays.equals(rdata, other.rdata);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(rdata);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("\\# ").append(rdata.length);
+            if (rdata.length > 0)
+                text.append(' ');
+            for (byte b : rdata)
+                text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return text.toString();
+        }
+    }
+
+    private static String absolute(String name) {
+        return name.endsWith(".") ? name : name + ".";
+    }
+}
@@ -0,0 +1,71 @@
+package dns;
+
+import java.util.Locale;
+
+/**
+ * Numeric values and mnemonics of the resource record types the server understands.
+ */
+public final class RecordType {
+
+    public static final short A = 1;
+    public static final short NS = 2;
+    public static final short CNAME = 5;
+    public static final short SOA = 6;
+    public static final short PTR = 12;
+    public static final short MX = 15;
+    public static final short TXT = 16;
+    public static final short AAAA = 28;
+    public static final short SRV = 33;
+    public static final short OPT = 41;
+    public static final short ANY = 255;
+
+    public static final short CLASS_IN = 1;
+
+    private RecordType() {
+    }
+
+    /**
+     * Returns the numeric type of a mnemonic such as "AAAA", or of the generic "TYPE123" form.
+     * @param name The mnemonic.
+     */
+    public static short parse(String name) {
+        return switch (name.toUpperCase(Locale.ROOT)) {
+            case "A" -> A;
+            case "NS" -> NS;
+            case "CNAME" -> CNAME;
+            case "SOA" -> SOA;
+            case "PTR" -> PTR;
+            case "MX" -> MX;
+            case "TXT" -> TXT;
+            case "AAAA" -> AAAA;
+            case "SRV" -> SRV;
+            case "ANY" -> ANY;
+            default -> {
+                if (name.regionMatches(true, 0, "TYPE", 0, 4))
+                    yield (short) Integer.parseInt(name.substring(4));
+                throw new IllegalArgumentException("Unknown record type: " + name);
+            }
+        };
+    }
+
+    /**
+     * Returns the mnemonic of a numeric type, or "TYPE123" for types without one.
+     * @param type The numeric type.
+     */
+    public static String toString(short type) {
+        return switch (type) {
+            case A -> "A";
+            case NS -> "NS";
+            case CNAME -> "CNAME";
+            case SOA -> "SOA";
+            case PTR -> "PTR";
+            case MX -> "MX";
+            case TXT -> "TXT";
+            case AAAA -> "AAAA";
+            case SRV -> "SRV";
+            case OPT -> "OPT";
+            case ANY -> "ANY";
+            default -> "TYPE" + (type & 0xFFFF);
+        };
+    }
+}
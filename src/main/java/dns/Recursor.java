@@ -0,0 +1,343 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves questions iteratively, without an upstream resolver. Resolution starts at the closest
+ * delegation known for the name, or at the root servers, and follows NS referrals with their glue
+ * down to a server that answers; CNAME chains are followed by resolving each target in turn. Name server
+ * addresses come from A and AAAA glue, or when there is none from resolving the name server's A records
+ * and then its AAAA records.
+ * The infrastructure learnt on the way is cached apart from the answers: delegations (the NS names of
+ * each zone cut), name server addresses and the smoothed RTT of every server, which orders the servers
+ * of a zone so the fastest one is asked first. Referrals are only accepted below the zone that gave
+ * them and glue only inside it, and every chain of referrals, CNAMEs and nested name server lookups
+ * has a bound, so a broken or hostile delegation cannot keep a resolution going forever.
+ */
+public class Recursor implements Resolver {
+
+    private static final Logger log = Logger.getLogger(Recursor.class.getName());
+
+    private static final int MAX_REFERRALS = 16;
+    private static final int MAX_CNAMES = 8;
+    private static final int MAX_DEPTH = 4;
+    private static final int MAX_SERVERS_TRIED = 3;
+    private static final int MAX_INFRASTRUCTURE_ENTRIES = 10_000;
+    private static final int RTT_SHIFT = 3;
+    private static final long UNKNOWN_RTT_MICROS = 50_000;
+    private static final int RESPONSE_FLAG = 0x8000;
+    private static final String ROOT = "";
+    private static final short[] ADDRESS_TYPES = {RecordType.A, RecordType.AAAA};
+
+    /**
+     * Addresses of the root servers, a.root-servers.net to m.root-servers.net.
+     */
+    public static final List<String> ROOT_HINTS = List.of("198.41.0.4", "170.247.170.2", "192.33.4.12",
+            "199.7.91.13", "192.203.230.10", "192.5.5.241", "192.112.36.4", "198.97.190.53", "192.36.148.17",
+            "192.58.128.30", "193.0.14.129", "199.7.83.42", "202.12.27.33");
+
+    private final UpstreamClient client;
+    private final List<SocketAddress> rootServers;
+    private final int port;
+    private final long maxTtl;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Delegation> delegations = new ConcurrentHashMap<>();
+    private final Map<String, Addresses> addresses = new ConcurrentHashMap<>();
+    private final Map<SocketAddress, Long> rtts = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the channel used to query authoritative servers.
+     * @param rootServers The root servers to start from.
+     * @param port The port name servers found through referrals listen on, normally 53.
+     * @param timeoutMs How long to wait for one server before trying the next.
+     * @param payloadSize The UDP payload size advertised through EDNS(0).
+     * @param maxTtl The upper bound in seconds for cached delegations and addresses.
+     */
+    public Recursor(List<SocketAddress> rootServers, int port, long timeoutMs, int payloadSize, long maxTtl)
+            throws IOException {
+        if (rootServers.isEmpty())
+            throw new IllegalArgumentException("At least one root server is required");
+        this.rootServers = List.copyOf(rootServers);
+        this.port = port;
+        this.maxTtl = maxTtl;
+        this.client = new UpstreamClient(timeoutMs, 0, payloadSize);
+    }
+
+    /**
+     * Resolves a question on a virtual thread of its own.
+     * @param question The question to resolve.
+     * @param recursionDesired Ignored; authoritative servers are always asked without recursion.
+     * @return A future completed with a reply holding the CNAME chain and the final answer.
+     */
+    @Override
+    public CompletableFuture<Message> query(Question question, boolean recursionDesired) {
+        return CompletableFuture.supplyAsync(() -> resolve(question, 0), executor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        client.close();
+    }
+
+    // Resolves a question and the CNAME chain it leads to. The chain is collected from each reply as far as
+    // it stays inside the zone that answered, and resolution starts over at the last target when it leaves.
+    private Message resolve(Question question, int depth) {
+        List<Answer> chain = new ArrayList<>();
+        String name = question.getDomain();
+        for (int cnames = 0; ; ) {
+            Answered result = iterate(new Question(name, question.getQType(), question.getQClass()), depth);
+            Message reply = result.reply();
+            String owner = name;
+            boolean answered = false;
+            while (!answered) {
+                Answer cname = null;
+                for (Answer answer : reply.getAnswers()) {
+                    if (!answer.getDomain().equalsIgnoreCase(owner))
+                        continue;
+                    if (answer.getQType() == question.getQType() || question.getQType() == RecordType.ANY) {
+                        chain.add(answer);
+                        answered = true;
+                    } else if (answer.getQType() == RecordType.CNAME && cname == null) {
+                        cname = answer;
+                    }
+                }
+                if (answered || cname == null || question.getQType() == RecordType.CNAME)
+                    break;
+                if (++cnames > MAX_CNAMES)
+                    throw new IllegalStateException("CNAME chain of " + question.getDomain() + " is too long");
+                chain.add(cname);
+                owner = Wire.getName(cname.getRdata(), 0);
+                if (!isWithin(ZoneFile.normalize(owner), result.zone()))
+                    break;
+            }
+            if (answered || owner.equals(name))
+                return response(question, reply, chain, answered);
+            name = owner;
+        }
+    }
+
+    // Walks down the delegations from the closest known zone cut until a server answers the question.
+    private Answered iterate(Question question, int depth) {
+        String name = ZoneFile.normalize(question.getDomain());
+        Delegation zone = closest(name);
+        for (int referrals = 0; referrals < MAX_REFERRALS; referrals++) {
+            List<SocketAddress> servers = getServers(zone, depth);
+            if (servers.isEmpty())
+                throw new IllegalStateException("No name server of zone '" + zone.zone() + "' could be found");
+            Message reply = ask(servers, question);
+            if (reply.getHeader().getRcode() != Resolution.NOERROR || !reply.getAnswers().isEmpty())
+                return new Answered(reply, zone.zone());
+            Delegation referral = getReferral(reply, zone.zone(), name);
+            if (referral == null)
+                return new Answered(reply, zone.zone());
+            zone = referral;
+        }
+        throw new IllegalStateException("Too many referrals for " + name);
+    }
+
+    // Asks the servers of a zone in the order of their smoothed RTT until one gives a usable reply.
+    private Message ask(List<SocketAddress> servers, Question question) {
+        List<SocketAddress> ordered = new ArrayList<>(servers);
+        ordered.sort(Comparator.comparingLong(this::getRtt));
+        Exception failure = null;
+        for (SocketAddress server : ordered.subList(0, Math.min(MAX_SERVERS_TRIED, ordered.size()))) {
+            long start = System.nanoTime();
+            try {
+                Message reply = client.query(server, question, false).get();
+                observe(server, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                byte rcode = reply.getHeader().getRcode();
+                if (rcode == Resolution.SERVFAIL || rcode == Resolution.REFUSED) {
+                    failure = new IllegalStateException(server + " answered " + question + " with rcode " + rcode);
+                    continue;
+                }
+                return reply;
+            } catch (ExecutionException e) {
+                observe(server, 2 * TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }
+        log.log(Level.FINE, "No name server answered {0}", question);
+        throw new IllegalStateException("No name server answered " + question, failure);
+    }
+
+    // Returns the delegation in a referral, or null when the reply is not a referral. Only NS records for a
+    // zone below the current one and above or at the name count, and only glue inside the current zone.
+    private Delegation getReferral(Message reply, String current, String name) {
+        String child = null;
+        List<String> nameServers = new ArrayList<>();
+        long ttl = maxTtl;
+        for (Answer authority : reply.getAuthorities()) {
+            if (authority.getQType() != RecordType.NS)
+                continue;
+            String owner = ZoneFile.normalize(authority.getDomain());
+            if (owner.equals(current) || !isWithin(owner, current) || !isWithin(name, owner)
+                    || child != null && !owner.equals(child))
+                continue;
+            child = owner;
+            nameServers.add(ZoneFile.normalize(Wire.getName(authority.getRdata(), 0)));
+            ttl = Math.min(ttl, authority.getTtl() & 0xFFFFFFFFL);
+        }
+        if (child == null)
+            return null;
+        Map<String, List<InetAddress>> glue = new HashMap<>();
+        for (Answer additional : reply.getAdditionals()) {
+            String owner = ZoneFile.normalize(additional.getDomain());
+            if (!isAddress(additional) || !nameServers.contains(owner) || !isWithin(owner, current))
+                continue;
+            InetAddress address = toAddress(additional);
+            if (address != null)
+                glue.computeIfAbsent(owner, key -> new ArrayList<>()).add(address);
+        }
+        long expiresAt = expiry(System.currentTimeMillis(), ttl);
+        glue.forEach((owner, list) -> store(addresses, owner, new Addresses(list, expiresAt)));
+        Delegation delegation = new Delegation(child, List.copyOf(nameServers), expiresAt);
+        store(delegations, child, delegation);
+        return delegation;
+    }
+
+    // Returns the deepest unexpired delegation cached for the name or one of its ancestors, else the root.
+    private Delegation closest(String name) {
+        long now = System.currentTimeMillis();
+        String candidate = name;
+        while (!candidate.isEmpty()) {
+            Delegation delegation = delegations.get(candidate);
+            if (delegation != null && delegation.expiresAt() > now)
+                return delegation;
+            int dot = candidate.indexOf('.');
+            candidate = dot < 0 ? ROOT : candidate.substring(dot + 1);
+        }
+        return new Delegation(ROOT, List.of(), Long.MAX_VALUE);
+    }
+
+    // Returns the addresses of a zone's name servers. When none is cached, the name servers' addresses are
+    // resolved one after another until one resolves, as long as the nesting of such lookups allows.
+    private List<SocketAddress> getServers(Delegation zone, int depth) {
+        if (zone.zone().equals(ROOT))
+            return rootServers;
+        long now = System.currentTimeMillis();
+        List<SocketAddress> servers = new ArrayList<>();
+        for (String nameServer : zone.nameServers()) {
+            Addresses cached = addresses.get(nameServer);
+            if (cached != null && cached.expiresAt() > now)
+                for (InetAddress address : cached.addresses())
+                    servers.add(new InetSocketAddress(address, port));
+        }
+        if (!servers.isEmpty() || depth >= MAX_DEPTH)
+            return servers;
+        for (String nameServer : zone.nameServers()) {
+            for (short type : ADDRESS_TYPES) {
+                try {
+                    Message reply = resolve(new Question(nameServer, type, RecordType.CLASS_IN), depth + 1);
+                    List<InetAddress> resolved = new ArrayList<>();
+                    long ttl = maxTtl;
+                    for (Answer answer : reply.getAnswers()) {
+                        InetAddress address = answer.getQType() == type ? toAddress(answer) : null;
+                        if (address == null)
+                            continue;
+                        resolved.add(address);
+                        servers.add(new InetSocketAddress(address, port));
+                        ttl = Math.min(ttl, answer.getTtl() & 0xFFFFFFFFL);
+                    }
+                    if (!resolved.isEmpty()) {
+                        store(addresses, nameServer,
+                                new Addresses(resolved, expiry(System.currentTimeMillis(), ttl)));
+                        return servers;
+                    }
+                } catch (RuntimeException e) {
+                    log.log(Level.FINE, "Cannot resolve name server {0}: {1}",
+                            new Object[]{nameServer, e.getMessage()});
+                }
+            }
+        }
+        return servers;
+    }
+
+    private Message response(Question question, Message reply, List<Answer> chain, boolean answered) {
+        int rcode = answered ? Resolution.NOERROR : reply.getHeader().getRcode();
+        List<Answer> authorities = answered ? List.of() : reply.getAuthorities();
+        Header header = new Header((short) 0, (short) (RESPONSE_FLAG | rcode), (short) 1, (short) chain.size(),
+                (short) authorities.size(), (short) 0);
+        return new Message(header, List.of(question), chain, authorities);
+    }
+
+    private long getRtt(SocketAddress server) {
+        Long rtt = rtts.get(server);
+        return rtt != null ? rtt : UNKNOWN_RTT_MICROS + ThreadLocalRandom.current().nextLong(UNKNOWN_RTT_MICROS);
+    }
+
+    // srtt += (sample - srtt) / 8; the first sample is taken as is.
+    private void observe(SocketAddress server, long sampleMicros) {
+        if (rtts.size() >= MAX_INFRASTRUCTURE_ENTRIES && !rtts.containsKey(server))
+            rtts.clear();
+        rtts.merge(server, sampleMicros, (srtt, sample) -> srtt + ((sample - srtt) >> RTT_SHIFT));
+    }
+
+    // Bounds the infrastructure caches: expired entries go first, and if that is not enough, everything.
+    private <V extends Expiring> void store(Map<String, V> cache, String key, V value) {
+        if (cache.size() >= MAX_INFRASTRUCTURE_ENTRIES) {
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(entry -> entry.expiresAt() <= now);
+            if (cache.size() >= MAX_INFRASTRUCTURE_ENTRIES)
+                cache.clear();
+        }
+        cache.put(key, value);
+    }
+
+    private static long expiry(long now, long ttl) {
+        return now + ttl * 1000;
+    }
+
+    private static boolean isAddress(Answer record) {
+        return record.getQType() == RecordType.A || record.getQType() == RecordType.AAAA;
+    }
+
+    // Returns the address of an A or AAAA record, or null when its rdata does not match the type.
+    private static InetAddress toAddress(Answer record) {
+        int length = record.getQType() == RecordType.A ? 4 : record.getQType() == RecordType.AAAA ? 16 : -1;
+        try {
+            return record.getRdLength() == length ? InetAddress.getByAddress(record.getRdata()) : null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static boolean isWithin(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private interface Expiring {
+        long expiresAt();
+    }
+
+    private record Delegation(String zone, List<String> nameServers, long expiresAt) implements Expiring {
+    }
+
+    private record Addresses(List<InetAddress> addresses, long expiresAt) implements Expiring {
+    }
+
+    private record Answered(Message reply, String zone) {
+    }
+}
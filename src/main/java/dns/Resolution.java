@@ -0,0 +1,370 @@
+package dns;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of resolving a single question: the response code, the records of the answer, authority
+ * and additional sections, and the wall-clock time until which the outcome may be served from the cache.
+ * Authoritative resolutions come from local zone data: they never expire and their TTLs never age.
+ */
+public class Resolution {
+
+    public static final int NOERROR = 0;
+    public static final int FORMERR = 1;
+    public static final int SERVFAIL = 2;
+    public static final int NXDOMAIN = 3;
+    public static final int REFUSED = 5;
+
+    private static final short RESPONSE_FLAGS = (short) 0x8000;
+
+    private final int rcode;
+    private final List<Answer> answers;
+    private final List<Answer> authorities;
+    private final List<Answer> additionals;
+    private final boolean authoritative;
+    private final long storedAt;
+    private final long expiresAt;
+    private final SocketAddress upstream;
+    private volatile EncodedResponse encoded;
+    private volatile boolean prefetched;
+
+    /**
+     * Returns the mnemonic of a response code, such as "NXDOMAIN", or "RCODE6" for codes without one.
+     * @param rcode The response code.
+     */
+    public static String toString(int rcode) {
+        return switch (rcode) {
+            case NOERROR -> "NOERROR";
+            case FORMERR -> "FORMERR";
+            case SERVFAIL -> "SERVFAIL";
+            case NXDOMAIN -> "NXDOMAIN";
+            case 4 -> "NOTIMP";
+            case REFUSED -> "REFUSED";
+            default -> "RCODE" + rcode;
+        };
+    }
+
+    /**
+     * Constructs a resolution with an answer section only.
+     * @param rcode The response code, including its extended bits.
+     * @param answers The answer records, with the TTLs they had at {@code storedAt}.
+     * @param storedAt The time in milliseconds at which the records were received.
+     * @param expiresAt The time in milliseconds after which the resolution must not be served.
+     */
+    public Resolution(int rcode, List<Answer> answers, long storedAt, long expiresAt) {
+        this(rcode, answers, List.of(), List.of(), false, storedAt, expiresAt);
+    }
+
+    /**
+     * Constructs a resolution.
+     * @param rcode The response code, including its extended bits.
+     * @param answers The answer records, with the TTLs they had at {@code storedAt}.
+     * @param authorities The authority records.
+     * @param additionals The additional records.
+     * @param authoritative Whether the records come from local zone data (the AA bit).
+     * @param storedAt The time in milliseconds at which the records were received.
+     * @param expiresAt The time in milliseconds after which the resolution must not be served.
+     */
+    public Resolution(int rcode, List<Answer> answers, List<Answer> authorities, List<Answer> additionals,
+                      boolean authoritative, long storedAt, long expiresAt) {
+        this(rcode, answers, authorities, additionals, authoritative, storedAt, expiresAt, null);
+    }
+
+    private Resolution(int rcode, List<Answer> answers, List<Answer> authorities, List<Answer> additionals,
+                       boolean authoritative, long storedAt, long expiresAt, SocketAddress upstream) {
+        this.rcode = rcode;
+        this.answers = List.copyOf(answers);
+        this.authorities = List.copyOf(authorities);
+        this.additionals = List.copyOf(additionals);
+        this.authoritative = authoritative;
+        this.storedAt = storedAt;
+        this.expiresAt = expiresAt;
+        this.upstream = upstream;
+    }
+
+    /**
+     * Builds a resolution from an upstream reply.
+     * Positive answers live for the smallest TTL among their records. Negative answers (NXDOMAIN, or
+     * NOERROR without records) live for min(SOA TTL, SOA MINIMUM) of the SOA in the authority section,
+     * as RFC 2308 specifies, and are not cacheable when the reply carries no SOA. The authority and
+     * additional records are kept, so negative answers are served with their SOA and referrals with their
+     * glue, except for the OPT record, which belongs to the reply rather than to the resolution. A reply
+     * with TC set is incomplete and never cacheable. The response code includes the extended bits of the
+     * reply's OPT record.
+     * @param reply The upstream reply.
+     * @param now The current time in milliseconds.
+     * @param maxTtl The upper bound in seconds for positive answers.
+     * @param maxNegativeTtl The upper bound in seconds for negative answers.
+     */
+    public static Resolution of(Message reply, long now, long maxTtl, long maxNegativeTtl) {
+        Edns edns = Edns.of(reply);
+        int rcode = edns == null ? reply.getHeader().getRcode() : edns.getRcode(reply.getHeader());
+        List<Answer> answers = reply.getAnswers();
+        List<Answer> additionals = new ArrayList<>(reply.getAdditionals());
+        additionals.removeIf(additional -> additional.getQType() == RecordType.OPT);
+        boolean complete = !reply.getHeader().isTc();
+        long ttl = 0;
+        if (complete && rcode == NOERROR && !answers.isEmpty()) {
+            ttl = maxTtl;
+            for (Answer answer : answers)
+                ttl = Math.min(ttl, answer.getTtl() & 0xFFFFFFFFL);
+        } else if (complete && (rcode == NOERROR || rcode == NXDOMAIN)) {
+            for (Answer authority : reply.getAuthorities()) {
+                long minimum = authority.getSoaMinimum();
+                if (minimum >= 0) {
+                    ttl = Math.min(maxNegativeTtl, Math.min(authority.getTtl() & 0xFFFFFFFFL, minimum));
+                    break;
+                }
+            }
+        }
+        return new Resolution(rcode, answers, reply.getAuthorities(), additionals, false, now, now + ttl * 1000,
+                reply.getSource());
+    }
+
+    /**
+     * Builds an authoritative resolution from local zone data.
+     * @param rcode The response code.
+     * @param answers The answer records.
+     * @param authorities The authority records.
+     * @param additionals The additional records.
+     * @param now The current time in milliseconds.
+     */
+    public static Resolution authoritative(int rcode, List<Answer> answers, List<Answer> authorities,
+                                           List<Answer> additionals, long now) {
+        return new Resolution(rcode, answers, authorities, additionals, true, now, Long.MAX_VALUE);
+    }
+
+    /**
+     * Builds an uncacheable referral to a zone delegated from local zone data.
+     * @param answers The answer records collected before reaching the delegation, e.g. a CNAME.
+     * @param authorities The NS records of the delegation.
+     * @param additionals The glue addresses of the name servers.
+     * @param now The current time in milliseconds.
+     */
+    public static Resolution referral(List<Answer> answers, List<Answer> authorities, List<Answer> additionals,
+                                      long now) {
+        return new Resolution(NOERROR, answers, authorities, additionals, false, now, now);
+    }
+
+    /**
+     * Rebuilds a resolution saved or sent as a message by {@link #toMessage}.
+     * @param message The message holding the records.
+     * @param rcode The response code, including its extended bits.
+     * @param storedAt The time in milliseconds at which the records were received.
+     * @param expiresAt The time in milliseconds after which the resolution must not be served.
+     * @param upstream The server the resolution was obtained from, or null.
+     */
+    public static Resolution restore(Message message, int rcode, long storedAt, long expiresAt,
+                                     SocketAddress upstream) {
+        return new Resolution(rcode, message.getAnswers(), message.getAuthorities(), message.getAdditionals(),
+                false, storedAt, expiresAt, upstream);
+    }
+
+    /**
+     * Builds an uncacheable resolution carrying only an error code.
+     * @param rcode The response code.
+     * @param now The current time in milliseconds.
+     */
+    public static Resolution failure(int rcode, long now) {
+        return new Resolution(rcode, List.of(), now, now);
+    }
+
+    /**
+     * Returns the full 12-bit response code.
+     */
+    public int getRcode() {
+        return rcode;
+    }
+
+    /**
+     * Returns whether the records come from local zone data.
+     */
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    /**
+     * Returns the answer records with their TTLs as received.
+     */
+    public List<Answer> getAnswers() {
+        return answers;
+    }
+
+    /**
+     * Returns the authority records with their TTLs as received.
+     */
+    public List<Answer> getAuthorities() {
+        return authorities;
+    }
+
+    /**
+     * Returns the additional records with their TTLs as received.
+     */
+    public List<Answer> getAdditionals() {
+        return additionals;
+    }
+
+    /**
+     * Returns the answer records with their TTLs reduced by the time spent in the cache.
+     * @param now The current time in milliseconds.
+     */
+    public List<Answer> getAnswers(long now) {
+        return age(answers, now);
+    }
+
+    /**
+     * Returns the authority records with their TTLs reduced by the time spent in the cache.
+     * @param now The current time in milliseconds.
+     */
+    public List<Answer> getAuthorities(long now) {
+        return age(authorities, now);
+    }
+
+    /**
+     * Returns the additional records with their TTLs reduced by the time spent in the cache.
+     * @param now The current time in milliseconds.
+     */
+    public List<Answer> getAdditionals(long now) {
+        return age(additionals, now);
+    }
+
+    /**
+     * Writes the answer records into a buffer with their TTLs reduced by the time spent in the cache,
+     * without creating any objects.
+     * @param buffer The buffer to write to.
+     * @param now The current time in milliseconds.
+     */
+    public void writeAnswers(ByteBuffer buffer, long now) {
+        write(buffer, answers, now);
+    }
+
+    /**
+     * Writes the authority records into a buffer, aged like {@link #writeAnswers}.
+     * @param buffer The buffer to write to.
+     * @param now The current time in milliseconds.
+     */
+    public void writeAuthorities(ByteBuffer buffer, long now) {
+        write(buffer, authorities, now);
+    }
+
+    /**
+     * Writes the additional records into a buffer, aged like {@link #writeAnswers}.
+     * @param buffer The buffer to write to.
+     * @param now The current time in milliseconds.
+     */
+    public void writeAdditionals(ByteBuffer buffer, long now) {
+        write(buffer, additionals, now);
+    }
+
+    /**
+     * Returns this resolution encoded as the complete response to a single-question request,
+     * encoding it on first use. Concurrent first uses may each encode it; any of the results is valid.
+     * @param request The reader holding the request.
+     * @param flags The response flags, without the RD bit.
+     */
+    EncodedResponse getEncoded(WireReader request, short flags) {
+        EncodedResponse response = encoded;
+        if (response == null)
+            encoded = response = EncodedResponse.of(this, request, flags);
+        return response;
+    }
+
+    /**
+     * Returns how many seconds the TTLs have to be reduced by, which is 0 for authoritative data.
+     * @param now The current time in milliseconds.
+     */
+    public int getElapsedSeconds(long now) {
+        if (authoritative)
+            return 0;
+        return (int) Math.max(0, (now - storedAt) / 1000);
+    }
+
+    /**
+     * Returns the time in milliseconds at which the records were received.
+     */
+    public long getStoredAt() {
+        return storedAt;
+    }
+
+    /**
+     * Returns the time in milliseconds after which this resolution must not be served.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Returns the server that sent the reply this resolution was built from, or null when it did not come
+     * from upstream.
+     */
+    public SocketAddress getUpstream() {
+        return upstream;
+    }
+
+    /**
+     * Returns whether this resolution may be stored in the cache at all.
+     */
+    public boolean isCacheable() {
+        return expiresAt > storedAt;
+    }
+
+    /**
+     * Returns whether this resolution has outlived its TTL.
+     * @param now The current time in milliseconds.
+     */
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * Claims the refresh of this resolution once it is within the last part of its lifetime, so that only
+     * the first of the requests arriving then starts a prefetch. Authoritative data is never prefetched.
+     * @param now The current time in milliseconds.
+     * @param percent How much of the lifetime, in percent, is left when prefetching starts.
+     * @return Whether the caller should refresh this resolution.
+     */
+    public boolean claimPrefetch(long now, int percent) {
+        if (prefetched || authoritative || !isCacheable()
+                || (expiresAt - now) * 100 >= (expiresAt - storedAt) * percent)
+            return false;
+        prefetched = true;
+        return true;
+    }
+
+    /**
+     * Encodes the question and the records with the TTLs they had when they were stored as a response
+     * message, so that the resolution can be saved or sent and rebuilt with {@link #restore}. The response
+     * code and the times are not part of the message.
+     * @param question The question this resolution answers.
+     */
+    public byte[] toMessage(Question question) {
+        Header header = new Header((short) 0, RESPONSE_FLAGS, (short) 1, (short) answers.size(),
+                (short) authorities.size(), (short) additionals.size());
+        return new Message(header, List.of(question), answers, authorities, additionals).getMessage();
+    }
+
+    private List<Answer> age(List<Answer> records, long now) {
+        int elapsed = getElapsedSeconds(now);
+        if (elapsed == 0)
+            return records;
+        List<Answer> aged = new ArrayList<>(records.size());
+        for (Answer record : records)
+            aged.add(record.withTtl(Math.max(0, record.getTtl() - elapsed)));
+        return aged;
+    }
+
+    private void write(ByteBuffer buffer, List<Answer> records, long now) {
+        int elapsed = getElapsedSeconds(now);
+        for (int i = 0; i < records.size(); i++) {
+            Answer record = records.get(i);
+            record.writeTo(buffer, Math.max(0, record.getTtl() - elapsed));
+        }
+    }
+
+    public String toString() {
+        return "Resolution: rcode " + rcode + ", " + answers + ", " + authorities + ", " + additionals;
+    }
+}
@@ -0,0 +1,19 @@
+package dns;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves questions the server cannot answer from its cache or its own zones, either by forwarding
+ * them to upstream resolvers or by resolving them iteratively from the root.
+ */
+public interface Resolver extends Closeable {
+
+    /**
+     * Resolves a single question.
+     * @param question The question to resolve.
+     * @param recursionDesired Whether the client asked for recursion.
+     * @return A future completed with the reply, or failed when no reply could be obtained.
+     */
+    CompletableFuture<Message> query(Question question, boolean recursionDesired);
+}
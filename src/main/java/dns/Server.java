@@ -1,12 +1,35 @@
 package dns;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,10 +37,61 @@ public class Server {
 
     private static final Logger log = Logger.getLogger(Server.class.getName());
 
-    private static final int PORT = 2053;
-    private static final int BUFFER_SIZE = 512;
-    private static final String ARGS_SEPARATOR = ":";
+    private static final int DEFAULT_PORT = 2053;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    private static final int DEFAULT_UPSTREAM_TIMEOUT_MS = 2000;
+    private static final int DEFAULT_UPSTREAM_RETRIES = 2;
+    private static final int DEFAULT_UPSTREAM_PROBE_MS = 1000;
+    private static final int DEFAULT_RECURSION_TIMEOUT_MS = 800;
+    private static final int DEFAULT_RECURSION_PORT = 53;
+    private static final int DEFAULT_CACHE_SIZE = 10_000;
+    private static final int DEFAULT_CACHE_MAX_TTL = 86_400;
+    private static final int DEFAULT_CACHE_MAX_NEGATIVE_TTL = 10_800;
+    private static final int DEFAULT_SNAPSHOT_POLL_MS = 1000;
+    private static final int DEFAULT_TCP_IDLE_TIMEOUT_MS = 10_000;
+    private static final int DEFAULT_TCP_PIPELINE = 64;
+    private static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    private static final int DEFAULT_UDP_BATCH = 64;
+    private static final int DEFAULT_RRL_SLIP = 2;
+    private static final int DEFAULT_RRL_TABLE_SIZE = 65_536;
+    private static final int DEFAULT_RELOAD_POLL_MS = 1000;
+    private static final int DEFAULT_CACHE_SNAPSHOT_INTERVAL_S = 60;
+    private static final int DEFAULT_REQUEST_TIMEOUT_MS = 5000;
+    private static final int DEFAULT_QUERY_LOG_BUFFER = 16_384;
+    private static final int DEFAULT_QUERY_LOG_FILE_MB = 100;
+    private static final int DEFAULT_QUERY_LOG_FILES = 10;
+    private static final int DEFAULT_CLUSTER_TIMEOUT_MS = 50;
+    private static final int DEFAULT_CLUSTER_HOT_THRESHOLD = 3;
+    private static final int RESOLVER_DRAIN_MS = 30_000;
+    private static final int TCP_MESSAGE_SIZE = 65_535;
     private static final Server INSTANCE = new Server();
+    private static final List<String> RESOLVER_OPTIONS = List.of("--resolver", "--recursive", "--root-hints",
+            "--recursion-port", "--recursion-timeout", "--upstream-timeout", "--upstream-retries", "--upstream-probe",
+            "--upstream-hedge-percentile");
+    private static final List<String> RATE_LIMIT_OPTIONS = List.of("--rrl-ipv4", "--rrl-ipv6", "--rrl-slip",
+            "--rrl-table-size");
+
+    private static final int RESPONSE_FLAG = 0x8000;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int RECURSION_DESIRED_FLAG = 0x0100;
+    private static final int TRUNCATED_FLAG = 0x0200;
+    private static final int AUTHORITATIVE_FLAG = 0x0400;
+
+    // Exchanges the workers are done with; those of cache hits stay with their I/O thread.
+    private Queue<Exchange> exchanges;
+    private final Map<CacheKey, CompletableFuture<Resolution>> lookups = new ConcurrentHashMap<>();
+    private final Metrics metrics = new Metrics();
+    private final Semaphore reloadRequests = new Semaphore(0);
+    private volatile Settings settings;
+    private Cache cache;
+    private long maxTtl;
+    private long maxNegativeTtl;
+    private int ednsPayloadSize;
+    private int prefetchPercent;
+    private long requestTimeoutNanos;
+    private QueryLog queryLog;
+    private Cluster cluster;
+    private int port;
 
     private Server() {
     }
@@ -26,77 +100,915 @@ public class Server {
         return INSTANCE;
     }
 
+    // Everything a reload may replace, built completely before it is published through the volatile settings
+    // field. A request reads the field once and works with that one consistent set.
+    private record Settings(Config config, Resolver upstream, Zones zones, RateLimiter rateLimiter) {
+        private Settings withZones(Zones replacement) {
+            return new Settings(config, upstream, replacement, rateLimiter);
+        }
+    }
+
     public void start(String[] args) {
         log.log(Level.INFO, "DNS-Server Started....");
-        SocketAddress resolver = getResolver(args);
-        try (DatagramSocket serverSocket = new DatagramSocket(PORT)) {
-            while (true) {
-                final byte[] buffer = new byte[BUFFER_SIZE];
-                final DatagramPacket packet = receiveFromServerSocket(serverSocket, buffer);
-                Message request = new Parser().parse(packet);
-                List<Answer> answers = getAnswers(request, resolver, serverSocket);
-                Message response = getResponse(request, answers);
-                final byte[] responseBuffer = response.getMessage();
-                sendFromServerSocket(packet.getSocketAddress(), serverSocket, responseBuffer);
+        Config config;
+        int socketCount;
+        int workerCount;
+        int maxInFlight;
+        int batchSize;
+        try {
+            config = Config.load(args);
+            port = config.getInt("--port", DEFAULT_PORT);
+            socketCount = Math.max(1, config.getInt("--sockets", 1));
+            workerCount = config.getInt("--workers", 0);
+            maxInFlight = Math.max(1, config.getInt("--max-inflight", DEFAULT_MAX_IN_FLIGHT));
+            cache = new Cache(config.getInt("--cache-size", DEFAULT_CACHE_SIZE));
+            maxTtl = config.getInt("--cache-max-ttl", DEFAULT_CACHE_MAX_TTL);
+            maxNegativeTtl = config.getInt("--cache-max-negative-ttl", DEFAULT_CACHE_MAX_NEGATIVE_TTL);
+            ednsPayloadSize = Math.clamp(config.getInt("--edns-payload", DEFAULT_EDNS_PAYLOAD_SIZE),
+                    Edns.MIN_PAYLOAD_SIZE, Edns.MAX_PAYLOAD_SIZE);
+            prefetchPercent = Math.clamp(config.getInt("--prefetch", 0), 0, 100);
+            batchSize = Math.max(1, config.getInt("--udp-batch", DEFAULT_UDP_BATCH));
+            requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                    Math.max(1, config.getInt("--request-timeout", DEFAULT_REQUEST_TIMEOUT_MS)));
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Cannot read configuration: {0}", e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            log.log(Level.SEVERE, "Invalid configuration: {0}", e.getMessage());
+            return;
+        }
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        exchanges = new ArrayBlockingQueue<>(maxInFlight);
+        boolean batchedCalls = !config.has("--udp-nio") && LinuxUdpSocket.isSupported();
+        List<UdpSocket> serverSockets = new ArrayList<>();
+        TcpListener tcp = null;
+        try (ExecutorService workers = workerCount > 0
+                ? Executors.newFixedThreadPool(workerCount)
+                : Executors.newVirtualThreadPerTaskExecutor()) {
+            String cacheSnapshot = config.getString("--cache-snapshot", null);
+            if (cacheSnapshot != null) {
+                loadCacheSnapshot(Path.of(cacheSnapshot));
+                saveCacheSnapshots(Path.of(cacheSnapshot),
+                        config.getInt("--cache-snapshot-interval", DEFAULT_CACHE_SNAPSHOT_INTERVAL_S));
             }
+            String queryLogPath = config.getString("--query-log", null);
+            if (queryLogPath != null)
+                openQueryLog(Path.of(queryLogPath), config);
+            List<SocketAddress> clusterAddress = config.getAddresses("--cluster");
+            if (!clusterAddress.isEmpty())
+                openCluster(clusterAddress.getFirst(), config);
+            Resolver upstream = openResolver(config);
+            if (upstream == null)
+                log.log(Level.WARNING, "Resolver address is not provided.");
+            settings = new Settings(config, upstream, loadZones(config), openRateLimiter(config));
+            metrics.addGauge("dns_requests_in_flight", "Requests handed to the workers and not answered yet.",
+                    () -> maxInFlight - inFlight.availablePermits());
+            metrics.addGauge("dns_upstream_lookups_in_flight", "Distinct questions waiting for an upstream reply.",
+                    lookups::size);
+            metrics.addGauge("dns_cache_entries", "Entries in the cache.", cache::size);
+            for (SocketAddress address : config.getAddresses("--metrics"))
+                metrics.serve((InetSocketAddress) address);
+            for (String snapshot : config.getList("--zone-snapshot"))
+                watchSnapshot(Path.of(snapshot), config.getInt("--zone-snapshot-poll", DEFAULT_SNAPSHOT_POLL_MS));
+            watchConfig(args, config.getInt("--reload-poll", DEFAULT_RELOAD_POLL_MS));
+            // Both listeners start only once the settings are published, so no request sees them missing.
+            tcp = new TcpListener(port, workers, this::respond,
+                    config.getInt("--tcp-idle-timeout", DEFAULT_TCP_IDLE_TIMEOUT_MS),
+                    Math.max(1, config.getInt("--tcp-pipeline", DEFAULT_TCP_PIPELINE)), inFlight);
+            for (int i = 0; i < socketCount; i++)
+                serverSockets.add(openServerSocket(socketCount > 1, batchSize, batchedCalls));
+            List<Thread> receivers = new ArrayList<>();
+            for (UdpSocket serverSocket : serverSockets)
+                receivers.add(Thread.ofPlatform().name("dns-udp-" + receivers.size())
+                        .start(() -> receiveLoop(serverSocket, workers, inFlight, batchSize)));
+            for (Thread receiver : receivers)
+                receiver.join();
         } catch (IOException e) {
             log.log(Level.SEVERE, "Exception in DNS-Server: {0}", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.log(Level.SEVERE, "Invalid configuration: {0}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (tcp != null)
+                close(tcp);
+            for (UdpSocket serverSocket : serverSockets)
+                close(serverSocket);
+            if (settings != null)
+                close(settings.upstream());
+            if (cluster != null)
+                close(cluster);
         }
     }
 
-    private void sendFromServerSocket(SocketAddress resolver, DatagramSocket serverSocket, byte[] requestBuffer) throws IOException {
-        final DatagramPacket resolverReqPacket = new DatagramPacket(requestBuffer, requestBuffer.length, resolver);
-        serverSocket.send(resolverReqPacket);
+    // Warms the cache from the last snapshot before any socket is opened, so that no request sees it cold.
+    private void loadCacheSnapshot(Path path) {
+        try {
+            int count = CacheSnapshot.load(cache, path, System.currentTimeMillis());
+            log.log(Level.INFO, "Loaded {0} cache entries from {1}", new Object[]{count, path});
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Cannot load cache snapshot {0}, starting cold: {1}",
+                    new Object[]{path, e.getMessage()});
+        }
     }
 
-    private DatagramPacket receiveFromServerSocket(DatagramSocket serverSocket, byte[] respBuffer) throws IOException {
-        final DatagramPacket resolverRespPacket = new DatagramPacket(respBuffer, respBuffer.length);
-        serverSocket.receive(resolverRespPacket);
-        return resolverRespPacket;
+    // Saves the cache every interval and once more when the process shuts down, e.g. for a deploy.
+    private void saveCacheSnapshots(Path path, int intervalSeconds) {
+        Runnable save = () -> {
+            try {
+                int count = CacheSnapshot.write(cache, path, System.currentTimeMillis());
+                log.log(Level.FINE, "Saved {0} cache entries to {1}", new Object[]{count, path});
+            } catch (IOException | RuntimeException e) {
+                log.log(Level.WARNING, "Cannot save cache snapshot {0}: {1}", new Object[]{path, e.getMessage()});
+            }
+        };
+        Thread.ofPlatform().daemon().name("dns-cache-snapshot").start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, intervalSeconds)));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                save.run();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(Thread.ofPlatform().name("dns-cache-snapshot-final").unstarted(save));
     }
 
-    private Message getResponse(Message request, List<Answer> answers) {
-        Message response = new Message(request.getHeader(), request.getQuestions(), answers);
-        response.getHeader().setQr((byte) 1);
-        response.getHeader().setAnCount((short) response.getQuestions().size());
-        return response;
+    // Opens the query log and closes it when the process shuts down, so the records still buffered are written.
+    private void openQueryLog(Path path, Config config) {
+        try {
+            queryLog = new QueryLog(path, config.getInt("--query-log-buffer", DEFAULT_QUERY_LOG_BUFFER),
+                    config.getInt("--query-log-file-size", DEFAULT_QUERY_LOG_FILE_MB) * 1024L * 1024L,
+                    config.getInt("--query-log-files", DEFAULT_QUERY_LOG_FILES), metrics);
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Cannot open query log {0}, queries are not logged: {1}",
+                    new Object[]{path, e.getMessage()});
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(
+                Thread.ofPlatform().name("dns-query-log-close").unstarted(queryLog::close));
     }
 
-    private List<Answer> getAnswers(Message request, SocketAddress resolver, DatagramSocket serverSocket) throws IOException {
-        List<Answer> answers = new ArrayList<>();
-        if (resolver == null) {
-            log.log(Level.WARNING, "Resolver address is not provided.");
-            return answers;
+    // Joins the cluster. Peers read this node's cache through the same path as requests do, so a question
+    // they keep asking for is prefetched here, and the refresh then warms them all.
+    private void openCluster(SocketAddress address, Config config) {
+        Cluster.Store store = new Cluster.Store() {
+            @Override
+            public Resolution get(Question question) {
+                long now = System.currentTimeMillis();
+                Resolution cached = cache.get(question, now);
+                if (cached != null && prefetchPercent > 0 && cached.claimPrefetch(now, prefetchPercent))
+                    lookup(question, true);
+                return cached;
+            }
+
+            @Override
+            public void put(Question question, Resolution resolution) {
+                cache.put(question, resolution);
+            }
+
+            @Override
+            public void remove(Question question) {
+                cache.remove(question);
+            }
+        };
+        try {
+            cluster = new Cluster(address, config.getAddresses("--cluster-peers"),
+                    config.getInt("--cluster-timeout", DEFAULT_CLUSTER_TIMEOUT_MS),
+                    config.getInt("--cluster-hot-threshold", DEFAULT_CLUSTER_HOT_THRESHOLD), store, metrics);
+            log.log(Level.INFO, "Joined cluster as {0}", address);
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.SEVERE, "Cannot join cluster as {0}, running alone: {1}",
+                    new Object[]{address, e.getMessage()});
+        }
+    }
+
+    private static Zones loadZones(Config config) throws IOException {
+        Zones zones = Zones.load(config.getList("--zone"), config.getList("--zone-snapshot"));
+        for (Zone zone : zones.getZones())
+            log.log(Level.INFO, "Loaded zone {0} with {1} names", new Object[]{zone.getOrigin(), zone.size()});
+        return zones;
+    }
+
+    // Reloads the configuration whenever the options file or a zone file changes, and on SIGHUP.
+    private void watchConfig(String[] args, int pollMillis) {
+        onHangup(reloadRequests::release);
+        Thread.ofPlatform().daemon().name("dns-config-watch").start(() -> {
+            Map<Path, FileTime> seen = modificationTimes(settings.config());
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    boolean signalled = reloadRequests.tryAcquire(pollMillis, TimeUnit.MILLISECONDS);
+                    Map<Path, FileTime> latest = modificationTimes(settings.config());
+                    if (!signalled && latest.equals(seen))
+                        continue;
+                    reload(args);
+                    seen = modificationTimes(settings.config());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    // Runs an action on every SIGHUP. The JDK only offers signals through sun.misc.Signal, which is reached
+    // reflectively so that the build does not depend on an internal API; without it, or when the JVM runs
+    // with -Xrs, only the file watch is left.
+    private static void onHangup(Runnable action) {
+        try {
+            Class<?> signal = Class.forName("sun.misc.Signal");
+            Class<?> handler = Class.forName("sun.misc.SignalHandler");
+            Object proxy = Proxy.newProxyInstance(Server.class.getClassLoader(), new Class<?>[]{handler},
+                    (self, method, arguments) -> switch (method.getName()) {
+                        case "handle" -> {
+                            action.run();
+                            yield null;
+                        }
+                        case "hashCode" -> System.identityHashCode(self);
+                        case "equals" -> self == arguments[0];
+                        default -> "SIGHUP handler";
+                    });
+            signal.getMethod("handle", signal, handler)
+                    .invoke(null, signal.getConstructor(String.class).newInstance("HUP"), proxy);
+        } catch (InvocationTargetException e) {
+            log.log(Level.FINE, "SIGHUP is not available: {0}", e.getCause().getMessage());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.FINE, "SIGHUP is not available: {0}", e.toString());
         }
-        for (int i = 0; i < request.getQuestionCount(); i++) {
+    }
+
+    // The options file and the zone master files, with their modification times, or null when missing.
+    private static Map<Path, FileTime> modificationTimes(Config config) {
+        List<String> files = new ArrayList<>(config.getList("--zone"));
+        if (config.has("--config"))
+            files.add(config.getString("--config", ""));
+        Map<Path, FileTime> times = new HashMap<>();
+        for (String file : files) {
+            Path path = Path.of(file);
             try {
-                Message resolverRequest = new Message(request.getHeader(),
-                        List.of(request.getQuestions().get(i)), new ArrayList<>());
-                resolverRequest.getHeader().setQr((byte) 0);
+                times.put(path, Files.getLastModifiedTime(path));
+            } catch (IOException e) {
+                times.put(path, null);
+            }
+        }
+        return times;
+    }
 
-                byte[] requestBuffer = resolverRequest.getMessage();
-                sendFromServerSocket(resolver, serverSocket, requestBuffer);
+    // Builds new settings from the options file and zone files next to the ones in use, and publishes them
+    // with a single volatile write: requests under way finish with the old settings, and later requests
+    // see only the new ones. The resolver and the rate limiter are only replaced when their options
+    // changed, so upstream RTTs and rate limit buckets survive unrelated edits; a replaced resolver is
+    // closed once its queries have had time to finish. The cache is kept apart from local zone answers.
+    // Options that size the server itself, such as sockets, workers or the cache, need a restart.
+    private synchronized void reload(String[] args) {
+        Settings current = settings;
+        Resolver opened = null;
+        try {
+            Config config = Config.load(args);
+            Zones zones = loadZones(config);
+            boolean resolverChanged = !config.sameOptions(current.config(), RESOLVER_OPTIONS);
+            if (resolverChanged)
+                opened = openResolver(config);
+            RateLimiter rateLimiter = config.sameOptions(current.config(), RATE_LIMIT_OPTIONS)
+                    ? current.rateLimiter() : openRateLimiter(config);
+            settings = new Settings(config, resolverChanged ? opened : current.upstream(), zones, rateLimiter);
+            cache.removeAuthoritative();
+            if (resolverChanged)
+                retire(current.upstream());
+            log.log(Level.INFO, "Reloaded configuration{0}", resolverChanged ? " with new resolvers" : "");
+        } catch (IOException | RuntimeException e) {
+            if (opened != null)
+                close(opened);
+            log.log(Level.WARNING, "Cannot reload configuration, keeping the current one: {0}", e.getMessage());
+        }
+    }
 
-                byte[] respBuffer = new byte[BUFFER_SIZE];
-                final DatagramPacket resolverRespPacket = receiveFromServerSocket(serverSocket, respBuffer);
+    private static void retire(Resolver resolver) {
+        if (resolver == null)
+            return;
+        Thread.ofVirtual().name("dns-resolver-drain").start(() -> {
+            try {
+                Thread.sleep(RESOLVER_DRAIN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close(resolver);
+        });
+    }
+
+    private static void close(Cluster cluster) {
+        try {
+            cluster.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Cannot close cluster port: {0}", e.getMessage());
+        }
+    }
+
+    private static void close(Resolver resolver) {
+        if (resolver == null)
+            return;
+        try {
+            resolver.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Cannot close resolver: {0}", e.getMessage());
+        }
+    }
+
+    // Resolves iteratively from the root servers with --recursive, else forwards to the --resolver pool, if any.
+    private Resolver openResolver(Config config) throws IOException {
+        if (config.has("--recursive")) {
+            int port = config.getInt("--recursion-port", DEFAULT_RECURSION_PORT);
+            List<SocketAddress> roots = config.getAddresses("--root-hints");
+            if (roots.isEmpty())
+                roots = Recursor.ROOT_HINTS.stream().<SocketAddress>map(ip -> new InetSocketAddress(ip, port)).toList();
+            return new Recursor(roots, port, config.getInt("--recursion-timeout", DEFAULT_RECURSION_TIMEOUT_MS),
+                    ednsPayloadSize, maxTtl);
+        }
+        List<SocketAddress> resolvers = config.getResolvers();
+        if (resolvers.isEmpty())
+            return null;
+        return new UpstreamPool(resolvers, config.getInt("--upstream-timeout", DEFAULT_UPSTREAM_TIMEOUT_MS),
+                config.getInt("--upstream-retries", DEFAULT_UPSTREAM_RETRIES), ednsPayloadSize,
+                config.getInt("--upstream-probe", DEFAULT_UPSTREAM_PROBE_MS),
+                config.getInt("--upstream-hedge-percentile", 0), metrics);
+    }
 
-                Message resolverResponse = new Parser().parse(resolverRespPacket);
-                if (!resolverResponse.getQuestions().isEmpty())
-                    answers.add(resolverResponse.getAnswers().getFirst());
+    // Limits UDP responses when "--rrl-ipv4" or "--rrl-ipv6" give "prefix:rate" rules,
+    // e.g. "--rrl-ipv4 32:20,24:100" for 20 responses per second per address and 100 per /24.
+    private static RateLimiter openRateLimiter(Config config) {
+        List<RateLimiter.Rule> rules = new ArrayList<>();
+        for (String rule : config.getList("--rrl-ipv4"))
+            rules.add(RateLimiter.Rule.parse(rule, false));
+        for (String rule : config.getList("--rrl-ipv6"))
+            rules.add(RateLimiter.Rule.parse(rule, true));
+        if (rules.isEmpty())
+            return null;
+        return new RateLimiter(rules, config.getInt("--rrl-slip", DEFAULT_RRL_SLIP),
+                config.getInt("--rrl-table-size", DEFAULT_RRL_TABLE_SIZE));
+    }
+
+    // Polls a snapshot file and maps it again whenever it is replaced. The new zone set is published with
+    // a single volatile write, so lookups see either the old zone or the new one, never a mix; the old
+    // mapping is released by the garbage collector once no lookup uses it any more. The file was mapped
+    // once already when the zones were loaded, which is where its apex is taken from.
+    private void watchSnapshot(Path path, int pollMillis) throws IOException {
+        String origin = settings.zones().getSnapshotOrigin(path);
+        BasicFileAttributes loaded = Files.readAttributes(path, BasicFileAttributes.class);
+        Thread.ofPlatform().daemon().name("dns-zone-watch").start(() -> {
+            String current = origin;
+            BasicFileAttributes seen = loaded;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(pollMillis);
+                    BasicFileAttributes latest = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (latest.lastModifiedTime().equals(seen.lastModifiedTime()) && latest.size() == seen.size()
+                            && Objects.equals(latest.fileKey(), seen.fileKey()))
+                        continue;
+                    seen = latest;
+                    Zone replacement = ZoneSnapshot.openZone(path);
+                    swapZone(current, replacement);
+                    current = replacement.getOrigin();
+                    log.log(Level.INFO, "Swapped zone {0} to {1} with {2} names",
+                            new Object[]{current, path, replacement.size()});
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.WARNING, "Cannot reload zone snapshot {0}: {1}", new Object[]{path, e.getMessage()});
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    // Watchers of different snapshots serialize here so that no swap is lost.
+    private synchronized void swapZone(String previous, Zone replacement) {
+        settings = settings.withZones(settings.zones().replace(previous, replacement));
+        cache.removeAuthoritative();
+    }
+
+    // Serves one socket in batches. Each round drains every datagram that is ready, up to the batch size,
+    // into pooled exchanges without blocking. Requests over the rate limit are dropped, or answered with
+    // an empty truncated response when they slip, before any further work is spent on them. Cache hits are
+    // answered right here on the I/O thread and their replies flushed together at the end of the round;
+    // misses go to the workers, which send their own replies. Replies the kernel has no room for wait for
+    // the socket to become writable, and reading pauses meanwhile. Once the in-flight limit is reached the
+    // loop stops reading as well, so excess load queues up in the kernel socket buffer instead of in the
+    // process. Exchanges that never leave the I/O thread go back to its own spares, so the pool costs the
+    // cache-hit path no synchronization and no allocation.
+    private void receiveLoop(UdpSocket socket, ExecutorService workers, Semaphore inFlight, int batchSize) {
+        Exchange[] batch = new Exchange[batchSize];
+        ArrayDeque<Exchange> replies = new ArrayDeque<>(batchSize);
+        ArrayDeque<Exchange> spares = new ArrayDeque<>(2 * batchSize);
+        try {
+            while (socket.isOpen()) {
+                try {
+                    socket.await(!replies.isEmpty());
+                    flush(socket, replies, spares);
+                    if (replies.isEmpty()) {
+                        // Exchanges left over from a round that received fewer datagrams are used again.
+                        for (int i = 0; i < batchSize; i++)
+                            if (batch[i] == null)
+                                batch[i] = acquireExchange(spares);
+                        int received = socket.receive(batch);
+                        for (int i = 0; i < received; i++) {
+                            Exchange exchange = batch[i];
+                            batch[i] = null;
+                            boolean parsed = readRequest(exchange);
+                            RateLimiter rateLimiter = settings.rateLimiter();
+                            RateLimiter.Action action = rateLimiter == null ? RateLimiter.Action.ALLOW
+                                    : checkRate(rateLimiter, exchange, parsed);
+                            if (action != RateLimiter.Action.ALLOW) {
+                                metrics.countRateLimited(action == RateLimiter.Action.SLIP && parsed);
+                                if (action == RateLimiter.Action.SLIP && parsed) {
+                                    answerTruncated(exchange);
+                                    logResponse(exchange, 0);
+                                    replies.add(exchange);
+                                } else {
+                                    releaseExchange(exchange, spares);
+                                }
+                                continue;
+                            }
+                            if (parsed && answerFromCache(exchange)) {
+                                logResponse(exchange, QueryLog.FROM_CACHE);
+                                replies.add(exchange);
+                                continue;
+                            }
+                            if (!inFlight.tryAcquire()) {
+                                flush(socket, replies, spares);
+                                inFlight.acquire();
+                            }
+                            workers.execute(() -> {
+                                try {
+                                    handle(exchange, socket);
+                                } finally {
+                                    releaseExchange(exchange);
+                                    inFlight.release();
+                                }
+                            });
+                        }
+                        flush(socket, replies, spares);
+                    }
+                } catch (IOException e) {
+                    if (socket.isOpen())
+                        log.log(Level.SEVERE, "Exception in DNS-Server: {0}", e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Sends queued replies until the kernel has no room left; the rest stay queued.
+    // A reply that cannot be sent at all is dropped.
+    private void flush(UdpSocket socket, ArrayDeque<Exchange> replies, ArrayDeque<Exchange> spares) {
+        while (!replies.isEmpty()) {
+            int sent;
+            try {
+                sent = socket.send(replies);
             } catch (IOException e) {
-                log.log(Level.SEVERE, "Error processing DNS request for question {0} : {1}", new Object[]{i, e.getMessage()});
+                Exchange exchange = replies.poll();
+                metrics.countDroppedResponse();
+                log.log(Level.FINE, "Cannot send DNS response to {0} : {1}",
+                        new Object[]{exchange.getClient(), e.getMessage()});
+                releaseExchange(exchange, spares);
+                continue;
             }
+            if (sent == 0)
+                return;
+            for (int i = 0; i < sent; i++)
+                releaseExchange(replies.poll(), spares);
         }
-        return answers;
     }
 
-    private SocketAddress getResolver(String[] args) {
-        if (args.length > 1) {
-            String[] resolverPair = args[1].split(ARGS_SEPARATOR);
-            String resolverIp = resolverPair[0];
-            int resolverPort = Integer.parseInt(resolverPair[1]);
-            return new InetSocketAddress(resolverIp, resolverPort);
+    private void handle(Exchange exchange, UdpSocket socket) {
+        try {
+            byte[] response = respond(exchange.getClient(), exchange.getRequestBytes(), true, exchange.receivedAt);
+            if (response == null)
+                return;
+            exchange.response.clear().put(response).flip();
+            if (!socket.send(exchange)) {
+                metrics.countDroppedResponse();
+                log.log(Level.FINE, "Dropped DNS response to {0}: socket buffer full", exchange.getClient());
+            }
+        } catch (IOException | RuntimeException e) {
+            // Counted rather than logged, so a stream of hostile packets does not flood the log.
+            metrics.countRequestError();
+            if (log.isLoggable(Level.FINE))
+                log.log(Level.FINE, "Error handling DNS request from {0} : {1}",
+                        new Object[]{exchange.getClient(), e.getMessage()});
         }
-        return null;
+    }
+
+    // Resolves a request received over TCP, where a response may take up to 64 KiB.
+    private byte[] respond(SocketAddress client, byte[] data) {
+        return respond(client, data, false, System.nanoTime());
+    }
+
+    // Resolves a request on the general path and encodes the response, or returns null when there is nothing
+    // to answer. Over UDP the response is truncated with TC set when it is larger than 512 bytes, or than the
+    // payload size negotiated through EDNS(0).
+    private byte[] respond(SocketAddress client, byte[] data, boolean udp, long receivedAt) {
+        long parseStart = System.nanoTime();
+        Message request;
+        try {
+            request = new Parser().parse(data);
+        } catch (RuntimeException e) {
+            return answerMalformed(client, data, !udp, receivedAt, e);
+        }
+        metrics.getParseTime().recordSince(parseStart);
+        long now = System.currentTimeMillis();
+        Edns edns;
+        try {
+            edns = Edns.of(request);
+        } catch (IllegalArgumentException e) {
+            byte[] response = encode(getResponse(request, List.of(Resolution.failure(Resolution.FORMERR, now)),
+                    null), udp ? Edns.MIN_PAYLOAD_SIZE : TCP_MESSAGE_SIZE);
+            logResponse(client, !udp, receivedAt, response, new byte[0], List.of());
+            return response;
+        }
+        int maxSize = !udp ? TCP_MESSAGE_SIZE
+                : edns == null ? Edns.MIN_PAYLOAD_SIZE : Edns.negotiate(edns.getPayloadSize(), ednsPayloadSize);
+        byte[] sources = new byte[request.getQuestionCount()];
+        List<Resolution> resolutions = edns != null && edns.getVersion() > Edns.VERSION
+                ? List.of(Resolution.failure(Edns.BADVERS, now)) : getAnswers(request, sources);
+        byte[] response = encode(getResponse(request, resolutions, edns), maxSize);
+        logResponse(client, !udp, receivedAt, response, sources, resolutions);
+        return response;
+    }
+
+    // Counts a request that cannot be parsed and logs it at FINE only, so garbage traffic cannot flood the log.
+    // When its header is readable and it is not itself a response, it is answered with FORMERR, echoing its
+    // ID, opcode and RD bit without questions.
+    private byte[] answerMalformed(SocketAddress client, byte[] data, boolean tcp, long receivedAt,
+                                   RuntimeException e) {
+        metrics.countRequestError();
+        if (log.isLoggable(Level.FINE))
+            log.log(Level.FINE, "Malformed DNS request from {0} : {1}", new Object[]{client, e.getMessage()});
+        if (data.length < Wire.HEADER_SIZE || (data[2] & RESPONSE_FLAG >> 8) != 0)
+            return null;
+        short flags = (short) (RESPONSE_FLAG | ((data[2] & 0xFF) << 8 & (OPCODE_MASK | RECURSION_DESIRED_FLAG))
+                | Resolution.FORMERR);
+        ByteBuffer response = ByteBuffer.allocate(Wire.HEADER_SIZE);
+        Wire.putHeader(response, (short) ((data[0] & 0xFF) << 8 | data[1] & 0xFF), flags, 0, 0, 0, 0);
+        metrics.countResponse(Resolution.FORMERR);
+        logResponse(client, tcp, receivedAt, response.array(), new byte[0], List.of());
+        return response.array();
+    }
+
+    // Logs a response built on the general path when the query log is enabled, with where each question was
+    // answered from and the upstream server of the first one resolved upstream.
+    private void logResponse(SocketAddress client, boolean tcp, long receivedAt, byte[] response, byte[] sources,
+                             List<Resolution> resolutions) {
+        if (queryLog == null)
+            return;
+        int flags = 0;
+        SocketAddress upstream = null;
+        for (int i = 0; i < sources.length; i++) {
+            flags |= sources[i];
+            if (upstream == null && sources[i] == QueryLog.FROM_UPSTREAM)
+                upstream = resolutions.get(i).getUpstream();
+        }
+        queryLog.log(client, tcp, flags, upstream, receivedAt, ByteBuffer.wrap(response));
+    }
+
+    // Logs a UDP response built in the exchange's buffer when the query log is enabled, with the client's
+    // address as the kernel gave it where there is one.
+    private void logResponse(Exchange exchange, int sources) {
+        if (queryLog == null)
+            return;
+        if (exchange.peerLength == 0) {
+            queryLog.log(exchange.client, false, sources, null, exchange.receivedAt, exchange.response);
+            return;
+        }
+        ByteBuffer peer = exchange.peer;
+        queryLog.log(peer, LinuxUdpSocket.getAddressOffset(peer), LinuxUdpSocket.getAddressLength(peer),
+                LinuxUdpSocket.getPort(peer), sources, exchange.receivedAt, exchange.response);
+    }
+
+    // Encodes a response built on the general path and counts it, with its questions, in the metrics.
+    private byte[] encode(Message response, int maxSize) {
+        long start = System.nanoTime();
+        byte[] encoded = response.getMessage(maxSize);
+        metrics.getEncodeTime().recordSince(start);
+        for (Question question : response.getQuestions())
+            metrics.countQuery(question.getQType());
+        metrics.countResponse(response.getHeader().getRcode());
+        return encoded;
+    }
+
+    // Decodes the header and questions of a received request in place.
+    private boolean readRequest(Exchange exchange) {
+        long start = System.nanoTime();
+        boolean parsed = exchange.reader.read(exchange.request, exchange.length);
+        metrics.getParseTime().recordSince(start);
+        return parsed;
+    }
+
+    // Answers a rate-limited request that slipped with its own header and questions, QR and TC set and no
+    // records, so a legitimate client whose address was spoofed retries over TCP.
+    private void answerTruncated(Exchange exchange) {
+        WireReader reader = exchange.reader;
+        short flags = (short) (RESPONSE_FLAG | TRUNCATED_FLAG | (reader.isRd() ? RECURSION_DESIRED_FLAG : 0));
+        ByteBuffer response = exchange.response.clear();
+        Wire.putHeader(response, reader.getId(), flags, reader.getQdCount(), 0, 0, 0);
+        Wire.putRegion(response, exchange.request, Wire.HEADER_SIZE, reader.getQuestionsEnd() - Wire.HEADER_SIZE);
+        response.flip();
+    }
+
+    // Fast path: when every question is in the cache the response is decoded and encoded in the exchange's
+    // buffers without creating objects. Single-question hits replay the pre-encoded response of the cache
+    // entry with the ID, RD bit and TTLs patched in, followed by an OPT record when the request has one.
+    // Anything else, including responses that do not fit the negotiated payload size, returns false and
+    // takes the Parser/Message path. The exchange's reader must hold the decoded request.
+    private boolean answerFromCache(Exchange exchange) {
+        WireReader reader = exchange.reader;
+        if (reader.getOpcode() != 0
+                || reader.hasEdns() && reader.getEdnsVersion() > Edns.VERSION)
+            return false;
+        long now = System.currentTimeMillis();
+        int qdCount = reader.getQdCount();
+        int anCount = 0;
+        int nsCount = 0;
+        int arCount = 0;
+        int rcode = Resolution.NOERROR;
+        boolean authoritative = qdCount > 0;
+        for (int i = 0; i < qdCount; i++) {
+            Resolution hit = cache.get(exchange.probe.set(reader, i), now);
+            if (hit == null)
+                return false;
+            exchange.hits[i] = hit;
+            if (prefetchPercent > 0 && hit.claimPrefetch(now, prefetchPercent))
+                lookup(reader.getQuestion(i), reader.isRd());
+            anCount += hit.getAnswers().size();
+            nsCount += hit.getAuthorities().size();
+            arCount += hit.getAdditionals().size();
+            if (rcode == Resolution.NOERROR)
+                rcode = hit.getRcode();
+            authoritative &= hit.isAuthoritative();
+        }
+        if (rcode > 15)
+            return false;
+        short flags = (short) (RESPONSE_FLAG | (authoritative ? AUTHORITATIVE_FLAG : 0) | rcode);
+        int maxSize = reader.hasEdns() ? Edns.negotiate(reader.getEdnsPayloadSize(), ednsPayloadSize)
+                : Edns.MIN_PAYLOAD_SIZE;
+        long encodeStart = System.nanoTime();
+        ByteBuffer response = exchange.response.clear().limit(maxSize);
+        if (qdCount == 1 && exchange.hits[0].getEncoded(reader, flags).writeTo(response, reader, now)
+                && appendOpt(response, reader)) {
+            response.flip();
+            countFromCache(reader, rcode, encodeStart);
+            return true;
+        }
+        response.clear().limit(maxSize);
+        try {
+            Wire.putHeader(response, reader.getId(), (short) (flags | (reader.isRd() ? RECURSION_DESIRED_FLAG : 0)),
+                    qdCount, anCount, nsCount, arCount);
+            Wire.putRegion(response, exchange.request, Wire.HEADER_SIZE, reader.getQuestionsEnd() - Wire.HEADER_SIZE);
+            for (int i = 0; i < qdCount; i++)
+                exchange.hits[i].writeAnswers(response, now);
+            for (int i = 0; i < qdCount; i++)
+                exchange.hits[i].writeAuthorities(response, now);
+            for (int i = 0; i < qdCount; i++)
+                exchange.hits[i].writeAdditionals(response, now);
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+        if (!appendOpt(response, reader))
+            return false;
+        response.flip();
+        countFromCache(reader, rcode, encodeStart);
+        return true;
+    }
+
+    // Counts a response sent on the fast path, where every question was a cache hit.
+    private void countFromCache(WireReader reader, int rcode, long encodeStart) {
+        metrics.getEncodeTime().recordSince(encodeStart);
+        for (int i = 0; i < reader.getQdCount(); i++) {
+            metrics.countQuery(reader.getQType(i));
+            metrics.countCacheHit();
+        }
+        metrics.countResponse(rcode);
+    }
+
+    // Ends a fast-path response with the server's OPT record if the request had one, counting it in ARCOUNT.
+    private boolean appendOpt(ByteBuffer response, WireReader reader) {
+        if (!reader.hasEdns())
+            return true;
+        if (response.remaining() < Edns.RECORD_SIZE)
+            return false;
+        Edns.write(response, ednsPayloadSize, Resolution.NOERROR, reader.isDnssecOk());
+        response.putShort(10, (short) (response.getShort(10) + 1));
+        return true;
+    }
+
+    // Takes one of the I/O thread's spares, else one the workers gave back, else a new exchange.
+    private Exchange acquireExchange(ArrayDeque<Exchange> spares) {
+        Exchange exchange = spares.poll();
+        if (exchange == null)
+            exchange = exchanges.poll();
+        return exchange != null ? exchange : new Exchange();
+    }
+
+    // Keeps an exchange finished on the I/O thread among that thread's spares.
+    private static void releaseExchange(Exchange exchange, ArrayDeque<Exchange> spares) {
+        exchange.reset();
+        spares.push(exchange);
+    }
+
+    // Gives an exchange a worker finished back to the I/O threads; when the pool is full it is left to the
+    // garbage collector.
+    private void releaseExchange(Exchange exchange) {
+        exchange.reset();
+        exchanges.offer(exchange);
+    }
+
+    // Checks the rate limit on the client's address as the kernel gave it where there is one, so the
+    // address needs no decoding.
+    private static RateLimiter.Action checkRate(RateLimiter rateLimiter, Exchange exchange, boolean parsed) {
+        WireReader reader = parsed ? exchange.reader : null;
+        if (exchange.peerLength == 0)
+            return rateLimiter.check(exchange.client, reader, System.nanoTime());
+        return rateLimiter.check(exchange.peer, LinuxUdpSocket.getAddressOffset(exchange.peer),
+                LinuxUdpSocket.getAddressLength(exchange.peer), reader, System.nanoTime());
+    }
+
+    // Opens a socket that moves each batch with one system call where the platform allows it, and a
+    // DatagramChannel otherwise or when that fails.
+    private UdpSocket openServerSocket(boolean reusePort, int batchSize, boolean batchedCalls) throws IOException {
+        if (batchedCalls) {
+            try {
+                return LinuxUdpSocket.open(port, reusePort, batchSize);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Cannot open a socket with batched system calls, using NIO: {0}",
+                        e.getMessage());
+            }
+        }
+        return new ChannelUdpSocket(openServerChannel(reusePort));
+    }
+
+    private DatagramChannel openServerChannel(boolean reusePort) throws IOException {
+        DatagramChannel serverChannel = DatagramChannel.open();
+        if (reusePort) {
+            if (!serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                serverChannel.close();
+                throw new IOException("SO_REUSEPORT is not supported on this platform");
+            }
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverChannel.bind(new InetSocketAddress(port));
+        return serverChannel;
+    }
+
+    private static void close(TcpListener listener) {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Cannot close TCP listener: {0}", e.getMessage());
+        }
+    }
+
+    private static void close(UdpSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Cannot close server channel: {0}", e.getMessage());
+        }
+    }
+
+    // Combines the resolutions of the questions into one response. When the request carried EDNS(0) the
+    // response ends with an OPT record holding the upper bits of the response code; without it, extended
+    // response codes cannot be expressed and become SERVFAIL.
+    private Message getResponse(Message request, List<Resolution> resolutions, Edns edns) {
+        List<Answer> answers = new ArrayList<>();
+        List<Answer> authorities = new ArrayList<>();
+        List<Answer> additionals = new ArrayList<>();
+        int rcode = Resolution.NOERROR;
+        boolean authoritative = !resolutions.isEmpty();
+        long now = System.currentTimeMillis();
+        for (Resolution resolution : resolutions) {
+            answers.addAll(resolution.getAnswers(now));
+            authorities.addAll(resolution.getAuthorities(now));
+            additionals.addAll(resolution.getAdditionals(now));
+            if (rcode == Resolution.NOERROR)
+                rcode = resolution.getRcode();
+            authoritative &= resolution.isAuthoritative();
+        }
+        rcode &= 0xFFF;
+        if (edns != null)
+            additionals.add(Edns.record(ednsPayloadSize, rcode, edns.isDnssecOk()));
+        else if (rcode > 15)
+            rcode = Resolution.SERVFAIL;
+        Message response = new Message(request.getHeader(), request.getQuestions(), answers, authorities, additionals);
+        response.getHeader().setQr((byte) 1);
+        response.getHeader().setRcode((byte) (rcode & 15));
+        response.getHeader().setAa(authoritative);
+        response.getHeader().setAnCount((short) answers.size());
+        response.getHeader().setNsCount((short) authorities.size());
+        response.getHeader().setArCount((short) additionals.size());
+        return response;
+    }
+
+    // Starts resolving every question of a request at once and then collects the resolutions in question
+    // order, so a request with several questions takes as long as its slowest question rather than the sum
+    // of them. Each question keeps its own outcome: one that fails, or is still unanswered when the request's
+    // deadline passes, becomes SERVFAIL without holding up the others. Where each question was answered from
+    // is stored in sources as a QueryLog flag.
+    private List<Resolution> getAnswers(Message request, byte[] sources) {
+        boolean recursionDesired = request.getHeader().isRd();
+        List<Question> questions = request.getQuestions();
+        List<CompletableFuture<Resolution>> pending = new ArrayList<>(questions.size());
+        for (int i = 0; i < questions.size(); i++)
+            pending.add(resolve(questions.get(i), recursionDesired, sources, i));
+        long deadline = System.nanoTime() + requestTimeoutNanos;
+        List<Resolution> resolutions = new ArrayList<>(questions.size());
+        for (int i = 0; i < questions.size(); i++)
+            resolutions.add(await(questions.get(i), pending.get(i), deadline));
+        return resolutions;
+    }
+
+    // Waits for the resolution of one question until the request's deadline. The lookup may be shared with
+    // other requests, so it is left running when the wait gives up.
+    private Resolution await(Question question, CompletableFuture<Resolution> resolution, long deadline) {
+        try {
+            return resolution.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // Failures are counted rather than logged, so an unreachable upstream does not flood the log.
+            metrics.countUpstreamFailure();
+            if (log.isLoggable(Level.FINE))
+                log.log(Level.FINE, "Error processing DNS request for question {0} : {1}",
+                        new Object[]{question, e instanceof ExecutionException ? e.getCause().getMessage()
+                                : "no answer before the request timeout"});
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Resolution.failure(Resolution.SERVFAIL, System.currentTimeMillis());
+    }
+
+    // Answers from the cache when possible, then from local zones, and otherwise forwards the question
+    // upstream, caching whatever comes back for as long as its TTL allows. A cache hit close to expiry
+    // refreshes the entry in the background when prefetching is enabled.
+    private CompletableFuture<Resolution> resolve(Question question, boolean recursionDesired, byte[] sources,
+                                                  int index) {
+        long now = System.currentTimeMillis();
+        Resolution cached = cache.get(question, now);
+        if (cached != null) {
+            metrics.countCacheHit();
+            if (prefetchPercent > 0 && cached.claimPrefetch(now, prefetchPercent))
+                lookup(question, recursionDesired);
+            sources[index] = QueryLog.FROM_CACHE;
+            return CompletableFuture.completedFuture(cached);
+        }
+        metrics.countCacheMiss();
+        Resolution local = settings.zones().lookup(question, now);
+        if (local != null) {
+            cache.put(question, local);
+            sources[index] = QueryLog.FROM_ZONE;
+            return CompletableFuture.completedFuture(local);
+        }
+        sources[index] = QueryLog.FROM_UPSTREAM;
+        return lookup(question, recursionDesired);
+    }
+
+    // Forwards a question upstream unless the same question is already on its way, in which case every
+    // caller shares that one lookup. Each caller builds its own response around the shared resolution, so
+    // it carries the caller's own ID and question. The resolution is cached before the lookup is retired,
+    // so a request that arrives after it finds the cache filled.
+    private CompletableFuture<Resolution> lookup(Question question, boolean recursionDesired) {
+        Resolver upstream = settings.upstream();
+        if (upstream == null)
+            return CompletableFuture.completedFuture(Resolution.failure(Resolution.NOERROR, System.currentTimeMillis()));
+        CacheKey key = CacheKey.of(question);
+        CompletableFuture<Resolution> lookup = new CompletableFuture<>();
+        CompletableFuture<Resolution> shared = lookups.putIfAbsent(key, lookup);
+        if (shared != null)
+            return shared;
+        fetch(upstream, question, recursionDesired).whenComplete((resolution, error) -> {
+            Throwable failure = error instanceof CompletionException ? error.getCause() : error;
+            if (failure == null)
+                cache.put(question, resolution);
+            lookups.remove(key, lookup);
+            if (failure != null)
+                lookup.completeExceptionally(failure);
+            else
+                lookup.complete(resolution);
+        });
+        return lookup;
+    }
+
+    // Resolves a question upstream. In cluster mode the peer owning the question is asked first, and an answer
+    // that had to come from upstream is then shared with the cluster.
+    private CompletableFuture<Resolution> fetch(Resolver upstream, Question question, boolean recursionDesired) {
+        Cluster cluster = this.cluster;
+        if (cluster == null)
+            return query(upstream, question, recursionDesired);
+        return cluster.get(question).thenCompose(shared -> shared != null ? CompletableFuture.completedFuture(shared)
+                : query(upstream, question, recursionDesired).thenApply(resolution -> {
+                    cluster.stored(question, resolution);
+                    return resolution;
+                }));
+    }
+
+    private CompletableFuture<Resolution> query(Resolver upstream, Question question, boolean recursionDesired) {
+        return upstream.query(question, recursionDesired)
+                .thenApply(reply -> Resolution.of(reply, System.currentTimeMillis(), maxTtl, maxNegativeTtl));
     }
 }
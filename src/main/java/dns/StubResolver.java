@@ -0,0 +1,84 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A stand-in upstream resolver that answers every question immediately with one A record, so that load
+ * tests and benchmarks of the forwarding path measure the server rather than the network or a real resolver.
+ */
+public final class StubResolver implements Closeable {
+
+    private static final int HEADER_SIZE = 12;
+    private static final short RESPONSE_FLAGS = (short) 0x8180;
+    private static final int TTL = 3600;
+
+    private final DatagramChannel channel;
+    private final Thread thread;
+
+    /**
+     * Starts a stub on an ephemeral loopback port.
+     */
+    public StubResolver() throws IOException {
+        this(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    /**
+     * Starts a stub on the given address.
+     * @param address The address to listen on.
+     */
+    public StubResolver(SocketAddress address) throws IOException {
+        channel = DatagramChannel.open().bind(address);
+        thread = Thread.ofPlatform().daemon().name("dns-stub-resolver").start(this::serve);
+    }
+
+    /**
+     * Returns the address the stub listens on.
+     */
+    public SocketAddress getAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * Blocks until the stub is closed.
+     */
+    public void await() throws InterruptedException {
+        thread.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        thread.interrupt();
+    }
+
+    // Echoes the question with one answer pointing back at the question name, dropping the query's OPT record.
+    private void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress client = channel.receive(buffer);
+                int position = HEADER_SIZE;
+                while (buffer.get(position) != 0)
+                    position += (buffer.get(position) & 0xFF) + 1;
+                int questionEnd = position + 5;
+                buffer.putShort(2, RESPONSE_FLAGS).putShort(4, (short) 1).putShort(6, (short) 1)
+                        .putShort(8, (short) 0).putShort(10, (short) 0);
+                buffer.position(questionEnd);
+                buffer.putShort((short) (0xC000 | HEADER_SIZE)).putShort((short) 1).putShort((short) 1)
+                        .putInt(TTL).putShort((short) 4).put(new byte[]{(byte) 192, 0, 2, 1});
+                channel.send(buffer.flip(), client);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // A malformed query is simply not answered.
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package dns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves DNS over TCP, where every message is preceded by its length as a 2-byte integer.
+ * Each connection is read by its own virtual thread, so thousands of idle persistent connections cost
+ * little more than their socket buffers. Requests on one connection are pipelined as RFC 7766 allows:
+ * each is handed to the workers as soon as it is read, and responses are written in the order they
+ * complete rather than the order the requests arrived. Every request also holds a permit of the in-flight
+ * limit it shares with UDP, so many connections together cannot hand the workers more requests than one
+ * socket could, and reading from a connection pauses while none is left. A connection is closed once it has been idle,
+ * i.e. without reads and without outstanding requests, for the idle timeout, and as soon as a message
+ * stalls halfway for that long, since the rest of the stream can no longer be framed.
+ */
+public class TcpListener implements Closeable {
+
+    private static final Logger log = Logger.getLogger(TcpListener.class.getName());
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final BiFunction<SocketAddress, byte[], byte[]> handler;
+    private final int idleTimeoutMs;
+    private final int maxPipelined;
+    private final Semaphore inFlight;
+
+    /**
+     * Binds the listening socket and starts accepting connections.
+     * @param port The port to listen on.
+     * @param workers The executor that resolves requests.
+     * @param handler Turns a request from a client into its response, or null when there is nothing to send.
+     * @param idleTimeoutMs How long an idle connection is kept open.
+     * @param maxPipelined How many requests of one connection may be outstanding at once; reading
+     *                     from the connection pauses while the limit is reached.
+     * @param inFlight The permits for requests handed to the workers, shared with the UDP listeners.
+     */
+    public TcpListener(int port, ExecutorService workers, BiFunction<SocketAddress, byte[], byte[]> handler,
+                       int idleTimeoutMs, int maxPipelined, Semaphore inFlight) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(port));
+        this.workers = workers;
+        this.handler = handler;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxPipelined = maxPipelined;
+        this.inFlight = inFlight;
+        Thread.ofPlatform().daemon().name("dns-tcp-accept").start(this::acceptLoop);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("dns-tcp-connection").start(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    log.log(Level.SEVERE, "Exception accepting DNS-over-TCP connection: {0}", e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Semaphore pipeline = new Semaphore(maxPipelined);
+        try (socket) {
+            socket.setSoTimeout(idleTimeoutMs);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                int first;
+                try {
+                    first = in.read();
+                } catch (SocketTimeoutException e) {
+                    if (pipeline.availablePermits() < maxPipelined)
+                        continue;
+                    return;
+                }
+                if (first < 0)
+                    break;
+                byte[] request;
+                try {
+                    request = new byte[first << 8 | in.readUnsignedByte()];
+                    in.readFully(request);
+                } catch (SocketTimeoutException e) {
+                    log.log(Level.FINE, "DNS-over-TCP connection from {0} stalled inside a message",
+                            socket.getRemoteSocketAddress());
+                    return;
+                } catch (EOFException e) {
+                    break;
+                }
+                pipeline.acquire();
+                inFlight.acquire();
+                workers.execute(() -> {
+                    try {
+                        respond(out, socket.getRemoteSocketAddress(), request);
+                    } finally {
+                        inFlight.release();
+                        pipeline.release();
+                    }
+                });
+            }
+            // The client has finished sending; let the outstanding responses go out before closing.
+            pipeline.acquire(maxPipelined);
+        } catch (IOException e) {
+            log.log(Level.FINE, "DNS-over-TCP connection from {0} closed: {1}",
+                    new Object[]{socket.getRemoteSocketAddress(), e.getMessage()});
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respond(DataOutputStream out, SocketAddress client, byte[] request) {
+        try {
+            byte[] response = handler.apply(client, request);
+            if (response == null)
+                return;
+            synchronized (out) {
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.SEVERE, "Error handling DNS-over-TCP request: {0}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
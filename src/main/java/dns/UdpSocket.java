@@ -0,0 +1,49 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * A non-blocking UDP server socket that moves datagrams in batches between the kernel and pooled
+ * {@link Exchange}s. {@link LinuxUdpSocket} moves a whole batch with one recvmmsg or sendmmsg call where the
+ * platform allows it; {@link ChannelUdpSocket} is the portable NIO fallback.
+ * Receiving, sending batches and waiting belong to the socket's I/O thread; any thread may send a single
+ * response.
+ */
+interface UdpSocket extends Closeable {
+
+    /**
+     * Returns whether the socket is still open.
+     */
+    boolean isOpen();
+
+    /**
+     * Blocks until a datagram is ready to be received, or until there is room to send one.
+     * @param writable Whether to wait for room to send instead of for a datagram.
+     */
+    void await(boolean writable) throws IOException;
+
+    /**
+     * Receives the datagrams that are ready without blocking, setting each exchange's request, length,
+     * client and receive time.
+     * @param batch The exchanges to receive into, all reset.
+     * @return The number of datagrams received into the first exchanges of the batch.
+     */
+    int receive(Exchange[] batch) throws IOException;
+
+    /**
+     * Sends responses from the head of a queue without blocking until the kernel has no room left.
+     * @param replies The exchanges holding the responses; they stay queued, the caller removes those sent.
+     * @return The number of responses sent from the head of the queue, 0 when there is no room.
+     * @throws IOException When the response at the head of the queue cannot be sent at all.
+     */
+    int send(ArrayDeque<Exchange> replies) throws IOException;
+
+    /**
+     * Sends the response of one exchange without blocking.
+     * @param exchange The exchange holding the response.
+     * @return Whether it was sent, false when the kernel had no room for it.
+     */
+    boolean send(Exchange exchange) throws IOException;
+}
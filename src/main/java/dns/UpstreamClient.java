@@ -0,0 +1,354 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends questions to upstream servers over non-blocking channels, either to one resolver a single channel
+ * is connected to or to any server given per query. A query to an arbitrary server, e.g. an authoritative
+ * server during iterative resolution, gets a channel of its own bound to a random source port, which is
+ * closed once the query completes, so an off-path attacker has to guess the port as well as the ID.
+ * Every outgoing query gets a transaction ID from a {@link SecureRandom} and is remembered in a pending
+ * table keyed by (ID, server, channel), so replies are matched as they arrive no matter their order. A
+ * reply is only taken when its question section is byte for byte the one sent, letter case included, and
+ * anything else is dropped. Unanswered queries are resent after a timeout and fail once their retries are
+ * used up. A reply with TC set is asked for again over TCP, and only passed on as it is when that fails.
+ */
+public class UpstreamClient implements Closeable {
+
+    private static final Logger log = Logger.getLogger(UpstreamClient.class.getName());
+
+    private static final short RECURSION_DESIRED = 0x0100;
+    private static final int QDCOUNT_OFFSET = 4;
+    private static final int MIN_SOURCE_PORT = 1024;
+    private static final int SOURCE_PORT_ATTEMPTS = 8;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SocketAddress resolver;
+    // The channel connected to the resolver, or null when every query opens its own.
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ScheduledExecutorService timer;
+    private final Map<PendingKey, Pending> pending = new ConcurrentHashMap<>();
+    private final long timeoutMs;
+    private final int retries;
+    private final int payloadSize;
+    private final Thread reader;
+
+    /**
+     * Opens the upstream channel and starts the thread that reads replies.
+     * @param resolver The upstream resolver address, or null to open a channel per query.
+     * @param timeoutMs How long to wait for a reply before resending.
+     * @param retries How many times a query is resent before it fails.
+     * @param payloadSize The UDP payload size advertised through EDNS(0), which is also the largest reply read.
+     */
+    public UpstreamClient(SocketAddress resolver, long timeoutMs, int retries, int payloadSize) throws IOException {
+        this.resolver = resolver;
+        this.timeoutMs = timeoutMs;
+        this.retries = retries;
+        this.payloadSize = payloadSize;
+        this.selector = Selector.open();
+        if (resolver != null) {
+            this.channel = DatagramChannel.open();
+            this.channel.configureBlocking(false);
+            this.channel.connect(resolver);
+            this.channel.register(selector, SelectionKey.OP_READ);
+        } else {
+            this.channel = null;
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                runnable -> Thread.ofPlatform().daemon().name("dns-upstream-timer").unstarted(runnable));
+        this.reader = Thread.ofPlatform().daemon().name("dns-upstream-reader").start(this::readLoop);
+    }
+
+    /**
+     * Creates a client for queries to arbitrary servers, e.g. authoritative servers, each sent from a channel
+     * of its own, and starts the thread that reads replies.
+     * @param timeoutMs How long to wait for a reply before resending.
+     * @param retries How many times a query is resent before it fails.
+     * @param payloadSize The UDP payload size advertised through EDNS(0), which is also the largest reply read.
+     */
+    public UpstreamClient(long timeoutMs, int retries, int payloadSize) throws IOException {
+        this(null, timeoutMs, retries, payloadSize);
+    }
+
+    /**
+     * Returns the address of the upstream resolver, or null when the channel is not connected.
+     */
+    public SocketAddress getResolver() {
+        return resolver;
+    }
+
+    /**
+     * Sends a single question upstream.
+     * @param question The question to resolve.
+     * @param recursionDesired Whether the RD bit is set on the outgoing query.
+     * @return A future completed with the matching reply, or failed once all retries time out.
+     */
+    public CompletableFuture<Message> query(Question question, boolean recursionDesired) {
+        return query(resolver, question, recursionDesired);
+    }
+
+    /**
+     * Sends a single question to a given server.
+     * @param server The server to ask.
+     * @param question The question to resolve.
+     * @param recursionDesired Whether the RD bit is set on the outgoing query.
+     * @return A future completed with the matching reply, or failed once all retries time out.
+     */
+    public CompletableFuture<Message> query(SocketAddress server, Question question, boolean recursionDesired) {
+        Pending query;
+        try {
+            query = new Pending(question, channel != null ? channel : open());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        PendingKey key;
+        do {
+            short id = (short) RANDOM.nextInt(1 << 16);
+            key = new PendingKey(id, server, query.channel);
+        } while (pending.putIfAbsent(key, query) != null);
+        Header header = new Header(key.id(), recursionDesired ? RECURSION_DESIRED : 0,
+                (short) 1, (short) 0, (short) 0, (short) 1);
+        query.packet = new Message(header, List.of(question), List.of(), List.of(),
+                List.of(Edns.record(payloadSize, Resolution.NOERROR, false))).getMessage();
+        query.questionEnd = questionEnd(query.packet);
+        query.future.whenComplete((reply, error) -> finish(query));
+        send(key, query);
+        return query.future;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        timer.shutdownNow();
+        selector.close();
+        if (channel != null)
+            channel.close();
+        pending.values().forEach(query -> query.future.completeExceptionally(new IOException("Upstream client closed")));
+        pending.clear();
+    }
+
+    // Opens a channel for one query on a random source port, falling back to one the system picks.
+    private DatagramChannel open() throws IOException {
+        DatagramChannel opened = DatagramChannel.open();
+        try {
+            opened.configureBlocking(false);
+            for (int attempt = 0; attempt < SOURCE_PORT_ATTEMPTS && opened.getLocalAddress() == null; attempt++) {
+                try {
+                    opened.bind(new InetSocketAddress(MIN_SOURCE_PORT + RANDOM.nextInt(65536 - MIN_SOURCE_PORT)));
+                } catch (BindException e) {
+                    // Taken; try another port.
+                }
+            }
+            if (opened.getLocalAddress() == null)
+                opened.bind(null);
+            opened.register(selector, SelectionKey.OP_READ);
+            selector.wakeup();
+            return opened;
+        } catch (IOException | RuntimeException e) {
+            opened.close();
+            throw e;
+        }
+    }
+
+    private void finish(Pending query) {
+        cancelTimeout(query);
+        if (query.channel != channel) {
+            try {
+                query.channel.close();
+            } catch (IOException e) {
+                log.log(Level.FINE, "Failed to close query channel: {0}", e.getMessage());
+            }
+        }
+    }
+
+    private void send(PendingKey key, Pending query) {
+        try {
+            query.channel.send(ByteBuffer.wrap(query.packet), key.server());
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to send query to {0} : {1}", new Object[]{key.server(), e.getMessage()});
+        }
+        synchronized (query) {
+            if (!query.future.isDone() && !query.overTcp)
+                query.timeout = timer.schedule(() -> onTimeout(key, query), timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onTimeout(PendingKey key, Pending query) {
+        synchronized (query) {
+            if (query.future.isDone() || query.overTcp)
+                return;
+        }
+        if (query.attempts++ < retries) {
+            send(key, query);
+            return;
+        }
+        if (pending.remove(key, query))
+            query.future.completeExceptionally(new SocketTimeoutException(
+                    "No reply from " + key.server() + " for " + query.question + " after " + (retries + 1) + " attempts"));
+    }
+
+    private void cancelTimeout(Pending query) {
+        synchronized (query) {
+            if (query.timeout != null)
+                query.timeout.cancel(false);
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(payloadSize);
+        while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        receive((DatagramChannel) key.channel(), buffer);
+                    } catch (ClosedChannelException e) {
+                        // The query of the channel completed meanwhile.
+                    } catch (IOException e) {
+                        log.log(Level.SEVERE, "Error reading from upstream {0} : {1}",
+                                new Object[]{resolver, e.getMessage()});
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                if (selector.isOpen())
+                    log.log(Level.SEVERE, "Error reading from upstream {0} : {1}", new Object[]{resolver, e.getMessage()});
+            }
+        }
+    }
+
+    private void receive(DatagramChannel from, ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            SocketAddress server;
+            try {
+                server = from.receive(buffer);
+            } catch (PortUnreachableException e) {
+                continue;
+            }
+            if (server == null)
+                return;
+            onReply(from, server, Arrays.copyOf(buffer.array(), buffer.position()));
+        }
+    }
+
+    private void onReply(DatagramChannel from, SocketAddress server, byte[] data) {
+        if (data.length < Wire.HEADER_SIZE)
+            return;
+        short id = (short) ((data[0] & 0xFF) << 8 | data[1] & 0xFF);
+        PendingKey key = new PendingKey(id, server, from);
+        Pending query = pending.get(key);
+        if (query == null || !query.isAnsweredBy(data))
+            return;
+        Message reply;
+        try {
+            reply = new Parser().parse(data);
+        } catch (RuntimeException e) {
+            log.log(Level.FINE, "Dropping malformed reply from {0}", server);
+            return;
+        }
+        if (!pending.remove(key, query))
+            return;
+        reply.setSource(server);
+        if (!reply.getHeader().isTc()) {
+            query.future.complete(reply);
+            return;
+        }
+        synchronized (query) {
+            query.overTcp = true;
+        }
+        cancelTimeout(query);
+        Thread.ofVirtual().name("dns-upstream-tcp").start(() -> queryOverTcp(server, query, reply));
+    }
+
+    // Sends a query again over TCP after a truncated reply, with the same timeout as one UDP attempt. When
+    // that fails the truncated reply is passed on, which is then never cached.
+    private void queryOverTcp(SocketAddress server, Pending query, Message truncated) {
+        try (Socket socket = new Socket()) {
+            socket.connect(server, (int) timeoutMs);
+            socket.setSoTimeout((int) timeoutMs);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(query.packet.length);
+            out.write(query.packet);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] data = new byte[in.readUnsignedShort()];
+            in.readFully(data);
+            if (data.length < Wire.HEADER_SIZE || !Arrays.equals(data, 0, 2, query.packet, 0, 2)
+                    || !query.isAnsweredBy(data))
+                throw new IOException("Reply does not match the query");
+            Message reply = new Parser().parse(data);
+            reply.setSource(server);
+            query.future.complete(reply);
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.FINE, "Cannot retry truncated reply from {0} over TCP: {1}",
+                    new Object[]{server, e.getMessage()});
+            query.future.complete(truncated);
+        }
+    }
+
+    // Returns where the question section of a query with one uncompressed question ends.
+    private static int questionEnd(byte[] packet) {
+        int offset = Wire.HEADER_SIZE;
+        while (packet[offset] != 0)
+            offset += 1 + (packet[offset] & 0xFF);
+        return offset + 1 + 4;
+    }
+
+    private record PendingKey(short id, SocketAddress server, DatagramChannel channel) {
+    }
+
+    private static final class Pending {
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+        private final Question question;
+        private final DatagramChannel channel;
+        private byte[] packet;
+        private int questionEnd;
+        private int attempts;
+        private boolean overTcp;
+        private ScheduledFuture<?> timeout;
+
+        private Pending(Question question, DatagramChannel channel) {
+            this.question = question;
+            this.channel = channel;
+        }
+
+        // Whether a reply carries exactly the question that was sent, compared byte for byte.
+        private boolean isAnsweredBy(byte[] reply) {
+            int counts = QDCOUNT_OFFSET + 2;
+            return reply.length >= questionEnd
+                    && Arrays.equals(reply, QDCOUNT_OFFSET, counts, packet, QDCOUNT_OFFSET, counts)
+                    && Arrays.equals(reply, Wire.HEADER_SIZE, questionEnd, packet, Wire.HEADER_SIZE, questionEnd);
+        }
+    }
+}
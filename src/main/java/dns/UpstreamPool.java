@@ -0,0 +1,287 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads questions over several upstream resolvers.
+ * Each upstream keeps a smoothed round-trip time, an exponentially weighted moving average of its replies
+ * in which a timeout counts as a very slow reply. Queries go to a healthy upstream picked at random with a
+ * weight inversely proportional to that RTT, so the fastest upstream takes most of the load while the
+ * others still see enough traffic to keep their RTT current. An upstream that misses several replies in a
+ * row is marked down and only probed until it answers again. A query that times out fails over to another
+ * upstream, and when hedging is enabled a second upstream is asked as well once the first one is slower
+ * than the given percentile of recent replies; the first reply wins.
+ */
+public class UpstreamPool implements Resolver {
+
+    private static final Logger log = Logger.getLogger(UpstreamPool.class.getName());
+
+    private static final int RTT_SHIFT = 3;
+    private static final int TIMEOUT_PENALTY = 2;
+    private static final int FAILURES_BEFORE_DOWN = 3;
+    private static final int SAMPLE_COUNT = 1024;
+    private static final long MIN_HEDGE_DELAY_MICROS = 1000;
+    private static final Question PROBE = new Question(".", RecordType.NS, (short) 1);
+
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final ScheduledExecutorService timer;
+    private final long timeoutMicros;
+    private final int attempts;
+    private final int hedgePercentile;
+    private final AtomicIntegerArray samples = new AtomicIntegerArray(SAMPLE_COUNT);
+    // The next slot to write wraps around the samples; how many slots hold a sample stops at SAMPLE_COUNT.
+    private final AtomicInteger sampleCursor = new AtomicInteger();
+    private final AtomicInteger samplesFilled = new AtomicInteger();
+    private volatile long hedgeDelayMicros;
+
+    /**
+     * Opens a client for every upstream and starts probing them.
+     * @param resolvers The upstream resolver addresses.
+     * @param timeoutMs How long to wait for a reply from one upstream before failing over.
+     * @param retries How many times a query is sent again, to another upstream when there is one, before it fails.
+     * @param payloadSize The UDP payload size advertised through EDNS(0).
+     * @param probeIntervalMs How often every upstream is probed.
+     * @param hedgePercentile The percentile of recent RTTs after which a hedged query is sent, or 0 to never hedge.
+     * @param metrics The metrics to record RTTs and timeouts of every upstream in.
+     */
+    public UpstreamPool(List<SocketAddress> resolvers, long timeoutMs, int retries, int payloadSize,
+                        long probeIntervalMs, int hedgePercentile, Metrics metrics) throws IOException {
+        if (resolvers.isEmpty())
+            throw new IllegalArgumentException("At least one upstream resolver is required");
+        this.timeoutMicros = TimeUnit.MILLISECONDS.toMicros(timeoutMs);
+        this.attempts = retries + 1;
+        this.hedgePercentile = Math.clamp(hedgePercentile, 0, 100);
+        this.hedgeDelayMicros = timeoutMicros;
+        try {
+            for (SocketAddress resolver : resolvers)
+                upstreams.add(new Upstream(new UpstreamClient(resolver, timeoutMs, 0, payloadSize),
+                        metrics.addUpstream(label(resolver))));
+        } catch (IOException e) {
+            closeAll();
+            throw e;
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                runnable -> Thread.ofPlatform().daemon().name("dns-upstream-probe").unstarted(runnable));
+        timer.scheduleWithFixedDelay(this::probe, 0, probeIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a single question to the best upstream, failing over and hedging as configured.
+     * @param question The question to resolve.
+     * @param recursionDesired Whether the RD bit is set on the outgoing query.
+     * @return A future completed with the first reply, or failed once every attempt timed out.
+     */
+    @Override
+    public CompletableFuture<Message> query(Question question, boolean recursionDesired) {
+        Query query = new Query(question, recursionDesired, upstreams.size());
+        send(query);
+        if (hedgePercentile > 0 && upstreams.size() > 1 && attempts > 1) {
+            ScheduledFuture<?> hedge = timer.schedule(() -> {
+                if (!query.result.isDone())
+                    send(query);
+            }, hedgeDelayMicros, TimeUnit.MICROSECONDS);
+            query.result.whenComplete((reply, error) -> hedge.cancel(false));
+        }
+        return query.result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        timer.shutdownNow();
+        closeAll();
+    }
+
+    private void closeAll() throws IOException {
+        IOException failure = null;
+        for (Upstream upstream : upstreams) {
+            try {
+                upstream.client.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private void send(Query query) {
+        Upstream upstream;
+        synchronized (query) {
+            if (query.result.isDone() || query.sent == attempts)
+                return;
+            upstream = select(query.tried);
+            query.tried[upstream.index] = true;
+            query.sent++;
+            query.outstanding++;
+        }
+        long start = System.nanoTime();
+        upstream.client.query(query.question, query.recursionDesired).whenComplete((reply, error) -> {
+            if (error == null)
+                onReply(upstream, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            else
+                onTimeout(upstream);
+            boolean retry;
+            synchronized (query) {
+                query.outstanding--;
+                if (error == null) {
+                    query.result.complete(reply);
+                    return;
+                }
+                retry = query.outstanding == 0 && query.sent < attempts;
+                if (query.outstanding == 0 && !retry)
+                    query.result.completeExceptionally(error);
+            }
+            if (retry)
+                send(query);
+        });
+    }
+
+    // Picks an upstream at random, weighted by the inverse of its smoothed RTT. Upstreams this query has not
+    // tried yet and that are up are preferred; if there are none, any upstream up will do, and if all are
+    // down, any upstream at all.
+    private Upstream select(boolean[] tried) {
+        Upstream upstream = select(tried, true);
+        if (upstream == null)
+            upstream = select(null, true);
+        if (upstream == null)
+            upstream = select(null, false);
+        return upstream;
+    }
+
+    private Upstream select(boolean[] tried, boolean upOnly) {
+        double total = 0;
+        double[] weights = new double[upstreams.size()];
+        for (Upstream upstream : upstreams) {
+            if (tried != null && tried[upstream.index] || upOnly && !upstream.isUp())
+                continue;
+            weights[upstream.index] = 1.0 / Math.max(1, upstream.getRtt());
+            total += weights[upstream.index];
+        }
+        if (total == 0)
+            return null;
+        double point = ThreadLocalRandom.current().nextDouble(total);
+        for (Upstream upstream : upstreams) {
+            point -= weights[upstream.index];
+            if (weights[upstream.index] > 0 && point < 0)
+                return upstream;
+        }
+        for (int i = upstreams.size() - 1; ; i--)
+            if (weights[i] > 0)
+                return upstreams.get(i);
+    }
+
+    private void onReply(Upstream upstream, long rttMicros) {
+        upstream.observe(rttMicros);
+        upstream.metrics.rtt().record(TimeUnit.MICROSECONDS.toNanos(rttMicros));
+        if (upstream.failures.getAndSet(0) >= FAILURES_BEFORE_DOWN)
+            log.log(Level.INFO, "Upstream {0} is up again", upstream.client.getResolver());
+        samples.set(sampleCursor.getAndIncrement() & (SAMPLE_COUNT - 1), (int) Math.min(rttMicros, Integer.MAX_VALUE));
+        if (samplesFilled.get() < SAMPLE_COUNT)
+            samplesFilled.incrementAndGet();
+    }
+
+    private void onTimeout(Upstream upstream) {
+        upstream.observe(TIMEOUT_PENALTY * timeoutMicros);
+        upstream.metrics.timeouts().increment();
+        if (upstream.failures.incrementAndGet() == FAILURES_BEFORE_DOWN)
+            log.log(Level.WARNING, "Upstream {0} is down after {1} failed queries",
+                    new Object[]{upstream.client.getResolver(), FAILURES_BEFORE_DOWN});
+    }
+
+    // Sends a probe to every upstream, so an upstream that is down is noticed when it recovers and an idle one
+    // keeps a current RTT, and recomputes the hedging delay from the recent replies. An exception escaping
+    // a scheduled task would cancel every later run, so none does.
+    private void probe() {
+        try {
+            for (Upstream upstream : upstreams) {
+                long start = System.nanoTime();
+                upstream.client.query(PROBE, false).whenComplete((reply, error) -> {
+                    if (error == null)
+                        onReply(upstream, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    else
+                        onTimeout(upstream);
+                });
+            }
+            if (hedgePercentile > 0)
+                hedgeDelayMicros = percentile();
+        } catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Failed to probe upstreams: {0}", e.toString());
+        }
+    }
+
+    private long percentile() {
+        int count = Math.min(samplesFilled.get(), SAMPLE_COUNT);
+        if (count == 0)
+            return timeoutMicros;
+        int[] sorted = new int[count];
+        for (int i = 0; i < count; i++)
+            sorted[i] = samples.get(i);
+        Arrays.sort(sorted);
+        long value = sorted[Math.min(count - 1, count * hedgePercentile / 100)];
+        return Math.clamp(value, MIN_HEDGE_DELAY_MICROS, timeoutMicros);
+    }
+
+    private static String label(SocketAddress resolver) {
+        return resolver instanceof InetSocketAddress address
+                ? address.getHostString() + ":" + address.getPort() : resolver.toString();
+    }
+
+    private final class Upstream {
+        private final UpstreamClient client;
+        private final Metrics.Upstream metrics;
+        private final int index = upstreams.size();
+        private final AtomicLong srttMicros = new AtomicLong(-1);
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private Upstream(UpstreamClient client, Metrics.Upstream metrics) {
+            this.client = client;
+            this.metrics = metrics;
+        }
+
+        // Until the first reply is measured the upstream is assumed to be as slow as the timeout.
+        private long getRtt() {
+            long srtt = srttMicros.get();
+            return srtt < 0 ? timeoutMicros : srtt;
+        }
+
+        private boolean isUp() {
+            return failures.get() < FAILURES_BEFORE_DOWN;
+        }
+
+        // srtt += (sample - srtt) / 8, as TCP smooths its round-trip time; the first sample is taken as is.
+        private void observe(long sampleMicros) {
+            srttMicros.updateAndGet(srtt -> srtt < 0 ? sampleMicros : srtt + ((sampleMicros - srtt) >> RTT_SHIFT));
+        }
+    }
+
+    private static final class Query {
+        private final Question question;
+        private final boolean recursionDesired;
+        private final CompletableFuture<Message> result = new CompletableFuture<>();
+        private final boolean[] tried;
+        private int sent;
+        private int outstanding;
+
+        private Query(Question question, boolean recursionDesired, int upstreamCount) {
+            this.question = question;
+            this.recursionDesired = recursionDesired;
+            this.tried = new boolean[upstreamCount];
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package dns;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Helpers that write DNS wire format straight into a ByteBuffer, without intermediate arrays,
+ * streams or regular expressions.
+ */
+public final class Wire {
+
+    public static final int HEADER_SIZE = 12;
+    public static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int POINTER = 0xC0;
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+    private static final String ROOT = ".";
+
+    private Wire() {
+    }
+
+    /**
+     * Writes the 12-byte message header.
+     * @param buffer The buffer to write to.
+     * @param id The transaction ID.
+     * @param flags The combined flags.
+     * @param qdCount The count of question records.
+     * @param anCount The count of answer records.
+     * @param nsCount The count of authority records.
+     * @param arCount The count of additional records.
+     */
+    public static void putHeader(ByteBuffer buffer, short id, short flags, int qdCount, int anCount,
+                                 int nsCount, int arCount) {
+        buffer.putShort(id)
+                .putShort(flags)
+                .putShort((short) qdCount)
+                .putShort((short) anCount)
+                .putShort((short) nsCount)
+                .putShort((short) arCount);
+    }
+
+    /**
+     * Copies a region of one buffer into another at its position, whatever kind of buffer either is.
+     * @param buffer The buffer to write to.
+     * @param source The buffer to copy from; its position is not changed.
+     * @param offset The start of the region in the source.
+     * @param length The length of the region.
+     * @throws java.nio.BufferOverflowException When the region does not fit.
+     */
+    public static void putRegion(ByteBuffer buffer, ByteBuffer source, int offset, int length) {
+        if (buffer.remaining() < length)
+            throw new BufferOverflowException();
+        buffer.put(buffer.position(), source, offset, length);
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Writes a dotted domain name as a sequence of length-prefixed labels ending with the root label.
+     * A trailing dot is accepted; the empty name encodes the root.
+     * @param buffer The buffer to write to.
+     * @param name The domain name to encode.
+     */
+    public static void putName(ByteBuffer buffer, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) >= 0x80) {
+                putName(buffer, name.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        int lengthPosition = buffer.position();
+        buffer.put((byte) 0);
+        int labelLength = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c != '.') {
+                if (++labelLength > MAX_LABEL_LENGTH)
+                    throw new IllegalArgumentException("Label in domain name cannot be more than 63 characters");
+                buffer.put((byte) c);
+                continue;
+            }
+            if (labelLength == 0) {
+                if (i == name.length() - 1)
+                    break;
+                throw new IllegalArgumentException("Domain name contains an empty label: " + name);
+            }
+            buffer.put(lengthPosition, (byte) labelLength);
+            lengthPosition = buffer.position();
+            buffer.put((byte) 0);
+            labelLength = 0;
+        }
+        if (labelLength > 0) {
+            buffer.put(lengthPosition, (byte) labelLength);
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Writes a dotted domain name, compressing it against the names written before it in the same message.
+     * The longest suffix found in the table is replaced with a pointer, and every suffix written out in
+     * full is added to the table. Offsets are positions in the buffer, so the message must start at index 0.
+     * @param buffer The buffer to write to.
+     * @param name The domain name to encode.
+     * @param compression The lower-cased names and suffixes already in the message and their offsets,
+     *                    or null to write the name uncompressed.
+     */
+    public static void putName(ByteBuffer buffer, String name, Map<String, Integer> compression) {
+        if (compression == null) {
+            putName(buffer, name);
+            return;
+        }
+        String rest = name.endsWith(ROOT) ? name.substring(0, name.length() - 1) : name;
+        while (!rest.isEmpty()) {
+            String suffix = rest.toLowerCase(Locale.ROOT);
+            Integer offset = compression.get(suffix);
+            if (offset != null) {
+                buffer.putShort((short) (POINTER << 8 | offset));
+                return;
+            }
+            if (buffer.position() <= MAX_POINTER_OFFSET)
+                compression.put(suffix, buffer.position());
+            int dot = rest.indexOf('.');
+            byte[] label = (dot < 0 ? rest : rest.substring(0, dot)).getBytes(StandardCharsets.UTF_8);
+            if (label.length == 0 || label.length > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Domain name contains an invalid label: " + name);
+            buffer.put((byte) label.length).put(label);
+            rest = dot < 0 ? "" : rest.substring(dot + 1);
+        }
+        buffer.put((byte) 0);
+    }
+
+    /**
+     * Adds a name already written uncompressed into a message, and each of its suffixes, to the
+     * message's compression table.
+     * @param compression The compression table of the message.
+     * @param name The dotted name.
+     * @param offset The offset at which the name starts.
+     */
+    public static void addName(Map<String, Integer> compression, String name, int offset) {
+        String rest = name.endsWith(ROOT) ? name.substring(0, name.length() - 1) : name;
+        while (!rest.isEmpty() && offset <= MAX_POINTER_OFFSET) {
+            compression.putIfAbsent(rest.toLowerCase(Locale.ROOT), offset);
+            int dot = rest.indexOf('.');
+            offset += (dot < 0 ? rest : rest.substring(0, dot)).getBytes(StandardCharsets.UTF_8).length + 1;
+            rest = dot < 0 ? "" : rest.substring(dot + 1);
+        }
+    }
+
+    /**
+     * Reads a possibly compressed name at the buffer's position and moves the position past it.
+     * Every pointer must lead to an earlier offset than the one before it, so a pointer loop cannot be
+     * followed forever. Offsets are positions in the buffer, so the message must start at index 0.
+     * @param buffer The buffer holding the message.
+     * @return The dotted name, or "." for the root.
+     * @throws IllegalArgumentException When the name is malformed.
+     */
+    public static String readName(ByteBuffer buffer) {
+        StringBuilder name = new StringBuilder();
+        int position = buffer.position();
+        int end = -1;
+        int limit = position;
+        int labelLength = buffer.get(position++) & 0xFF;
+        while (labelLength > 0) {
+            if ((labelLength & POINTER) == POINTER) {
+                int target = ((labelLength & ~POINTER) << 8) | (buffer.get(position++) & 0xFF);
+                if (target >= limit)
+                    throw new IllegalArgumentException("Compression pointer does not point backwards: " + target);
+                if (end < 0)
+                    end = position;
+                limit = position = target;
+            } else if ((labelLength & POINTER) != 0) {
+                throw new IllegalArgumentException("Unsupported label type: " + labelLength);
+            } else {
+                byte[] label = new byte[labelLength];
+                buffer.get(position, label);
+                if (!name.isEmpty())
+                    name.append('.');
+                name.append(new String(label, StandardCharsets.UTF_8));
+                position += labelLength;
+                if (name.length() > MAX_NAME_LENGTH)
+                    throw new IllegalArgumentException("Domain name is longer than " + MAX_NAME_LENGTH);
+            }
+            labelLength = buffer.get(position++) & 0xFF;
+        }
+        buffer.position(end < 0 ? position : end);
+        return name.isEmpty() ? ROOT : name.toString();
+    }
+
+    // Slow path of putName for names that are not plain ASCII
+    private static void putName(ByteBuffer buffer, byte[] name) {
+        int start = 0;
+        for (int i = 0; i <= name.length; i++) {
+            if (i < name.length && name[i] != '.')
+                continue;
+            int labelLength = i - start;
+            if (labelLength > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Label in domain name cannot be more than 63 characters");
+            if (labelLength > 0)
+                buffer.put((byte) labelLength).put(name, start, labelLength);
+            start = i + 1;
+        }
+        buffer.put((byte) 0);
+    }
+
+    /**
+     * Reads an uncompressed wire-format name, such as one inside zone rdata, as a dotted string.
+     * @param data The bytes holding the name.
+     * @param offset The offset of the first label.
+     */
+    public static String getName(byte[] data, int offset) {
+        StringBuilder name = new StringBuilder();
+        int labelLength = data[offset] & 0xFF;
+        while (labelLength > 0) {
+            if ((labelLength & 0xC0) != 0)
+                throw new IllegalArgumentException("Compressed names are not allowed here");
+            if (!name.isEmpty())
+                name.append('.');
+            name.append(new String(data, offset + 1, labelLength, StandardCharsets.UTF_8));
+            offset += labelLength + 1;
+            labelLength = data[offset] & 0xFF;
+        }
+        return name.toString();
+    }
+}
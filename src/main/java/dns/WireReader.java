@@ -0,0 +1,208 @@
+package dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the header, question section and EDNS(0) OPT record of a DNS message in place, without
+ * creating objects. Question names are kept as offsets into the underlying buffer. A reader is
+ * reusable: every call to {@link #read} replaces the previous message. Messages the reader does not
+ * handle (more questions than it tracks, compressed question names, records other than a single OPT
+ * after the questions, truncated data) are reported so the caller can fall back to {@link Parser}.
+ */
+public final class WireReader {
+
+    public static final int MAX_QUESTIONS = 16;
+
+    private final int[] nameOffsets = new int[MAX_QUESTIONS];
+    private final int[] nameLengths = new int[MAX_QUESTIONS];
+    private final short[] qTypes = new short[MAX_QUESTIONS];
+    private final short[] qClasses = new short[MAX_QUESTIONS];
+    private ByteBuffer data;
+    private short id;
+    private short flags;
+    private int qdCount;
+    private int arCount;
+    private int questionsEnd;
+    private boolean edns;
+    private int ednsPayloadSize;
+    private int ednsTtl;
+
+    /**
+     * Decodes the header and questions of a message.
+     * @param data The buffer holding the message, starting at index 0.
+     * @param length The length of the message.
+     * @return Whether the message could be decoded.
+     */
+    public boolean read(ByteBuffer data, int length) {
+        this.data = data;
+        if (length < Wire.HEADER_SIZE)
+            return false;
+        id = data.getShort(0);
+        flags = data.getShort(2);
+        qdCount = data.getShort(4) & 0xFFFF;
+        arCount = data.getShort(10) & 0xFFFF;
+        edns = false;
+        if (qdCount > MAX_QUESTIONS || data.getShort(6) != 0 || data.getShort(8) != 0 || arCount > 1)
+            return false;
+        int position = Wire.HEADER_SIZE;
+        for (int i = 0; i < qdCount; i++) {
+            int start = position;
+            while (true) {
+                if (position >= length || position - start >= Wire.MAX_NAME_LENGTH)
+                    return false;
+                int labelLength = data.get(position) & 0xFF;
+                position++;
+                if (labelLength == 0)
+                    break;
+                if ((labelLength & 0xC0) != 0)
+                    return false;
+                position += labelLength;
+            }
+            if (position + 4 > length)
+                return false;
+            nameOffsets[i] = start;
+            nameLengths[i] = position - start;
+            qTypes[i] = data.getShort(position);
+            qClasses[i] = data.getShort(position + 2);
+            position += 4;
+        }
+        questionsEnd = position;
+        if (arCount == 0)
+            return true;
+        // The OPT record: root owner, type, payload size as class, TTL, empty or skipped options.
+        if (position + Edns.RECORD_SIZE > length || data.get(position) != 0
+                || data.getShort(position + 1) != RecordType.OPT)
+            return false;
+        edns = true;
+        ednsPayloadSize = data.getShort(position + 3) & 0xFFFF;
+        ednsTtl = data.getInt(position + 5);
+        return position + Edns.RECORD_SIZE + (data.getShort(position + 9) & 0xFFFF) <= length;
+    }
+
+    /**
+     * Returns the buffer the last message was read from.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * Returns the transaction ID.
+     */
+    public short getId() {
+        return id;
+    }
+
+    /**
+     * Returns the combined flags.
+     */
+    public short getFlags() {
+        return flags;
+    }
+
+    /**
+     * Returns the opcode.
+     */
+    public int getOpcode() {
+        return (flags >> 11) & 15;
+    }
+
+    /**
+     * Returns whether recursion is desired (RD flag).
+     */
+    public boolean isRd() {
+        return (flags & 0x0100) != 0;
+    }
+
+    /**
+     * Returns the count of question records.
+     */
+    public int getQdCount() {
+        return qdCount;
+    }
+
+    /**
+     * Returns the count of additional records.
+     */
+    public int getArCount() {
+        return arCount;
+    }
+
+    /**
+     * Returns whether the message carries an OPT record.
+     */
+    public boolean hasEdns() {
+        return edns;
+    }
+
+    /**
+     * Returns the UDP payload size advertised by the OPT record.
+     */
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /**
+     * Returns the EDNS version of the OPT record.
+     */
+    public int getEdnsVersion() {
+        return (ednsTtl >>> 16) & 0xFF;
+    }
+
+    /**
+     * Returns whether the OPT record has the DO flag set.
+     */
+    public boolean isDnssecOk() {
+        return (ednsTtl & 0x8000) != 0;
+    }
+
+    /**
+     * Returns the offset just past the question section.
+     */
+    public int getQuestionsEnd() {
+        return questionsEnd;
+    }
+
+    /**
+     * Returns the offset of the wire-format name of a question.
+     * @param question The index of the question.
+     */
+    public int getNameOffset(int question) {
+        return nameOffsets[question];
+    }
+
+    /**
+     * Returns the length of the wire-format name of a question, including the root label.
+     * @param question The index of the question.
+     */
+    public int getNameLength(int question) {
+        return nameLengths[question];
+    }
+
+    /**
+     * Returns the query type of a question.
+     * @param question The index of the question.
+     */
+    public short getQType(int question) {
+        return qTypes[question];
+    }
+
+    /**
+     * Returns the query class of a question.
+     * @param question The index of the question.
+     */
+    public short getQClass(int question) {
+        return qClasses[question];
+    }
+
+    /**
+     * Decodes a question into an object, for the rare uses that need one.
+     * @param question The index of the question.
+     */
+    public Question getQuestion(int question) {
+        byte[] name = new byte[nameLengths[question]];
+        data.get(nameOffsets[question], name);
+        String domain = Wire.getName(name, 0);
+        return new Question(domain.isEmpty() ? "." : domain, qTypes[question], qClasses[question]);
+    }
+}
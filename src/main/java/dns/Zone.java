@@ -0,0 +1,234 @@
+package dns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An authoritative zone.
+ * Records are held in a packed {@link ZoneIndex} on wire-format names, either on the heap or in a
+ * memory-mapped {@link ZoneSnapshot}. Ancestors of a name are found as suffixes of its wire format, so
+ * walking up the tree creates no objects, and only the records that end up in a resolution are copied out
+ * of the index. Lookups follow RFC 1034 section 4.3.2: delegations below the apex produce referrals, CNAMEs
+ * inside the zone are chased, wildcards are expanded from the closest encloser, and negative answers carry
+ * the SOA.
+ */
+public final class Zone {
+
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    private final String origin;
+    private final int apexLength;
+    private final Answer soa;
+    private final ZoneIndex nodes;
+
+    /**
+     * Builds a zone from its records.
+     * @param records The records, with lower-cased owner names without the trailing dot. Exactly one SOA
+     *                record is required; its owner is the apex and every other record must be at or below it.
+     */
+    public Zone(List<Answer> records) {
+        Answer soa = null;
+        for (Answer record : records)
+            if (record.getQType() == RecordType.SOA) {
+                if (soa != null)
+                    throw new IllegalArgumentException("Zone has more than one SOA record");
+                soa = record;
+            }
+        if (soa == null)
+            throw new IllegalArgumentException("Zone has no SOA record");
+        this.soa = soa;
+        this.origin = soa.getDomain();
+        this.apexLength = ZoneIndex.wireName(origin).length;
+        Map<String, List<Answer>> grouped = new HashMap<>();
+        for (Answer record : records) {
+            String name = record.getDomain();
+            if (!isInZone(name))
+                throw new IllegalArgumentException("Record " + name + " is outside zone " + origin);
+            grouped.computeIfAbsent(name, n -> new ArrayList<>()).add(record);
+            for (String parent = parent(name); parent != null && isInZone(parent); parent = parent(parent))
+                grouped.computeIfAbsent(parent, n -> new ArrayList<>());
+        }
+        this.nodes = ZoneIndex.of(grouped);
+    }
+
+    /**
+     * Builds a zone over an existing index, such as a memory-mapped snapshot.
+     * @param origin The apex name.
+     * @param nodes The index, whose apex must own exactly one SOA record.
+     */
+    Zone(String origin, ZoneIndex nodes) {
+        byte[] apexName = ZoneIndex.wireName(origin);
+        int apex = nodes.find(apexName, 0);
+        Answer soa = null;
+        if (apex != ZoneIndex.NONE) {
+            int record = nodes.getFirstRecord(apex);
+            for (int i = nodes.getRecordCount(apex); i > 0; i--, record = nodes.getNextRecord(record))
+                if (nodes.getType(record) == RecordType.SOA)
+                    soa = nodes.getRecord(record, origin);
+        }
+        if (soa == null)
+            throw new IllegalArgumentException("Zone " + origin + " has no SOA record");
+        this.origin = origin;
+        this.apexLength = apexName.length;
+        this.soa = soa;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Returns the apex name of the zone.
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Returns the number of names in the index, including empty non-terminals.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Returns the index of the zone.
+     */
+    ZoneIndex getIndex() {
+        return nodes;
+    }
+
+    /**
+     * Returns whether a name is at or below the apex of this zone.
+     * @param name A lower-cased name without the trailing dot.
+     */
+    public boolean isInZone(String name) {
+        return origin.isEmpty() || name.equals(origin) || name.endsWith("." + origin);
+    }
+
+    /**
+     * Answers a question from the zone data.
+     * @param question The question, whose name must be in this zone.
+     * @param now The current time in milliseconds.
+     */
+    public Resolution lookup(Question question, long now) {
+        String name = ZoneFile.normalize(question.getDomain());
+        List<Answer> answers = new ArrayList<>();
+        short qType = question.getQType();
+        for (int chain = 0; chain < MAX_CNAME_CHAIN; chain++) {
+            byte[] wireName = ZoneIndex.wireName(name);
+            int delegation = findDelegation(wireName);
+            if (delegation != ZoneIndex.NONE)
+                return referral(answers, delegation, now);
+            int node = nodes.find(wireName, 0);
+            if (node == ZoneIndex.NONE)
+                node = findWildcard(wireName);
+            if (node == ZoneIndex.NONE)
+                return negative(Resolution.NXDOMAIN, answers, now);
+            // The owner is the name itself, also for records expanded from a wildcard.
+            int matched = 0;
+            int cname = ZoneIndex.NONE;
+            int record = nodes.getFirstRecord(node);
+            for (int i = nodes.getRecordCount(node); i > 0; i--, record = nodes.getNextRecord(record)) {
+                short type = nodes.getType(record);
+                if (type == qType || qType == RecordType.ANY) {
+                    answers.add(nodes.getRecord(record, name));
+                    matched++;
+                } else if (type == RecordType.CNAME) {
+                    cname = record;
+                }
+            }
+            if (matched > 0 || cname == ZoneIndex.NONE)
+                return matched > 0 ? positive(answers, now) : negative(Resolution.NOERROR, answers, now);
+            Answer alias = nodes.getRecord(cname, name);
+            answers.add(alias);
+            name = ZoneFile.normalize(Wire.getName(alias.getRdata(), 0));
+            if (!isInZone(name))
+                return positive(answers, now);
+        }
+        return positive(answers, now);
+    }
+
+    private Resolution positive(List<Answer> answers, long now) {
+        return Resolution.authoritative(Resolution.NOERROR, answers, List.of(), additionals(answers), now);
+    }
+
+    // NXDOMAIN and NODATA carry the SOA with the negative TTL of RFC 2308. At the end of a CNAME chain
+    // the RCODE describes the last name while the chain so far stays in the answer section.
+    private Resolution negative(int rcode, List<Answer> answers, long now) {
+        int negativeTtl = (int) Math.min(soa.getTtl() & 0xFFFFFFFFL, soa.getSoaMinimum());
+        return Resolution.authoritative(rcode, answers, List.of(soa.withTtl(negativeTtl)), List.of(), now);
+    }
+
+    private Resolution referral(List<Answer> answers, int delegation, long now) {
+        String owner = nodes.getName(delegation);
+        List<Answer> authorities = new ArrayList<>();
+        int record = nodes.getFirstRecord(delegation);
+        for (int i = nodes.getRecordCount(delegation); i > 0; i--, record = nodes.getNextRecord(record))
+            if (nodes.getType(record) == RecordType.NS)
+                authorities.add(nodes.getRecord(record, owner));
+        return Resolution.referral(answers, authorities, additionals(authorities), now);
+    }
+
+    // Returns the node of the topmost cut strictly below the apex on the way down to the name.
+    private int findDelegation(byte[] name) {
+        int cut = ZoneIndex.NONE;
+        for (int offset = 0; name.length - offset > apexLength; offset += (name[offset] & 0xFF) + 1) {
+            int node = nodes.find(name, offset);
+            if (node != ZoneIndex.NONE && nodes.hasType(node, RecordType.NS))
+                cut = node;
+        }
+        return cut;
+    }
+
+    // Returns the wildcard node of the closest encloser of a missing name, if there is one.
+    private int findWildcard(byte[] name) {
+        if (name[0] == 0)
+            return ZoneIndex.NONE;
+        for (int offset = (name[0] & 0xFF) + 1; name.length - offset >= apexLength;
+             offset += (name[offset] & 0xFF) + 1) {
+            if (nodes.find(name, offset) == ZoneIndex.NONE)
+                continue;
+            byte[] wildcard = new byte[name.length - offset + 2];
+            wildcard[0] = 1;
+            wildcard[1] = '*';
+            System.arraycopy(name, offset, wildcard, 2, name.length - offset);
+            return nodes.find(wildcard, 0);
+        }
+        return ZoneIndex.NONE;
+    }
+
+    // Glue and additional-section addresses for NS, MX and SRV targets inside the zone, found straight from
+    // the wire-format names in their rdata.
+    private List<Answer> additionals(List<Answer> records) {
+        List<Answer> additionals = new ArrayList<>();
+        for (Answer record : records) {
+            int offset = switch (record.getQType()) {
+                case RecordType.NS -> 0;
+                case RecordType.MX -> 2;
+                case RecordType.SRV -> 6;
+                default -> -1;
+            };
+            if (offset < 0)
+                continue;
+            int target = nodes.find(record.getRdata(), offset);
+            if (target == ZoneIndex.NONE)
+                continue;
+            String owner = nodes.getName(target);
+            int address = nodes.getFirstRecord(target);
+            for (int i = nodes.getRecordCount(target); i > 0; i--, address = nodes.getNextRecord(address)) {
+                short type = nodes.getType(address);
+                if (type == RecordType.A || type == RecordType.AAAA)
+                    additionals.add(nodes.getRecord(address, owner));
+            }
+        }
+        return additionals;
+    }
+
+    // Returns the parent of a name, "" for a top-level name and null for the root.
+    private static String parent(String name) {
+        if (name.isEmpty())
+            return null;
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+}
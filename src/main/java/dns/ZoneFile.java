@@ -0,0 +1,262 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads RFC 1035 master files into resource records with wire-format rdata.
+ * Supports $ORIGIN and $TTL, "@", relative names, blank owners, parenthesised multi-line records,
+ * comments, quoted TXT strings and TTL units (1h, 2d...). Record types A, AAAA, CNAME, MX, NS, PTR,
+ * SOA, SRV and TXT are understood; $INCLUDE is not.
+ */
+public final class ZoneFile {
+
+    private static final int DEFAULT_TTL = 3600;
+
+    private final Path path;
+    private final List<Answer> records = new ArrayList<>();
+    private String origin;
+    private String owner;
+    private Integer defaultTtl;
+    private int lastTtl = DEFAULT_TTL;
+    private int lineNumber;
+
+    private ZoneFile(Path path, String origin) {
+        this.path = path;
+        this.origin = origin;
+    }
+
+    /**
+     * Parses a master file.
+     * @param path The file to read.
+     * @param origin The initial origin, or null when the file sets it with $ORIGIN or only uses absolute names.
+     * @return The records of the file, with lower-cased owner names without the trailing dot.
+     */
+    public static List<Answer> read(Path path, String origin) throws IOException {
+        ZoneFile file = new ZoneFile(path, origin == null ? null : normalize(origin));
+        file.parse(Files.readAllLines(path, StandardCharsets.UTF_8));
+        return file.records;
+    }
+
+    private void parse(List<String> lines) {
+        List<String> tokens = new ArrayList<>();
+        boolean blankOwner = false;
+        int depth = 0;
+        for (String line : lines) {
+            lineNumber++;
+            if (depth == 0) {
+                tokens.clear();
+                blankOwner = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+            }
+            depth = tokenize(line, tokens, depth);
+            if (depth == 0 && !tokens.isEmpty())
+                entry(tokens, blankOwner);
+        }
+        if (depth != 0)
+            throw error("Unbalanced parentheses");
+    }
+
+    // Splits a line into tokens, dropping comments and parentheses. Quoted strings keep their quotes
+    // so that TXT rdata can tell them apart. Returns the parenthesis depth at the end of the line.
+    private int tokenize(String line, List<String> tokens, int depth) {
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == ';')
+                break;
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                if (--depth < 0)
+                    throw error("Unbalanced parentheses");
+                i++;
+            } else if (c == '"') {
+                int end = i + 1;
+                while (end < line.length() && line.charAt(end) != '"')
+                    end += line.charAt(end) == '\\' ? 2 : 1;
+                if (end >= line.length())
+                    throw error("Unterminated string");
+                tokens.add(line.substring(i, end + 1));
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < line.length() && !Character.isWhitespace(line.charAt(end))
+                        && "();\"".indexOf(line.charAt(end)) < 0)
+                    end++;
+                tokens.add(line.substring(i, end));
+                i = end;
+            }
+        }
+        return depth;
+    }
+
+    private void entry(List<String> tokens, boolean blankOwner) {
+        String first = tokens.getFirst();
+        if (first.equalsIgnoreCase("$ORIGIN")) {
+            origin = normalize(absolute(tokens.get(1)));
+            return;
+        }
+        if (first.equalsIgnoreCase("$TTL")) {
+            defaultTtl = parseTtl(tokens.get(1));
+            return;
+        }
+        if (first.startsWith("$"))
+            throw error("Unsupported directive " + first);
+
+        int i = 0;
+        if (!blankOwner)
+            owner = name(tokens.get(i++));
+        if (owner == null)
+            throw error("Record without an owner name");
+        Integer ttl = null;
+        short qClass = RecordType.CLASS_IN;
+        short type = 0;
+        while (i < tokens.size() && type == 0) {
+            String token = tokens.get(i++);
+            if (Character.isDigit(token.charAt(0)))
+                ttl = parseTtl(token);
+            else if (token.equalsIgnoreCase("IN"))
+                qClass = RecordType.CLASS_IN;
+            else
+                type = RecordType.parse(token);
+        }
+        if (type == 0)
+            throw error("Record without a type");
+        List<String> rdata = tokens.subList(i, tokens.size());
+        if (ttl == null)
+            ttl = defaultTtl != null ? defaultTtl : lastTtl;
+        lastTtl = ttl;
+        RecordData data = rdata(type, rdata);
+        try {
+            records.add(new Answer(owner, type, qClass, ttl, data));
+        } catch (IllegalArgumentException | BufferOverflowException e) {
+            throw error("Invalid " + RecordType.toString(type) + " rdata: " + e.getMessage());
+        }
+    }
+
+    private RecordData rdata(short type, List<String> fields) {
+        try {
+            return switch (type) {
+                case RecordType.A, RecordType.AAAA -> {
+                    // Only literals are accepted so that InetAddress never performs a lookup.
+                    String literal = field(fields, 0);
+                    if (!literal.matches(type == RecordType.A ? "[0-9.]+" : "[0-9a-fA-F:.]+"))
+                        throw error("Invalid address " + literal);
+                    InetAddress address = InetAddress.getByName(literal);
+                    if (address.getAddress().length != (type == RecordType.A ? 4 : 16))
+                        throw error("Address " + literal + " does not match the record type");
+                    yield new RecordData.Address(address);
+                }
+                case RecordType.CNAME, RecordType.NS, RecordType.PTR -> new RecordData.Name(type, name(field(fields, 0)));
+                case RecordType.MX -> new RecordData.Mx(Integer.parseInt(field(fields, 0)), name(field(fields, 1)));
+                case RecordType.SRV -> new RecordData.Srv(Integer.parseInt(field(fields, 0)),
+                        Integer.parseInt(field(fields, 1)), Integer.parseInt(field(fields, 2)), name(field(fields, 3)));
+                case RecordType.SOA -> new RecordData.Soa(name(field(fields, 0)), name(field(fields, 1)),
+                        Long.parseLong(field(fields, 2)), parseTtl(field(fields, 3)), parseTtl(field(fields, 4)),
+                        parseTtl(field(fields, 5)), parseTtl(field(fields, 6)) & 0xFFFFFFFFL);
+                case RecordType.TXT -> {
+                    if (fields.isEmpty())
+                        throw error("TXT record without strings");
+                    List<String> strings = new ArrayList<>(fields.size());
+                    for (String field : fields)
+                        strings.add(characterString(field));
+                    yield new RecordData.Txt(strings);
+                }
+                default -> throw error("Unsupported record type " + RecordType.toString(type));
+            };
+        } catch (IOException | NumberFormatException e) {
+            throw error("Invalid " + RecordType.toString(type) + " rdata: " + e.getMessage());
+        }
+    }
+
+    private String characterString(String field) {
+        String text = field.startsWith("\"") ? field.substring(1, field.length() - 1) : field;
+        StringBuilder unescaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length())
+                c = text.charAt(++i);
+            unescaped.append(c);
+        }
+        String string = unescaped.toString();
+        if (string.getBytes(StandardCharsets.UTF_8).length > 255)
+            throw error("TXT string longer than 255 bytes");
+        return string;
+    }
+
+    private String field(List<String> fields, int index) {
+        if (index >= fields.size())
+            throw error("Missing rdata field");
+        return fields.get(index);
+    }
+
+    // Resolves "@" and relative names against the origin
+    private String name(String token) {
+        if (token.equals("@")) {
+            if (origin == null)
+                throw error("\"@\" used without an origin");
+            return origin;
+        }
+        return normalize(absolute(token));
+    }
+
+    private String absolute(String token) {
+        if (token.endsWith("."))
+            return token;
+        if (origin == null)
+            throw error("Relative name " + token + " used without an origin");
+        return origin.isEmpty() ? token : token + "." + origin;
+    }
+
+    // Lower-cases a name and strips its trailing dot
+    static String normalize(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".") ? lower.substring(0, lower.length() - 1) : lower;
+    }
+
+    // Parses a TTL given in seconds or with s/m/h/d/w units, e.g. "1h30m"
+    private int parseTtl(String token) {
+        long total = 0;
+        long value = 0;
+        boolean digits = false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = Character.toLowerCase(token.charAt(i));
+            if (Character.isDigit(c)) {
+                value = value * 10 + (c - '0');
+                digits = true;
+                continue;
+            }
+            int unit = switch (c) {
+                case 's' -> 1;
+                case 'm' -> 60;
+                case 'h' -> 3600;
+                case 'd' -> 86400;
+                case 'w' -> 604800;
+                default -> throw error("Invalid TTL " + token);
+            };
+            if (!digits)
+                throw error("Invalid TTL " + token);
+            total += value * unit;
+            value = 0;
+            digits = false;
+        }
+        total += value;
+        if (total > 0xFFFFFFFFL)
+            throw error("TTL out of range " + token);
+        return (int) total;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(path + ":" + lineNumber + ": " + message);
+    }
+}
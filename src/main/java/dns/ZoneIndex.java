@@ -0,0 +1,254 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The records of a zone packed into one buffer, either a byte array on the heap or a memory-mapped
+ * {@link ZoneSnapshot}, so a zone costs about the size of its records in wire format instead of a few
+ * objects per record. Records are grouped per owner name, and every name between an owner and the apex is
+ * present as well (as an empty non-terminal if it owns nothing), so a missing name does not exist.
+ * Names are found through an open-addressing hash table on wire-format names, compared without regard to
+ * ASCII case, and nodes and records are addressed by their offsets in the buffer. A record only becomes an
+ * {@link Answer} when it is put into a resolution.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ *   buckets  u32 node offset per bucket, a power of two of them, 0 when empty; linear probing
+ *   nodes    lower-cased wire-format name, u16 record count, then per record
+ *            u16 type, u16 class, u32 ttl, u16 rdlength, rdata
+ * </pre>
+ */
+final class ZoneIndex {
+
+    /**
+     * Returned by {@link #find} for a name that does not exist.
+     */
+    static final int NONE = -1;
+
+    private static final int FNV_OFFSET = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final int RECORD_HEADER_SIZE = 10;
+
+    private final ByteBuffer data;
+    private final int bucketMask;
+    private final int size;
+
+    /**
+     * Wraps a buffer holding an index in the layout above.
+     * @param data The buffer, starting with the buckets.
+     * @param bucketCount The number of buckets, a power of two.
+     * @param size The number of names.
+     */
+    ZoneIndex(ByteBuffer data, int bucketCount, int size) {
+        if (Integer.bitCount(bucketCount) != 1 || data.capacity() < 4L * bucketCount)
+            throw new IllegalArgumentException("Corrupt zone index: bucket count " + bucketCount);
+        this.data = data;
+        this.bucketMask = bucketCount - 1;
+        this.size = size;
+    }
+
+    /**
+     * Packs the records of a zone into an index on the heap.
+     * @param nodes The records per lower-cased owner name without the trailing dot, with an empty list for
+     *              each empty non-terminal.
+     */
+    static ZoneIndex of(Map<String, List<Answer>> nodes) {
+        int bucketCount = Integer.highestOneBit(Math.max(1, nodes.size() * 2 - 1)) << 1;
+        long length = 4L * bucketCount;
+        for (Map.Entry<String, List<Answer>> node : nodes.entrySet()) {
+            length += wireName(node.getKey()).length + 2;
+            for (Answer record : node.getValue())
+                length += RECORD_HEADER_SIZE + record.getRdLength();
+        }
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Zone is larger than 2 GB");
+        ByteBuffer data = ByteBuffer.allocate((int) length).position(4 * bucketCount);
+        int mask = bucketCount - 1;
+        for (Map.Entry<String, List<Answer>> node : nodes.entrySet()) {
+            byte[] name = wireName(node.getKey());
+            int bucket = hash(name, 0, name.length) & mask;
+            while (data.getInt(4 * bucket) != 0)
+                bucket = (bucket + 1) & mask;
+            data.putInt(4 * bucket, data.position());
+            data.put(name).putShort((short) node.getValue().size());
+            for (Answer record : node.getValue()) {
+                data.putShort(record.getQType())
+                        .putShort(record.getQClass())
+                        .putInt(record.getTtl())
+                        .putShort((short) record.getRdLength())
+                        .put(record.getRdata());
+            }
+        }
+        return new ZoneIndex(data.clear(), bucketCount, nodes.size());
+    }
+
+    /**
+     * Encodes a lower-cased dotted name without the trailing dot as an uncompressed wire-format name.
+     * @param name The name; the empty name is the root.
+     * @throws IllegalArgumentException When a label is empty or longer than 63 bytes.
+     */
+    static byte[] wireName(String name) {
+        if (name.isEmpty())
+            return new byte[1];
+        byte[] text = name.getBytes(StandardCharsets.UTF_8);
+        byte[] wire = new byte[text.length + 2];
+        int lengthAt = 0;
+        for (int i = 0; i <= text.length; i++) {
+            if (i < text.length && text[i] != '.') {
+                wire[i + 1] = text[i];
+                continue;
+            }
+            int labelLength = i - lengthAt;
+            if (labelLength == 0 || labelLength > 63)
+                throw new IllegalArgumentException("Domain name contains an invalid label: " + name);
+            wire[lengthAt] = (byte) labelLength;
+            lengthAt = i + 1;
+        }
+        return wire;
+    }
+
+    /**
+     * Returns the number of names, including empty non-terminals.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of hash buckets.
+     */
+    int getBucketCount() {
+        return bucketMask + 1;
+    }
+
+    /**
+     * Returns a read-only view of the whole index, e.g. to write it into a snapshot.
+     */
+    ByteBuffer getData() {
+        return data.asReadOnlyBuffer().clear();
+    }
+
+    /**
+     * Finds a name, which may be the suffix of a longer one, e.g. an ancestor inside a query name or a
+     * name inside rdata.
+     * @param name The bytes holding the uncompressed wire-format name.
+     * @param offset The offset of its first label.
+     * @return The offset of the node, or {@link #NONE} when the name does not exist.
+     */
+    int find(byte[] name, int offset) {
+        int length = nameLength(name, offset);
+        for (int bucket = hash(name, offset, length) & bucketMask; ; bucket = (bucket + 1) & bucketMask) {
+            int node = data.getInt(4 * bucket);
+            if (node == 0)
+                return NONE;
+            if (nameEquals(node, name, offset, length))
+                return node;
+        }
+    }
+
+    /**
+     * Returns the name of a node as a dotted string, "" for the root.
+     * @param node The offset of the node.
+     */
+    String getName(int node) {
+        byte[] name = new byte[nameLength(node)];
+        data.get(node, name);
+        return Wire.getName(name, 0);
+    }
+
+    /**
+     * Returns the number of records a node owns, 0 for an empty non-terminal.
+     * @param node The offset of the node.
+     */
+    int getRecordCount(int node) {
+        return data.getShort(node + nameLength(node)) & 0xFFFF;
+    }
+
+    /**
+     * Returns the offset of the first record of a node.
+     * @param node The offset of the node.
+     */
+    int getFirstRecord(int node) {
+        return node + nameLength(node) + 2;
+    }
+
+    /**
+     * Returns the offset of the record following one.
+     * @param record The offset of a record.
+     */
+    int getNextRecord(int record) {
+        return record + RECORD_HEADER_SIZE + (data.getShort(record + 8) & 0xFFFF);
+    }
+
+    /**
+     * Returns the type of a record.
+     * @param record The offset of the record.
+     */
+    short getType(int record) {
+        return data.getShort(record);
+    }
+
+    /**
+     * Returns whether a node owns a record of a type.
+     * @param node The offset of the node.
+     * @param type The record type.
+     */
+    boolean hasType(int node, short type) {
+        int record = getFirstRecord(node);
+        for (int i = getRecordCount(node); i > 0; i--, record = getNextRecord(record))
+            if (getType(record) == type)
+                return true;
+        return false;
+    }
+
+    /**
+     * Copies a record out of the index.
+     * @param record The offset of the record.
+     * @param owner The owner name to give it, that of its node or one synthesised from a wildcard.
+     */
+    Answer getRecord(int record, String owner) {
+        byte[] rdata = new byte[data.getShort(record + 8) & 0xFFFF];
+        data.get(record + RECORD_HEADER_SIZE, rdata);
+        return new Answer(owner, getType(record), data.getShort(record + 2), data.getInt(record + 4), rdata);
+    }
+
+    private int nameLength(int node) {
+        int end = node;
+        while (data.get(end) != 0)
+            end += (data.get(end) & 0xFF) + 1;
+        return end + 1 - node;
+    }
+
+    private boolean nameEquals(int node, byte[] name, int offset, int length) {
+        for (int i = 0; i < length; i++)
+            if (data.get(node + i) != lowerCase(name[offset + i]))
+                return false;
+        return true;
+    }
+
+    private static int nameLength(byte[] name, int offset) {
+        int end = offset;
+        while (name[end] != 0) {
+            if ((name[end] & 0xC0) != 0)
+                throw new IllegalArgumentException("Compressed names are not allowed here");
+            end += (name[end] & 0xFF) + 1;
+        }
+        return end + 1 - offset;
+    }
+
+    // Label lengths are at most 63, below 'A', so folding every byte only changes letters.
+    private static byte lowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // 32-bit FNV-1a over the lower-cased name
+    private static int hash(byte[] name, int offset, int length) {
+        int hash = FNV_OFFSET;
+        for (int i = offset; i < offset + length; i++)
+            hash = (hash ^ (lowerCase(name[i]) & 0xFF)) * FNV_PRIME;
+        return hash;
+    }
+}
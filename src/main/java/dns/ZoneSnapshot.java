@@ -0,0 +1,94 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A zone compiled into a binary file that is memory-mapped instead of parsed, so opening it takes the
+ * same few milliseconds whatever the zone size, pages are loaded on demand and shared between processes.
+ * The file holds a {@link ZoneIndex} exactly as it is laid out in memory, so lookups run against the
+ * mapped region itself: finding a name, walking up to its ancestors and checking the types a node owns
+ * read the mapping in place, and only the records that end up in a resolution are copied out of it.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ *   header   "DNSZ", u16 version, u16 reserved, u32 bucket count (a power of two), u32 name count,
+ *            u32 offset of the apex node in the index
+ *   index    the buckets and nodes of a {@link ZoneIndex}, with offsets counted from the start of the index
+ * </pre>
+ */
+public final class ZoneSnapshot {
+
+    private static final int MAGIC = 0x444E535A; // "DNSZ"
+    private static final short VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+
+    private final ZoneIndex index;
+    private final String origin;
+
+    private ZoneSnapshot(MappedByteBuffer data) {
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("Not a zone snapshot");
+        if (data.getShort(4) != VERSION)
+            throw new IllegalArgumentException("Unsupported zone snapshot version " + data.getShort(4)
+                    + ", compile the zone again");
+        this.index = new ZoneIndex(data.slice(HEADER_SIZE, data.capacity() - HEADER_SIZE), data.getInt(8),
+                data.getInt(12));
+        this.origin = index.getName(data.getInt(16));
+    }
+
+    /**
+     * Maps a snapshot file read-only.
+     * @param path The snapshot to open.
+     */
+    public static ZoneSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ZoneSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Opens a snapshot as a zone.
+     * @param path The snapshot to open.
+     */
+    public static Zone openZone(Path path) throws IOException {
+        ZoneSnapshot snapshot = open(path);
+        return new Zone(snapshot.origin, snapshot.index);
+    }
+
+    /**
+     * Compiles a zone into a snapshot file. The file is written next to the target and then moved into
+     * place atomically, so a running server never maps a half-written snapshot.
+     * @param zone The zone to compile.
+     * @param path The snapshot file to write.
+     */
+    public static void compile(Zone zone, Path path) throws IOException {
+        ZoneIndex index = zone.getIndex();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC).putShort(VERSION).putShort((short) 0)
+                .putInt(index.getBucketCount()).putInt(index.size())
+                .putInt(index.find(ZoneIndex.wireName(zone.getOrigin()), 0));
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(header.flip());
+            ByteBuffer data = index.getData();
+            while (data.hasRemaining())
+                channel.write(data);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the apex name of the zone.
+     */
+    public String getOrigin() {
+        return origin;
+    }
+}
@@ -0,0 +1,109 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The set of zones the server is authoritative for, keyed by apex name.
+ */
+public class Zones {
+
+    private final Map<String, Zone> zones = new HashMap<>();
+    private final Map<Path, String> snapshots = new HashMap<>();
+
+    /**
+     * Loads master files and compiled snapshots into a zone set. Snapshots are memory-mapped rather
+     * than parsed; a snapshot replaces a master file with the same apex.
+     * @param paths The zone files to load.
+     * @param snapshots The snapshot files to map.
+     */
+    public static Zones load(List<String> paths, List<String> snapshots) throws IOException {
+        Zones zones = new Zones();
+        for (String path : paths)
+            zones.add(new Zone(ZoneFile.read(Path.of(path), null)));
+        for (String snapshot : snapshots) {
+            Zone zone = ZoneSnapshot.openZone(Path.of(snapshot));
+            zones.add(zone);
+            zones.snapshots.put(Path.of(snapshot), zone.getOrigin());
+        }
+        return zones;
+    }
+
+    /**
+     * Adds a zone, replacing any zone with the same apex.
+     * @param zone The zone to add.
+     */
+    public void add(Zone zone) {
+        zones.put(zone.getOrigin(), zone);
+    }
+
+    /**
+     * Returns a copy of this set in which one zone is swapped for another, leaving this set untouched
+     * so that it can keep serving lookups that are under way.
+     * @param previous The apex of the zone to drop.
+     * @param replacement The zone to add.
+     */
+    public Zones replace(String previous, Zone replacement) {
+        Zones copy = new Zones();
+        copy.zones.putAll(zones);
+        copy.snapshots.putAll(snapshots);
+        copy.zones.remove(previous);
+        copy.add(replacement);
+        return copy;
+    }
+
+    /**
+     * Returns the apex of the zone loaded from a snapshot file, or null when the file was not loaded.
+     * @param snapshot The snapshot file.
+     */
+    public String getSnapshotOrigin(Path snapshot) {
+        return snapshots.get(snapshot);
+    }
+
+    /**
+     * Returns whether no zone is loaded.
+     */
+    public boolean isEmpty() {
+        return zones.isEmpty();
+    }
+
+    /**
+     * Returns the loaded zones.
+     */
+    public Iterable<Zone> getZones() {
+        return zones.values();
+    }
+
+    /**
+     * Returns the zone with the longest apex enclosing a name, or null when the name is in no zone.
+     * @param name The name to look up.
+     */
+    public Zone find(String name) {
+        if (zones.isEmpty())
+            return null;
+        String current = ZoneFile.normalize(name);
+        while (true) {
+            Zone zone = zones.get(current);
+            if (zone != null)
+                return zone;
+            if (current.isEmpty())
+                return null;
+            int dot = current.indexOf('.');
+            current = dot < 0 ? "" : current.substring(dot + 1);
+        }
+    }
+
+    /**
+     * Answers a question from the enclosing zone.
+     * @param question The question.
+     * @param now The current time in milliseconds.
+     * @return The zone's answer, or null when the name is in no zone.
+     */
+    public Resolution lookup(Question question, long now) {
+        Zone zone = find(question.getDomain());
+        return zone == null ? null : zone.lookup(question, now);
+    }
+}
@@ -0,0 +1,61 @@
+package dns;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the cache-hit codec as the UDP path does, decoding a request in place, probing the cache and
+ * replaying the encoded response into a direct buffer, and measures what the thread allocates once the
+ * code is compiled.
+ */
+class CacheHitAllocationTest {
+
+    private static final int WARMUP_ROUNDS = 200_000;
+    private static final int ROUNDS = 100_000;
+    private static final short RESPONSE_FLAGS = (short) 0x8000;
+
+    @Test
+    void answeringFromTheCacheAllocatesNothing() {
+        long now = System.currentTimeMillis();
+        Question question = new Question("www.example.com", RecordType.A, RecordType.CLASS_IN);
+        Answer answer = new Answer("www.example.com", RecordType.A, RecordType.CLASS_IN, 3600,
+                new byte[]{(byte) 192, 0, 2, 1});
+        Cache cache = new Cache(1024);
+        cache.put(question, new Resolution(Resolution.NOERROR, List.of(answer), now, now + 3_600_000));
+        byte[] query = new Message(new Header((short) 0x1234, (short) 0x0100, (short) 1, (short) 0, (short) 0,
+                (short) 0), List.of(question), List.of(), List.of()).getMessage();
+        ByteBuffer request = ByteBuffer.allocateDirect(Edns.MAX_PAYLOAD_SIZE).put(query);
+        ByteBuffer response = ByteBuffer.allocateDirect(Edns.MAX_PAYLOAD_SIZE);
+        WireReader reader = new WireReader();
+        CacheKey probe = CacheKey.probe();
+
+        long bytes = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            bytes += answer(cache, reader, probe, request, query.length, response, now);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ROUNDS; i++)
+            bytes += answer(cache, reader, probe, request, query.length, response, now);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertTrue(bytes > 0, "No response was written");
+        assertTrue(allocated < ROUNDS / 100, allocated + " bytes allocated for " + ROUNDS + " cache hits");
+    }
+
+    // Answers one request from the cache and returns the length of the response.
+    private static int answer(Cache cache, WireReader reader, CacheKey probe, ByteBuffer request, int length,
+                              ByteBuffer response, long now) {
+        if (!reader.read(request, length))
+            return 0;
+        Resolution hit = cache.get(probe.set(reader, 0), now);
+        response.clear();
+        if (hit == null || !hit.getEncoded(reader, RESPONSE_FLAGS).writeTo(response, reader, now))
+            return 0;
+        return response.position();
+    }
+}
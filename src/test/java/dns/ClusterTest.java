@@ -0,0 +1,159 @@
+package dns;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs cluster nodes on loopback ports, each with a map for its cache.
+ */
+class ClusterTest {
+
+    private static final long TIMEOUT_MS = 200;
+    private static final long WAIT_MS = 5000;
+
+    private final List<Cluster> nodes = new ArrayList<>();
+
+    @AfterEach
+    void stop() throws IOException {
+        for (Cluster node : nodes)
+            node.close();
+    }
+
+    @Test
+    void getReadsTheOwnersCopy() throws Exception {
+        List<SocketAddress> members = List.of(freeAddress(), freeAddress());
+        MapStore first = new MapStore();
+        MapStore second = new MapStore();
+        Cluster asking = start(members.get(0), members, first);
+        start(members.get(1), members, second);
+        Question owned = ownedByPeer(asking);
+        Question missing = ownedByPeer(asking, owned);
+        second.put(owned, resolution());
+
+        Resolution hit = asking.get(owned).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(hit);
+        assertArrayEquals(resolution().getAnswers().getFirst().getRdata(), hit.getAnswers().getFirst().getRdata());
+        assertNull(asking.get(missing).get(WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void storedGoesToTheOwner() throws Exception {
+        List<SocketAddress> members = List.of(freeAddress(), freeAddress());
+        MapStore second = new MapStore();
+        Cluster storing = start(members.get(0), members, new MapStore());
+        start(members.get(1), members, second);
+        Question owned = ownedByPeer(storing);
+
+        storing.stored(owned, resolution());
+
+        await(() -> second.entries.containsKey(owned));
+    }
+
+    @Test
+    void invalidateDropsTheQuestionEverywhere() throws Exception {
+        List<SocketAddress> members = List.of(freeAddress(), freeAddress());
+        MapStore first = new MapStore();
+        MapStore second = new MapStore();
+        start(members.get(0), members, first);
+        start(members.get(1), members, second);
+        Question question = new Question("example.com", RecordType.A, RecordType.CLASS_IN);
+        first.put(question, resolution());
+        second.put(question, resolution());
+
+        assertTrue(Cluster.invalidate(members.get(0), question, WAIT_MS));
+
+        assertNull(first.get(question));
+        await(() -> !second.entries.containsKey(question));
+    }
+
+    @Test
+    void deadPeerIsSkippedUntilItAnswersAgain() throws Exception {
+        List<SocketAddress> members = List.of(freeAddress(), freeAddress());
+        Cluster alone = start(members.get(0), members, new MapStore());
+        Question owned = ownedByPeer(alone);
+
+        for (int i = 0; i < 3; i++)
+            assertNull(alone.get(owned).get(WAIT_MS, TimeUnit.MILLISECONDS));
+
+        CompletableFuture<Resolution> skipped = alone.get(owned);
+        assertTrue(skipped.isDone());
+        assertNull(skipped.get());
+
+        MapStore revived = new MapStore();
+        revived.put(owned, resolution());
+        start(members.get(1), members, revived);
+        await(() -> alone.get(owned).join() != null);
+    }
+
+    private Cluster start(SocketAddress self, List<SocketAddress> members, MapStore store) throws IOException {
+        Cluster node = new Cluster(self, members, TIMEOUT_MS, 3, store, new Metrics());
+        nodes.add(node);
+        return node;
+    }
+
+    // A question owned by the other node, which a GET for it has to ask; one this node owns completes at once.
+    private static Question ownedByPeer(Cluster node, Question... excluded) {
+        for (int i = 0; ; i++) {
+            Question question = new Question("name" + i + ".example", RecordType.A, RecordType.CLASS_IN);
+            if (!List.of(excluded).contains(question) && !node.get(question).isDone())
+                return question;
+        }
+    }
+
+    private static Resolution resolution() {
+        long now = System.currentTimeMillis();
+        Answer answer = new Answer("example.com", RecordType.A, RecordType.CLASS_IN, 300,
+                new byte[]{(byte) 192, 0, 2, 1});
+        return new Resolution(Resolution.NOERROR, List.of(answer), now, now + 300_000);
+    }
+
+    private static InetSocketAddress freeAddress() throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            return (InetSocketAddress) channel.getLocalAddress();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+    private static final class MapStore implements Cluster.Store {
+        private final Map<Question, Resolution> entries = new ConcurrentHashMap<>();
+
+        @Override
+        public Resolution get(Question question) {
+            return entries.get(question);
+        }
+
+        @Override
+        public void put(Question question, Resolution resolution) {
+            entries.put(question, resolution);
+        }
+
+        @Override
+        public void remove(Question question) {
+            entries.remove(question);
+        }
+    }
+}
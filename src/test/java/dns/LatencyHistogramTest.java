@@ -0,0 +1,56 @@
+package dns;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesAreExact() {
+        for (long value = 0; value < 128; value++)
+            assertEquals(value, percentileOf(value));
+    }
+
+    @Test
+    void everyValueIsReportedWithinOneIn128() {
+        for (long value = 128; value < 1L << 50; value += Math.max(1, value / 1000)) {
+            long reported = percentileOf(value);
+            assertTrue(reported >= value && reported <= value + value / 128,
+                    value + " was reported as " + reported);
+        }
+    }
+
+    @Test
+    void bucketBoundariesRoundTrip() {
+        for (int shift = 0; shift < 56; shift++) {
+            for (long subBucket = 128; subBucket < 256; subBucket++) {
+                long lowest = subBucket << shift;
+                long highest = lowest + (1L << shift) - 1;
+                assertEquals(highest, percentileOf(lowest));
+                assertEquals(highest, percentileOf(highest));
+            }
+        }
+    }
+
+    @Test
+    void reportsThePercentileOfManyValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++)
+            histogram.record(value);
+
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(5000, histogram.getPercentile(50), 5000 / 128.0);
+        assertEquals(9900, histogram.getPercentile(99), 9900 / 128.0);
+        assertEquals(10_000, histogram.getPercentile(100));
+    }
+
+    // The top of the bucket a value is counted in; a far larger second value keeps the maximum from capping it.
+    private static long percentileOf(long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        histogram.record(Long.MAX_VALUE);
+        return histogram.getPercentile(50);
+    }
+}
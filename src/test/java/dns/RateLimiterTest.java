@@ -0,0 +1,70 @@
+package dns;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RateLimiterTest {
+
+    private static final InetSocketAddress FIRST = new InetSocketAddress("10.0.0.1", 5353);
+    private static final InetSocketAddress SECOND = new InetSocketAddress("10.0.0.2", 5353);
+
+    @Test
+    void limitsEachPrefix() {
+        RateLimiter limiter = new RateLimiter(List.of(RateLimiter.Rule.parse("32:2", false)), 0, 1024);
+        long now = System.nanoTime();
+
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(FIRST, null, now));
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(FIRST, null, now));
+        assertEquals(RateLimiter.Action.DROP, limiter.check(FIRST, null, now));
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(SECOND, null, now));
+    }
+
+    @Test
+    void hostsOnEitherSideOfTheHighBitShareAPrefix() {
+        RateLimiter limiter = new RateLimiter(List.of(RateLimiter.Rule.parse("24:1", false)), 0, 1024);
+        long now = System.nanoTime();
+
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(FIRST, null, now));
+        assertEquals(RateLimiter.Action.DROP, limiter.check(new InetSocketAddress("10.0.0.200", 5353), null, now));
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(new InetSocketAddress("10.0.1.200", 5353), null, now));
+    }
+
+    @Test
+    void partialBytePrefixKeepsOnlyItsBits() {
+        RateLimiter limiter = new RateLimiter(List.of(RateLimiter.Rule.parse("20:1", false)), 0, 1024);
+        long now = System.nanoTime();
+
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(new InetSocketAddress("10.0.16.1", 5353), null, now));
+        assertEquals(RateLimiter.Action.DROP, limiter.check(new InetSocketAddress("10.0.31.255", 5353), null, now));
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(new InetSocketAddress("10.0.32.1", 5353), null, now));
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(new InetSocketAddress("10.0.15.255", 5353), null, now));
+    }
+
+    @Test
+    void ipv6HostsInOnePrefixShareABucket() {
+        RateLimiter limiter = new RateLimiter(List.of(RateLimiter.Rule.parse("64:1", true)), 0, 1024);
+        long now = System.nanoTime();
+
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(new InetSocketAddress("2001:db8::1", 5353), null, now));
+        for (int i = 0x80; i <= 0xFF; i++) {
+            InetSocketAddress host = new InetSocketAddress("2001:db8::" + Integer.toHexString(i) + "80:1", 5353);
+            assertEquals(RateLimiter.Action.DROP, limiter.check(host, null, now));
+        }
+    }
+
+    @Test
+    void refusedResponseLeavesOtherBucketsAlone() {
+        RateLimiter limiter = new RateLimiter(List.of(RateLimiter.Rule.parse("24:3", false),
+                RateLimiter.Rule.parse("32:1", false)), 0, 1024);
+        long now = System.nanoTime();
+
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(FIRST, null, now));
+        for (int i = 0; i < 10; i++)
+            assertEquals(RateLimiter.Action.DROP, limiter.check(FIRST, null, now));
+        assertEquals(RateLimiter.Action.ALLOW, limiter.check(SECOND, null, now));
+    }
+}
@@ -0,0 +1,117 @@
+package dns;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Resolves through stand-in authoritative servers on loopback addresses that share one port: the root at
+ * 127.0.0.1 delegates example to 127.0.0.2 with A glue, which delegates sub.example to 127.0.0.3 with AAAA
+ * glue only.
+ */
+class RecursorTest {
+
+    private static final String ROOT_ZONE = """
+            $TTL 3600
+            .               SOA a.root. hostmaster.root. 1 3600 600 86400 300
+            .               NS  a.root.
+            a.root.         A   127.0.0.1
+            example.        NS  ns.example.
+            ns.example.     A   127.0.0.2
+            """;
+    private static final String EXAMPLE_ZONE = """
+            $TTL 3600
+            @               SOA ns hostmaster 1 3600 600 86400 300
+            @               NS  ns
+            ns              A   127.0.0.2
+            www             A   192.0.2.1
+            alias           CNAME www.sub
+            sub             NS  ns6.sub
+            """;
+    private static final String SUB_ZONE = """
+            $TTL 3600
+            @               SOA ns6 hostmaster.example. 1 3600 600 86400 300
+            @               NS  ns6
+            www             A   192.0.2.2
+            """;
+
+    @TempDir
+    Path directory;
+
+    private final List<ZoneServer> servers = new ArrayList<>();
+    private Recursor recursor;
+
+    @BeforeEach
+    void start() throws IOException {
+        ZoneServer root = serve("127.0.0.1", 0, ".", ROOT_ZONE);
+        int port = root.getAddress().getPort();
+        serve("127.0.0.2", port, "example.", EXAMPLE_ZONE, glue("ns6.sub.example", 127, 0, 0, 3));
+        serve("127.0.0.3", port, "sub.example.", SUB_ZONE);
+        recursor = new Recursor(List.of(root.getAddress()), port, 1000, Edns.MIN_PAYLOAD_SIZE, 86_400);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        recursor.close();
+        for (ZoneServer server : servers)
+            server.close();
+    }
+
+    @Test
+    void followsReferralWithGlue() throws Exception {
+        Message reply = resolve("www.example");
+
+        assertEquals(Resolution.NOERROR, reply.getHeader().getRcode());
+        assertEquals(1, reply.getAnswers().size());
+        assertArrayEquals(new byte[]{(byte) 192, 0, 2, 1}, reply.getAnswers().getFirst().getRdata());
+    }
+
+    @Test
+    void followsCnameIntoZoneWithAaaaGlueOnly() throws Exception {
+        Message reply = resolve("alias.example");
+
+        assertEquals(Resolution.NOERROR, reply.getHeader().getRcode());
+        assertEquals(2, reply.getAnswers().size());
+        assertEquals(RecordType.CNAME, reply.getAnswers().get(0).getQType());
+        assertEquals("www.sub.example", reply.getAnswers().get(1).getDomain());
+        assertArrayEquals(new byte[]{(byte) 192, 0, 2, 2}, reply.getAnswers().get(1).getRdata());
+    }
+
+    @Test
+    void returnsNxdomainWithSoa() throws Exception {
+        Message reply = resolve("missing.example");
+
+        assertEquals(Resolution.NXDOMAIN, reply.getHeader().getRcode());
+        assertEquals(0, reply.getAnswers().size());
+        assertEquals(RecordType.SOA, reply.getAuthorities().getFirst().getQType());
+    }
+
+    private Message resolve(String name) throws Exception {
+        return recursor.query(new Question(name, RecordType.A, RecordType.CLASS_IN), true).get(5, TimeUnit.SECONDS);
+    }
+
+    private ZoneServer serve(String host, int port, String origin, String text, Answer... extra) throws IOException {
+        ZoneServer server = new ZoneServer(new InetSocketAddress(host, port),
+                ZoneServer.zone(directory, origin, text, extra));
+        servers.add(server);
+        return server;
+    }
+
+    // An IPv4-mapped IPv6 address keeps the test on IPv4 loopback; zone files do not accept one.
+    private static Answer glue(String name, int a, int b, int c, int d) {
+        byte[] address = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) a, (byte) b, (byte) c,
+                (byte) d};
+        return new Answer(name, RecordType.AAAA, RecordType.CLASS_IN, 3600, address);
+    }
+}
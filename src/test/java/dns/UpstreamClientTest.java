@@ -0,0 +1,87 @@
+package dns;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Queries a stand-in server on loopback that first answers with a forged reply and then with the real one.
+ */
+class UpstreamClientTest {
+
+    private static final int NXDOMAIN = 3;
+
+    private DatagramChannel server;
+    private Thread thread;
+    private UpstreamClient client;
+    private final List<InetSocketAddress> sources = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void start() throws IOException {
+        server = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        thread = Thread.ofPlatform().daemon().name("test-upstream").start(this::serve);
+        client = new UpstreamClient(1000, 0, Edns.MIN_PAYLOAD_SIZE);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        client.close();
+        server.close();
+        thread.interrupt();
+    }
+
+    @Test
+    void replyWithOtherLetterCaseIsDropped() throws Exception {
+        Message reply = client.query(server.getLocalAddress(),
+                new Question("www.example", RecordType.A, RecordType.CLASS_IN), false).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Resolution.NOERROR, reply.getHeader().getRcode());
+    }
+
+    @Test
+    void everyQueryHasItsOwnSourcePort() throws Exception {
+        for (int i = 0; i < 2; i++)
+            client.query(server.getLocalAddress(),
+                    new Question("www.example", RecordType.A, RecordType.CLASS_IN), false).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, sources.size());
+        assertNotEquals(sources.get(0).getPort(), sources.get(1).getPort());
+    }
+
+    // Answers each query twice: with the question name upper-cased and NXDOMAIN, then as asked and NOERROR.
+    private void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(Edns.MAX_PAYLOAD_SIZE);
+        while (server.isOpen()) {
+            try {
+                buffer.clear();
+                InetSocketAddress source = (InetSocketAddress) server.receive(buffer);
+                sources.add(source);
+                byte[] query = Arrays.copyOf(buffer.array(), buffer.position());
+                byte[] forged = query.clone();
+                forged[2] |= (byte) 0x80;
+                forged[3] |= NXDOMAIN;
+                for (int i = Wire.HEADER_SIZE; forged[i] != 0; i++)
+                    if (forged[i] >= 'a' && forged[i] <= 'z')
+                        forged[i] -= 'a' - 'A';
+                server.send(ByteBuffer.wrap(forged), source);
+                byte[] real = query.clone();
+                real[2] |= (byte) 0x80;
+                server.send(ByteBuffer.wrap(real), source);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
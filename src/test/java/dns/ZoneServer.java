@@ -0,0 +1,94 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stand-in authoritative server for tests: answers every UDP query from one zone, with referrals, glue
+ * and negative answers as the server itself builds them.
+ */
+final class ZoneServer implements Closeable {
+
+    private static final int RESPONSE_FLAG = 0x8000;
+    private static final int AUTHORITATIVE_FLAG = 0x0400;
+
+    private final DatagramChannel channel;
+    private final Zone zone;
+    private final Thread thread;
+
+    /**
+     * Starts serving a zone.
+     * @param address The address to listen on, port 0 for an ephemeral one.
+     * @param zone The zone to answer from.
+     */
+    ZoneServer(InetSocketAddress address, Zone zone) throws IOException {
+        this.zone = zone;
+        channel = DatagramChannel.open().bind(address);
+        thread = Thread.ofPlatform().daemon().name("test-zone-" + zone.getOrigin()).start(this::serve);
+    }
+
+    /**
+     * Parses a zone from master file text.
+     * @param directory A directory to write the file into.
+     * @param origin The origin of relative names.
+     * @param text The zone file.
+     * @param extra Records to add that a zone file cannot express.
+     */
+    static Zone zone(Path directory, String origin, String text, Answer... extra) throws IOException {
+        Path file = Files.createTempFile(directory, "zone", ".txt");
+        Files.writeString(file, text, StandardCharsets.UTF_8);
+        List<Answer> records = new ArrayList<>(ZoneFile.read(file, origin));
+        records.addAll(List.of(extra));
+        return new Zone(records);
+    }
+
+    /**
+     * Returns the address the server listens on.
+     */
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        thread.interrupt();
+    }
+
+    private void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(Edns.MAX_PAYLOAD_SIZE);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress client = channel.receive(buffer);
+                byte[] data = new byte[buffer.flip().remaining()];
+                buffer.get(data);
+                Message request = new Parser().parse(data);
+                Question question = request.getQuestions().getFirst();
+                Resolution resolution = zone.lookup(question, System.currentTimeMillis());
+                int flags = RESPONSE_FLAG | (resolution.isAuthoritative() ? AUTHORITATIVE_FLAG : 0)
+                        | resolution.getRcode();
+                Header header = new Header(request.getHeader().getId(), (short) flags, (short) 1,
+                        (short) resolution.getAnswers().size(), (short) resolution.getAuthorities().size(),
+                        (short) resolution.getAdditionals().size());
+                Message response = new Message(header, List.of(question), resolution.getAnswers(),
+                        resolution.getAuthorities(), resolution.getAdditionals());
+                channel.send(ByteBuffer.wrap(response.getMessage()), client);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // A query the zone cannot answer is simply not answered.
+            }
+        }
+    }
+}